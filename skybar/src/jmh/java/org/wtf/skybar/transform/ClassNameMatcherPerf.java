@@ -0,0 +1,94 @@
+package org.wtf.skybar.transform;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies the names of a JVM's worth of loaded classes, mostly from the JDK and libraries, against a few dozen
+ * prefixes. Compares the compiled matcher with checking each prefix in turn, as the transformer used to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ClassNameMatcherPerf {
+
+    private static final String[] LIBRARIES = {
+            "java/lang/", "java/util/", "java/util/concurrent/", "java/io/", "sun/reflect/", "jdk/internal/",
+            "org/springframework/beans/", "org/springframework/context/", "org/hibernate/", "com/fasterxml/jackson/",
+            "io/netty/buffer/", "io/netty/channel/", "org/eclipse/jetty/server/", "com/google/common/collect/"};
+    private static final String[] APPLICATION = {
+            "com/example/shop/", "com/example/shop/web/", "com/example/shop/gen/", "com/example/billing/"};
+
+    @Param({"4", "32"})
+    public int prefixCount;
+
+    @Param({"false", "true"})
+    public boolean withRegex;
+
+    private String[] includes;
+    private String[] excludes;
+    private Pattern includeRegex;
+    private Pattern excludeRegex;
+    private ClassNameMatcher matcher;
+    private String[] classNames;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        includes = new String[prefixCount];
+        for (int i = 0; i < prefixCount; i++) {
+            includes[i] = APPLICATION[i % APPLICATION.length] + (i < APPLICATION.length ? "" : "module" + i + "/");
+        }
+        excludes = new String[]{"com/example/shop/gen/"};
+        includeRegex = withRegex ? Pattern.compile("com/example/.*/api/.*") : null;
+        excludeRegex = withRegex ? Pattern.compile(".*Test") : null;
+        matcher = new ClassNameMatcher(includes, excludes, includeRegex, excludeRegex);
+
+        classNames = new String[30_000];
+        for (int i = 0; i < classNames.length; i++) {
+            // About one class in ten is the application's
+            String[] packages = random.nextInt(10) == 0 ? APPLICATION : LIBRARIES;
+            classNames[i] = packages[random.nextInt(packages.length)] + "Class" + random.nextInt(1000);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(30_000)
+    public void compiled(Blackhole blackhole) {
+        for (String className : classNames) {
+            blackhole.consume(matcher.matches(className));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(30_000)
+    public void eachPrefix(Blackhole blackhole) {
+        for (String className : classNames) {
+            blackhole.consume(matchesEachPrefix(className));
+        }
+    }
+
+    private boolean matchesEachPrefix(String className) {
+        if (className.startsWith(ClassNameMatcher.SKYBAR_PREFIX) || className.contains("$$")) {
+            return false;
+        }
+        if (startsWithAny(className, includes) && !startsWithAny(className, excludes)) {
+            return true;
+        }
+        return includeRegex != null && includeRegex.matcher(className).matches()
+                && !(excludeRegex != null && excludeRegex.matcher(className).matches());
+    }
+
+    private static boolean startsWithAny(String className, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -7,15 +7,23 @@ import org.wtf.skybar.registry.SkybarRegistry;
 import org.wtf.skybar.source.FileSystemSourceProvider;
 import org.wtf.skybar.source.MavenSourceArtifactSourceProvider;
 import org.wtf.skybar.source.SourceProvider;
+import org.wtf.skybar.time.StackSampler;
+import org.wtf.skybar.transform.ClassCache;
+import org.wtf.skybar.transform.OfflineInstrumentation;
+import org.wtf.skybar.transform.ProbeStrategy;
 import org.wtf.skybar.transform.SkybarTransformer;
 import org.wtf.skybar.web.WebServer;
 
+import javax.annotation.Nullable;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class SkybarAgent {
@@ -23,26 +31,216 @@ public class SkybarAgent {
     private static final org.eclipse.jetty.util.log.Logger LOG = Log.getLogger(SkybarAgent.class);
     private static final Logger logger = LoggerFactory.getLogger(SkybarAgent.class);
 
+    /**
+     * Agent option that makes {@link #agentmain} remove the probes it added earlier
+     */
+    static final String DETACH = "detach";
+
+    /**
+     * The transformer and web server of the dynamically attached agent, or null while it isn't attached
+     */
+    private static SkybarTransformer attachedTransformer;
+    private static WebServer attachedWebServer;
+    /**
+     * The sampler of the dynamically attached agent, or null if it isn't attached or doesn't sample
+     */
+    @Nullable
+    private static StackSampler attachedSampler;
+
     public static void premain(String options, Instrumentation instrumentation) throws Exception {
 
         perhapsWait();
 
-        SkybarConfig config = getSkybarConfig();
+        SkybarConfig config = getSkybarConfig(null);
 
-        if(! config.isIncludeConfigured()) {
+        if(! config.isIncludeConfigured() && config.getOfflineMetadata() == null) {
             System.err.println("Skybar needs at least one include pattern to be configured.");
             System.err.println("Please define the skybar.include property");
             System.exit(-1);
         }
 
+        SkybarRegistry.registry.setCoverageOnly(config.isCoverageOnly());
+        SkybarRegistry.registry.setBranchCoverage(config.isBranchCoverage());
+        SkybarRegistry.registry.setMethodTiming(config.isMethodTiming());
+        SkybarRegistry.registry.setCallGraph(config.isCallGraph());
+        SkybarRegistry.registry.setAllocationCounting(config.isAllocationCounting());
+        SkybarRegistry.registry.setLockContention(config.isLockContention());
+        SkybarRegistry.registry.setSampling(config.getSampleInterval() > 0);
+        SkybarRegistry.registry.setEnabled(config.isEnabled());
+
+        int preinstrumented = registerOfflineMetadata(config);
+
+        if(config.isIncludeConfigured()) {
+            SkybarTransformer transformer = new SkybarTransformer(config.getIncludes(),
+                    config.getExcludes(),
+                    config.getIncludeRegex(),
+                    config.getExcludeRegex(),
+                    config.getProbeStrategy(),
+                    getClassCache(config));
+            instrumentation.addTransformer(transformer, false);
+        }
+        int configuredPort = config.getWebUiPort();
+        int actualPort = new WebServer(SkybarRegistry.registry, configuredPort, getSourceProviders(config)).start();
+        startSampler(config);
+        logger.info("Skybar started on port " + actualPort
+                + (config.isIncludeConfigured() ? " against classes matching " + describeIncludes(config) : "")
+                + (preinstrumented > 0 ? " with " + preinstrumented + " classes instrumented ahead of time" : ""));
+    }
+
+    /**
+     * Registers the classes instrumented ahead of time, so they count lines without being transformed. See
+     * {@link OfflineInstrumentation}.
+     *
+     * @return the number of classes registered
+     */
+    private static int registerOfflineMetadata(SkybarConfig config) throws IOException {
+        String offlineMetadata = config.getOfflineMetadata();
+        if(offlineMetadata == null) {
+            return 0;
+        }
+        int registered = 0;
+        for (String file : offlineMetadata.split(File.pathSeparator)) {
+            if(!file.trim().isEmpty()) {
+                registered += OfflineInstrumentation.registerMetadata(Paths.get(file.trim()), SkybarRegistry.registry);
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Entry point when the agent is loaded into a running JVM, see {@link SkybarAttach}. Classes that are already
+     * loaded are retransformed to add the probes, and classes loaded later are instrumented as usual. Loading the agent
+     * again with the {@link #DETACH} option retransforms them back to their original bytes, so the JVM runs at full
+     * speed again. The counts so far stay with the registry, and attaching again carries on from there.
+     *
+     * Retransformation can't add fields or methods, so the agent always uses invokedynamic probes when attached.
+     *
+     * @param options {@link #DETACH}, or else the path of a config file to use instead of the usual lookup
+     */
+    public static synchronized void agentmain(@Nullable String options, Instrumentation instrumentation)
+            throws Exception {
+        if (DETACH.equals(options)) {
+            detach(instrumentation);
+        } else {
+            attach(options == null || options.isEmpty() ? null : options, instrumentation);
+        }
+    }
+
+    private static void attach(@Nullable String configFile, Instrumentation instrumentation) throws Exception {
+        if (attachedTransformer != null) {
+            logger.info("Skybar is already attached");
+            return;
+        }
+        if (!instrumentation.isRetransformClassesSupported()) {
+            // Never exit, this is somebody's running application
+            logger.error("Skybar can't attach, the JVM doesn't support retransforming classes");
+            return;
+        }
+        SkybarConfig config = getSkybarConfig(configFile);
+        if (!config.isIncludeConfigured()) {
+            logger.error("Skybar needs at least one include pattern to be configured. "
+                    + "Please define the skybar.include property");
+            return;
+        }
+        if (config.getSampleInterval() <= 0 && config.getProbeStrategy() != ProbeStrategy.INVOKE_DYNAMIC) {
+            logger.warn("Using invokedynamic probes instead of " + config.getProbeStrategy()
+                    + ", retransformed classes can't get new fields or methods");
+        }
+
+        SkybarRegistry.registry.setCoverageOnly(config.isCoverageOnly());
+        SkybarRegistry.registry.setBranchCoverage(config.isBranchCoverage());
+        SkybarRegistry.registry.setMethodTiming(config.isMethodTiming());
+        SkybarRegistry.registry.setCallGraph(config.isCallGraph());
+        SkybarRegistry.registry.setAllocationCounting(config.isAllocationCounting());
+        SkybarRegistry.registry.setLockContention(config.isLockContention());
+        SkybarRegistry.registry.setSampling(config.getSampleInterval() > 0);
+        SkybarRegistry.registry.setEnabled(config.isEnabled());
+
+        // Start the web server first, so a port that is taken leaves the application alone
+        WebServer webServer = new WebServer(SkybarRegistry.registry, config.getWebUiPort(), getSourceProviders(config));
+        int actualPort = webServer.start();
+        attachedWebServer = webServer;
+
         SkybarTransformer transformer = new SkybarTransformer(config.getIncludes(),
                 config.getExcludes(),
                 config.getIncludeRegex(),
-                config.getExcludeRegex());
-        instrumentation.addTransformer(transformer, false);
-        int configuredPort = config.getWebUiPort();
-        int actualPort = new WebServer(SkybarRegistry.registry, configuredPort, getSourceProviders(config)).start();
-        logger.info("Skybar started on port " + actualPort+ " against classes matching " + describeIncludes(config));
+                config.getExcludeRegex(),
+                ProbeStrategy.INVOKE_DYNAMIC,
+                getClassCache(config),
+                true);
+        instrumentation.addTransformer(transformer, true);
+        attachedTransformer = transformer;
+        int retransformed = retransform(instrumentation, transformer);
+        attachedSampler = startSampler(config);
+        logger.info("Skybar attached on port " + actualPort + ", instrumented " + retransformed
+                + " loaded classes matching " + describeIncludes(config));
+    }
+
+    private static void detach(Instrumentation instrumentation) {
+        SkybarTransformer transformer = attachedTransformer;
+        if (transformer == null) {
+            logger.info("Skybar isn't attached");
+            return;
+        }
+        // Without the transformer, retransforming starts over from the original bytes and leaves them as they are
+        instrumentation.removeTransformer(transformer);
+        attachedTransformer = null;
+        int retransformed = retransform(instrumentation, transformer);
+
+        attachedWebServer.stop();
+        attachedWebServer = null;
+        if (attachedSampler != null) {
+            attachedSampler.interrupt();
+            attachedSampler = null;
+        }
+        logger.info("Skybar detached, restored " + retransformed + " classes");
+    }
+
+    /**
+     * Starts sampling the thread stacks, if the config asks for samples instead of probes. See {@link StackSampler}.
+     *
+     * @return the sampler, or null if there is none
+     */
+    @Nullable
+    private static StackSampler startSampler(SkybarConfig config) {
+        if (config.getSampleInterval() <= 0) {
+            return null;
+        }
+        StackSampler sampler = new StackSampler(SkybarRegistry.registry, config.getSampleInterval(),
+                config.getSampleDepth());
+        sampler.start();
+        return sampler;
+    }
+
+    /**
+     * Retransforms the loaded classes the transformer instruments, all in one go where possible.
+     *
+     * @return the number of classes that were retransformed
+     */
+    private static int retransform(Instrumentation instrumentation, SkybarTransformer transformer) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(clazz) && transformer.shouldInstrument(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+            return classes.size();
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            // A failure rolls back the whole batch, so retry one by one to only leave out the classes that fail
+            logger.debug("Retransforming " + classes.size() + " classes at once failed, retrying one by one", e);
+        }
+        int retransformed = 0;
+        for (Class<?> clazz : classes) {
+            try {
+                instrumentation.retransformClasses(clazz);
+                retransformed++;
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                logger.warn("Couldn't retransform " + clazz.getName(), e);
+            }
+        }
+        return retransformed;
     }
 
     /**
@@ -90,8 +288,13 @@ public class SkybarAgent {
         return sb.toString();
     }
 
-    private static SkybarConfig getSkybarConfig() throws IOException {
-        String configFile = System.getProperty("skybar.config");
+    /**
+     * @param configFile config file to use, or null to look for one
+     */
+    private static SkybarConfig getSkybarConfig(@Nullable String configFile) throws IOException {
+        if (configFile == null) {
+            configFile = System.getProperty("skybar.config");
+        }
         if (configFile == null) {
             configFile = System.getenv("SKYBAR_CONFIG");
         }
@@ -112,6 +315,12 @@ public class SkybarAgent {
         return new SkybarConfig(toMap(fileProps), toMap(System.getProperties()), System.getenv());
     }
 
+    @Nullable
+    private static ClassCache getClassCache(SkybarConfig config) {
+        String cacheDir = config.getCacheDir();
+        return cacheDir == null ? null : new ClassCache(Paths.get(cacheDir));
+    }
+
     private static SourceProvider[] getSourceProviders(SkybarConfig config) throws IOException {
         List<SourceProvider> providers = new ArrayList<>();
 
@@ -0,0 +1,70 @@
+package org.wtf.skybar.agent;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Loads the agent into a running JVM, or removes its probes again:
+ *
+ * <pre>
+ * java -jar skybar-[version]-all.jar &lt;pid&gt; [config file]
+ * java -jar skybar-[version]-all.jar &lt;pid&gt; detach
+ * </pre>
+ *
+ * Without a config file the attached agent looks for its config the same way it does when started with -javaagent,
+ * but in the target JVM.
+ *
+ * The Attach API is in tools.jar up to Java 8, which isn't on the class path of a plain java -jar, so it is loaded
+ * reflectively, from tools.jar if need be.
+ */
+public class SkybarAttach {
+
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java -jar skybar-all.jar <pid> [config file | " + SkybarAgent.DETACH + "]");
+            System.exit(-1);
+        }
+        String pid = args[0];
+        String options = null;
+        if (args.length == 2) {
+            // The target JVM may well run in another directory
+            options = args[1].equals(SkybarAgent.DETACH) ? args[1] : new File(args[1]).getAbsolutePath();
+        }
+        String agentJar = new File(SkybarAttach.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .getAbsolutePath();
+
+        Class<?> virtualMachine = loadVirtualMachineClass();
+        Object vm = virtualMachine.getMethod("attach", String.class).invoke(null, pid);
+        boolean loaded = false;
+        try {
+            virtualMachine.getMethod("loadAgent", String.class, String.class).invoke(vm, agentJar, options);
+            loaded = true;
+        } catch (InvocationTargetException e) {
+            System.err.println("Couldn't load Skybar into " + pid + ": " + e.getCause());
+        } finally {
+            virtualMachine.getMethod("detach").invoke(vm);
+        }
+        if (!loaded) {
+            System.exit(-1);
+        }
+        System.out.println(SkybarAgent.DETACH.equals(options)
+                ? "Skybar detached from " + pid + ", see its log for details"
+                : "Skybar attached to " + pid + ", see its log for the web UI port");
+    }
+
+    private static Class<?> loadVirtualMachineClass() throws Exception {
+        try {
+            return Class.forName(VIRTUAL_MACHINE);
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!toolsJar.exists()) {
+                throw new ClassNotFoundException(VIRTUAL_MACHINE + " isn't available; attaching needs a JDK", e);
+            }
+            return new URLClassLoader(new URL[]{toolsJar.toURI().toURL()}).loadClass(VIRTUAL_MACHINE);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.wtf.skybar.agent;
 
+import org.wtf.skybar.transform.ProbeStrategy;
+
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
@@ -102,6 +104,94 @@ class SkybarConfig {
         return getConfigValue("source.fsPath", null);
     }
 
+    /**
+     * @return true to only record whether each line ran, letting probes disable themselves after the first hit
+     */
+    boolean isCoverageOnly() {
+        return Boolean.parseBoolean(getConfigValue("coverageOnly", "false"));
+    }
+
+    /**
+     * @return true to also count how often each outcome of every conditional jump and switch is taken
+     */
+    boolean isBranchCoverage() {
+        return Boolean.parseBoolean(getConfigValue("branches", "false"));
+    }
+
+    /**
+     * @return true to record a latency histogram of every instrumented method
+     */
+    boolean isMethodTiming() {
+        return Boolean.parseBoolean(getConfigValue("methodTiming", "false"));
+    }
+
+    /**
+     * @return true to count the calls of every instrumented line by the method they call
+     */
+    boolean isCallGraph() {
+        return Boolean.parseBoolean(getConfigValue("callGraph", "false"));
+    }
+
+    /**
+     * @return true to count the objects and arrays every instrumented line allocates
+     */
+    boolean isAllocationCounting() {
+        return Boolean.parseBoolean(getConfigValue("allocations", "false"));
+    }
+
+    /**
+     * @return true to record how long every instrumented line waits to enter monitors
+     */
+    boolean isLockContention() {
+        return Boolean.parseBoolean(getConfigValue("lockContention", "false"));
+    }
+
+    /**
+     * @return milliseconds between samples of the thread stacks, or 0 (the default) to count lines with probes instead
+     */
+    long getSampleInterval() {
+        return Long.parseLong(getConfigValue("sampleInterval", "0"));
+    }
+
+    /**
+     * @return frames to look at from the top of each sampled stack for a line of an included class
+     */
+    int getSampleDepth() {
+        return Integer.parseInt(getConfigValue("sampleDepth", "32"));
+    }
+
+    /**
+     * @return directory to cache instrumented classes in, or null to instrument every class on every start
+     */
+    @Nullable
+    String getCacheDir() {
+        return getConfigValue("cacheDir", null);
+    }
+
+    /**
+     * @return metadata files of classes instrumented ahead of time, separated by the path separator, or null if there
+     * are none
+     */
+    @Nullable
+    String getOfflineMetadata() {
+        return getConfigValue("offlineMetadata", null);
+    }
+
+    /**
+     * @return false to start with probes switched off, to switch them on later over HTTP
+     */
+    boolean isEnabled() {
+        return Boolean.parseBoolean(getConfigValue("enabled", "true"));
+    }
+
+    /**
+     * @return "indy" (the default) for an invokedynamic call site per line, or a probe array per class with a slot per
+     * line ("array"), per basic block ("blocks") or per control flow edge off a spanning tree ("edges")
+     */
+    ProbeStrategy getProbeStrategy() {
+        return ProbeStrategy.forName(getConfigValue("probes", "indy"));
+    }
+
     @Nullable
     private String getConfigValue(String propName, @Nullable String defaultValue) {
         String propNameInNameSpace = "skybar." + propName;
@@ -0,0 +1,48 @@
+package org.wtf.skybar.registry;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How often a source line called a method.
+ */
+@Immutable
+public final class CallEdge {
+
+    private final int sourceId;
+    private final int lineNumber;
+    private final String callee;
+    private final long count;
+
+    CallEdge(int sourceId, int lineNumber, String callee, long count) {
+        this.sourceId = sourceId;
+        this.lineNumber = lineNumber;
+        this.callee = callee;
+        this.count = count;
+    }
+
+    /**
+     * @return id of the source file of the caller, see {@link SkybarRegistry#getSourceName(int)}
+     */
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @return line of the call
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the binary name of the class, then the name and descriptor of the method, as in "com.foo.Bar.baz(I)V".
+     * The class is the one the call names, which isn't always the one whose method runs.
+     */
+    public String getCallee() {
+        return callee;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.LongObjMap;
+import net.openhft.koloboke.collect.map.ObjIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.map.hash.HashObjIntMaps;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of the calls from source lines to the methods they call. Callers are keyed by source id and line packed into
+ * a long, callees by an id interned from their name, so looking up an edge never builds a key object.
+ *
+ * Edges get dense ids as their call sites are linked, and are counted in fixed size chunks of counters. A probe is
+ * bound to its chunk and index, so it never looks anything up, and linking new edges never moves the counters of the
+ * others.
+ */
+@ThreadSafe
+final class CallGraph {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final MethodHandle INCREMENT;
+
+    static {
+        try {
+            INCREMENT = MethodHandles.lookup().findStatic(CallGraph.class, "increment",
+                    MethodType.methodType(void.class, AtomicLongArray.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Edge ids by caller, then by callee id. Everything below is only touched while holding this.
+     */
+    private final LongObjMap<IntIntMap> edgeIdsByCaller = HashLongObjMaps.newMutableMap();
+    private final ObjIntMap<String> calleeIds = HashObjIntMaps.newMutableMap();
+    private final List<String> callees = new ArrayList<>();
+    /**
+     * Caller and callee of each edge, by edge id
+     */
+    private long[] callers = new long[CHUNK_SIZE];
+    private int[] calleesByEdge = new int[CHUNK_SIZE];
+    private AtomicLongArray[] chunks = new AtomicLongArray[0];
+    private int numEdges;
+
+    /**
+     * @param callee binary name of the class, then the name and descriptor of the method, as in "com.foo.Bar.baz(I)V"
+     * @return a method handle of type ()V that counts a call of the callee from the line
+     */
+    synchronized MethodHandle counterFor(int sourceId, int lineNumber, String callee) {
+        long caller = callerKey(sourceId, lineNumber);
+        IntIntMap edgeIds = edgeIdsByCaller.get(caller);
+        if (edgeIds == null) {
+            edgeIdsByCaller.put(caller, edgeIds = HashIntIntMaps.newMutableMap());
+        }
+        int calleeId = calleeIds.getOrDefault(callee, -1);
+        if (calleeId == -1) {
+            calleeId = callees.size();
+            callees.add(callee);
+            calleeIds.put(callee, calleeId);
+        }
+        int edgeId = edgeIds.getOrDefault(calleeId, -1);
+        if (edgeId == -1) {
+            edgeId = addEdge(caller, calleeId);
+            edgeIds.put(calleeId, edgeId);
+        }
+        return MethodHandles.insertArguments(INCREMENT, 0, chunks[edgeId >>> CHUNK_BITS], edgeId & (CHUNK_SIZE - 1));
+    }
+
+    private int addEdge(long caller, int calleeId) {
+        int edgeId = numEdges++;
+        if (edgeId == callers.length) {
+            callers = Arrays.copyOf(callers, edgeId * 2);
+            calleesByEdge = Arrays.copyOf(calleesByEdge, edgeId * 2);
+        }
+        callers[edgeId] = caller;
+        calleesByEdge[edgeId] = calleeId;
+        if ((edgeId >>> CHUNK_BITS) == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = new AtomicLongArray(CHUNK_SIZE);
+        }
+        return edgeId;
+    }
+
+    /**
+     * Target of the call edge probes, so keep it small enough to inline.
+     */
+    private static void increment(AtomicLongArray chunk, int index) {
+        chunk.incrementAndGet(index);
+    }
+
+    /**
+     * @return every edge that was called at least once, in the order they were linked
+     */
+    synchronized List<CallEdge> getEdges() {
+        List<CallEdge> edges = new ArrayList<>();
+        for (int edgeId = 0; edgeId < numEdges; edgeId++) {
+            long count = chunks[edgeId >>> CHUNK_BITS].get(edgeId & (CHUNK_SIZE - 1));
+            if (count > 0) {
+                long caller = callers[edgeId];
+                edges.add(new CallEdge((int) (caller >>> 32), (int) caller, callees.get(calleesByEdge[edgeId]),
+                        count));
+            }
+        }
+        return edges;
+    }
+
+    private static long callerKey(int sourceId, int lineNumber) {
+        return ((long) sourceId << 32) | (lineNumber & 0xFFFFFFFFL);
+    }
+}
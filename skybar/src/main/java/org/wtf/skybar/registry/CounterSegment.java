@@ -0,0 +1,74 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.function.IntLongConsumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A batch of counters of one source file that is published as a whole: the {@link LineCounters} of the lines a class
+ * contributes, or the {@link KeyedCounters} of its branches.
+ *
+ * Every write also flags the segment as dirty. Only the write that flips the flag pays for queueing the segment with
+ * its {@link SourceLines}; after that a write just reads the flag, until the next delta pass clears it.
+ */
+@ThreadSafe
+abstract class CounterSegment {
+
+    private static final AtomicIntegerFieldUpdater<CounterSegment> DIRTY =
+            AtomicIntegerFieldUpdater.newUpdater(CounterSegment.class, "dirty");
+
+    private final SourceLines source;
+
+    /**
+     * 1 while the segment has writes that haven't been picked up by a delta pass. Starts out dirty so that the new
+     * counters get published.
+     */
+    private volatile int dirty = 1;
+
+    CounterSegment(SourceLines source) {
+        this.source = source;
+    }
+
+    /**
+     * Records that the counter ran at least once, for coverage-only mode.
+     *
+     * @param counter line number or branch index, whichever the segment is indexed by
+     */
+    abstract void mark(int counter);
+
+    /**
+     * Reports the counters that grew since the last call and remembers the new counts as published. The first call
+     * reports every counter, even those with a count of 0, so that listeners learn about new ones.
+     *
+     * @param consumer called with the key of each changed counter and the number of visits since the last call
+     */
+    abstract void publish(IntLongConsumer consumer);
+
+    /**
+     * @param consumer called with the key of each counter and its count as of the last {@link #publish}. Counters are
+     *                 only reported once they have been published.
+     */
+    abstract void forEachPublished(IntLongConsumer consumer);
+
+    /**
+     * Must be called after the counter write, so that a delta pass which cleared the flag before we read it is
+     * guaranteed to see the write, and otherwise we queue the segment again.
+     */
+    final void markDirty() {
+        if (dirty == 0 && DIRTY.compareAndSet(this, 0, 1)) {
+            source.markDirty(this);
+        }
+    }
+
+    /**
+     * Called by the delta pass before it reads the counts, so writes that race with the read queue the segment again.
+     */
+    final void clearDirty() {
+        dirty = 0;
+    }
+
+    final SourceLines getSource() {
+        return source;
+    }
+}
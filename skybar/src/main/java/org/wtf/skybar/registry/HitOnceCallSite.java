@@ -0,0 +1,56 @@
+package org.wtf.skybar.registry;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Call site for coverage-only mode. The first execution marks the line or branch as covered and then replaces the probe with a
+ * no-op, so once the JIT has seen the new target the probe compiles down to nothing. Like any probe it does nothing
+ * while probes are switched off.
+ *
+ * Other threads may still run the old target for a while after the switch. That only marks the line again, which is
+ * harmless, so there is no need for {@link MutableCallSite#syncAll}.
+ */
+final class HitOnceCallSite extends SwitchableCallSite {
+
+    private static final MethodHandle HIT;
+    private static final MethodHandle HIT_IF_VISITED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HIT = lookup.findVirtual(HitOnceCallSite.class, "hit", MethodType.methodType(void.class));
+            HIT_IF_VISITED = lookup.findVirtual(HitOnceCallSite.class, "hitIfVisited",
+                    MethodType.methodType(void.class, long.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final CounterSegment counters;
+    private final int counter;
+
+    /**
+     * @param type    either ()V for single line and branch probes or (J)V for the per-method reports of counted visits
+     * @param counter line number or branch index, see {@link CounterSegment#mark(int)}
+     */
+    HitOnceCallSite(MethodType type, CounterSegment counters, int counter, SkybarRegistry registry) {
+        super(type, registry);
+        this.counters = counters;
+        this.counter = counter;
+        setProbe(type.parameterCount() == 0 ? HIT.bindTo(this) : HIT_IF_VISITED.bindTo(this));
+    }
+
+    private void hit() {
+        counters.mark(counter);
+        setProbe(noOp);
+    }
+
+    private void hitIfVisited(long visits) {
+        if (visits > 0) {
+            hit();
+        }
+    }
+}
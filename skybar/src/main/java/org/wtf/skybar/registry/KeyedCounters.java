@@ -0,0 +1,83 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.function.IntLongConsumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of one class that are published under keys of their own rather than line numbers: the outcomes of its
+ * branches (see {@link SkybarRegistry#branchKey(int, int)}), or its allocations (see
+ * {@link SkybarRegistry#allocationKey(int)}). They are indexed by the order the instrumentation numbered them in.
+ * Probes are bound to that index, so unlike {@link LineCounters} there are no gaps to pay for; the keys are only
+ * needed when the counts are published, and several counters may share one.
+ */
+@ThreadSafe
+final class KeyedCounters extends CounterSegment {
+
+    private final int[] keys;
+    private final AtomicLongArray counts;
+    /**
+     * Counts as of the last delta pass, allocated on the first pass
+     */
+    private long[] published;
+
+    /**
+     * @param source the source file the counters belong to
+     * @param keys   the key of each counter, by index
+     */
+    KeyedCounters(SourceLines source, int[] keys) {
+        super(source);
+        this.keys = keys.clone();
+        this.counts = new AtomicLongArray(keys.length);
+    }
+
+    /**
+     * Target of the invokedynamic branch and allocation probes, so keep it small enough to inline.
+     */
+    void increment(int index) {
+        counts.incrementAndGet(index);
+        markDirty();
+    }
+
+    void add(int index, long visits) {
+        counts.addAndGet(index, visits);
+        markDirty();
+    }
+
+    @Override
+    void mark(int index) {
+        if (counts.get(index) == 0 && counts.compareAndSet(index, 0, 1)) {
+            markDirty();
+        }
+    }
+
+    long get(int index) {
+        return counts.get(index);
+    }
+
+    @Override
+    void publish(IntLongConsumer consumer) {
+        boolean first = published == null;
+        if (first) {
+            published = new long[keys.length];
+        }
+        for (int i = 0; i < keys.length; i++) {
+            long count = counts.get(i);
+            if (first || count > published[i]) {
+                consumer.accept(keys[i], count - published[i]);
+                published[i] = count;
+            }
+        }
+    }
+
+    @Override
+    void forEachPublished(IntLongConsumer consumer) {
+        if (published == null) {
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            consumer.accept(keys[i], published[i]);
+        }
+    }
+}
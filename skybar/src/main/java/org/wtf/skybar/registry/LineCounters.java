@@ -0,0 +1,121 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.function.IntLongConsumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Dense, line-indexed visit counters for a contiguous range of lines in one source file. Every slot between the first
+ * and last registered line is allocated, so a gap costs one unused long, which is still far cheaper than a boxed key,
+ * a map node and a LongAdder per line.
+ *
+ * The set of registered lines is fixed at construction time; only registered lines are reported.
+ *
+ * Next to the live counts the segment keeps the counts as of the last delta pass, so deltas can be computed without a
+ * separate copy of the registry's state. They are only touched by the delta pass, which the registry serializes, and
+ * are allocated on the first pass.
+ */
+@ThreadSafe
+final class LineCounters extends CounterSegment {
+
+    private final int firstLine;
+    private final BitSet registered;
+    private final AtomicLongArray counts;
+    /**
+     * Indexed by the rank of the line among the registered lines, so gaps don't cost anything here
+     */
+    private long[] published;
+
+    /**
+     * @param source      the source file the lines belong to
+     * @param lineNumbers the lines to count, in any order. Must not be empty.
+     */
+    LineCounters(SourceLines source, int[] lineNumbers) {
+        super(source);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int line : lineNumbers) {
+            min = Math.min(min, line);
+            max = Math.max(max, line);
+        }
+        this.firstLine = min;
+        this.registered = new BitSet(max - min + 1);
+        for (int line : lineNumbers) {
+            registered.set(line - min);
+        }
+        this.counts = new AtomicLongArray(max - min + 1);
+    }
+
+    boolean isRegistered(int lineNumber) {
+        int index = lineNumber - firstLine;
+        return index >= 0 && registered.get(index);
+    }
+
+    /**
+     * Target of the invokedynamic line probes, so keep it small enough to inline.
+     */
+    void increment(int lineNumber) {
+        counts.incrementAndGet(lineNumber - firstLine);
+        markDirty();
+    }
+
+    void add(int lineNumber, long visits) {
+        counts.addAndGet(lineNumber - firstLine, visits);
+        markDirty();
+    }
+
+    /**
+     * Records that the line ran at least once, for coverage-only mode. Only reads the slot once it is set, so repeated
+     * marks don't keep bouncing the cache line between cores.
+     */
+    @Override
+    void mark(int lineNumber) {
+        int index = lineNumber - firstLine;
+        if (counts.get(index) == 0 && counts.compareAndSet(index, 0, 1)) {
+            markDirty();
+        }
+    }
+
+    long get(int lineNumber) {
+        return counts.get(lineNumber - firstLine);
+    }
+
+    /**
+     * Reports the lines whose counts grew since the last call and remembers the new counts as published. The first
+     * call reports every registered line, even those with a count of 0, so that listeners learn about new lines.
+     *
+     * @param consumer called with each changed line and the number of visits since the last call, in line order
+     */
+    @Override
+    void publish(IntLongConsumer consumer) {
+        boolean first = published == null;
+        if (first) {
+            published = new long[registered.cardinality()];
+        }
+        int n = 0;
+        for (int i = registered.nextSetBit(0); i >= 0; i = registered.nextSetBit(i + 1), n++) {
+            long count = counts.get(i);
+            if (first || count > published[n]) {
+                consumer.accept(firstLine + i, count - published[n]);
+                published[n] = count;
+            }
+        }
+    }
+
+    /**
+     * @param consumer called with each registered line and its count as of the last {@link #publish}, in line order.
+     *                 Lines are only reported once they have been published.
+     */
+    @Override
+    void forEachPublished(IntLongConsumer consumer) {
+        if (published == null) {
+            return;
+        }
+        int n = 0;
+        for (int i = registered.nextSetBit(0); i >= 0; i = registered.nextSetBit(i + 1), n++) {
+            consumer.accept(firstLine + i, published[n]);
+        }
+    }
+}
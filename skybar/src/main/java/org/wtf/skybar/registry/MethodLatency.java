@@ -0,0 +1,93 @@
+package org.wtf.skybar.registry;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How long the calls of a method took so far, in nanoseconds. Percentiles are accurate to within 1%. With lock
+ * contention accounting the same is kept for how long a line waited to enter monitors; then the line is that of the
+ * monitor enter, or the first line of a synchronized method.
+ */
+@Immutable
+public final class MethodLatency {
+
+    private final int sourceId;
+    private final String methodName;
+    private final int lineNumber;
+    private final long count;
+    private final long min;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    MethodLatency(int sourceId, String methodName, int lineNumber, long count, long min, double mean, long p50,
+                  long p90, long p99, long p999, long max) {
+        this.sourceId = sourceId;
+        this.methodName = methodName;
+        this.lineNumber = lineNumber;
+        this.count = count;
+        this.min = min;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * @return id of the source file the method is in, see {@link SkybarRegistry#getSourceName(int)}
+     */
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @return the binary name of the class, then the name and descriptor of the method, as in "com.foo.Bar.baz(I)V".
+     * For monitor waits, the method the line is in.
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return first line of the method, or -1 if it has no line numbers. For monitor waits, the line they are on.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
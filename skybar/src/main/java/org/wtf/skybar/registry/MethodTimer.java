@@ -0,0 +1,69 @@
+package org.wtf.skybar.registry;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Latency histogram of one method, or of the monitor waits of one line. The threads that run the method all record into
+ * one wait-free recorder, and the delta pass swaps out its interval histogram and adds it to the total. A recorder per
+ * thread would spare the probes the atomic adds, but would take a few histograms per method and thread, which pool
+ * threads never give back.
+ */
+@ThreadSafe
+final class MethodTimer {
+
+    /**
+     * Keeps percentiles within 1% of the real value
+     */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final int sourceId;
+    private final String methodName;
+    private final int lineNumber;
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    /**
+     * Recycled on every delta pass. Only touched by the delta pass, like the total.
+     */
+    private Histogram interval;
+    /**
+     * Everything recorded up to the last delta pass
+     */
+    private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+
+    MethodTimer(int sourceId, String methodName, int lineNumber) {
+        this.sourceId = sourceId;
+        this.methodName = methodName;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Target of the timing probes, so keep it small enough to inline.
+     *
+     * @param startNanos {@link System#nanoTime()} when the method was entered
+     */
+    void record(long startNanos) {
+        recorder.recordValue(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds what was recorded since the last call to the total.
+     *
+     * @return true if anything was recorded since the last call
+     */
+    boolean harvest() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return interval.getTotalCount() != 0;
+    }
+
+    /**
+     * @return the latency of the method as of the last delta pass
+     */
+    MethodLatency getLatency() {
+        return new MethodLatency(sourceId, methodName, lineNumber, total.getTotalCount(), total.getMinValue(),
+                total.getMean(), total.getValueAtPercentile(50), total.getValueAtPercentile(90),
+                total.getValueAtPercentile(99), total.getValueAtPercentile(99.9), total.getMaxValue());
+    }
+}
@@ -0,0 +1,154 @@
+package org.wtf.skybar.registry;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The per-class probe array of one instrumented class, laid out as described by a {@link ProbeArrayLayout}.
+ * Instrumented code increments the slots with plain, unsynchronized writes, so concurrent increments of the same slot
+ * can occasionally be lost; that is the price of a probe the JIT can reduce to a single add. With edge probes a lost
+ * increment skews the counts derived from that slot as well.
+ *
+ * With edge probes a derived count can also be negative for a while, when a harvest catches a method half way: in a
+ * diamond where one side is counted as the returns minus the other side, a call that took the other side but hasn't
+ * returned yet makes it -1 until it returns. So a negative count is carried over and taken out of the next ones of its
+ * block or branch, rather than dropped, which would leave the block counted once for a visit it never had.
+ *
+ * The delta pass harvests the growth of each slot since the previous pass, derives the visits of each block from it,
+ * and adds them to the {@link LineCounters} of each line of the block, so from there on array probes look just like
+ * any other probe. Branch outcomes are derived the same way and added to the {@link KeyedCounters} of the class.
+ */
+@NotThreadSafe
+final class ProbeArray {
+
+    private final long[] probes;
+    /**
+     * Slot values as of the last harvest
+     */
+    private final long[] harvested;
+    /**
+     * Growth of each slot in the current harvest
+     */
+    private final long[] slotVisits;
+
+    /**
+     * The lines of block i are lineNumbers[lineOffsets[i]] up to, but excluding, lineNumbers[lineOffsets[i + 1]]
+     */
+    private final int[] lineOffsets;
+    private final int[] lineNumbers;
+    private final LineCounters[] counters;
+    /**
+     * Likewise, block i is counted by the slots and coefficients from termOffsets[i] up to termOffsets[i + 1]
+     */
+    private final int[] termOffsets;
+    private final int[] termSlots;
+    private final int[] termCoefficients;
+    /**
+     * Negative count of each block, still to be taken out of its next positive ones
+     */
+    private final long[] blockCarry;
+    /**
+     * Branch outcome i is counted by the slots and coefficients from branchTermOffsets[i] up to branchTermOffsets[i + 1]
+     */
+    @Nullable
+    private final KeyedCounters branches;
+    private final int[] branchTermOffsets;
+    private final int[] branchTermSlots;
+    private final int[] branchTermCoefficients;
+    private final long[] branchCarry;
+
+    /**
+     * @param source the source file the lines belong to
+     * @param layout the slots, blocks and branches. All the lines must already be registered with the source; the
+     *               branches are registered here.
+     */
+    ProbeArray(SourceLines source, ProbeArrayLayout layout) {
+        this.probes = new long[layout.getNumSlots()];
+        this.harvested = new long[probes.length];
+        this.slotVisits = new long[probes.length];
+        this.lineOffsets = layout.getLineOffsets();
+        this.lineNumbers = layout.getLineNumbers();
+        this.counters = new LineCounters[lineNumbers.length];
+        for (int i = 0; i < lineNumbers.length; i++) {
+            counters[i] = source.countersFor(lineNumbers[i]);
+        }
+        this.termOffsets = layout.getTermOffsets();
+        this.termSlots = layout.getTermSlots();
+        this.termCoefficients = layout.getTermCoefficients();
+        this.blockCarry = new long[lineOffsets.length - 1];
+        int[] branchKeys = layout.getBranchKeys();
+        this.branches = branchKeys.length > 0 ? source.registerKeyed(branchKeys) : null;
+        this.branchTermOffsets = layout.getBranchTermOffsets();
+        this.branchTermSlots = layout.getBranchTermSlots();
+        this.branchTermCoefficients = layout.getBranchTermCoefficients();
+        this.branchCarry = new long[branchTermOffsets.length - 1];
+    }
+
+    /**
+     * @return the array the instrumented class increments
+     */
+    long[] getProbes() {
+        return probes;
+    }
+
+    /**
+     * Moves the visits since the last call into the line counters. Must only be called by one thread at a time.
+     *
+     * @param coverageOnly true to only mark visited lines as run, rather than add the visits
+     */
+    void harvest(boolean coverageOnly) {
+        boolean changed = false;
+        for (int i = 0; i < probes.length; i++) {
+            long value = probes[i];
+            slotVisits[i] = value - harvested[i];
+            harvested[i] = value;
+            changed |= slotVisits[i] != 0;
+        }
+        if (!changed) {
+            return;
+        }
+
+        for (int block = 0; block < lineOffsets.length - 1; block++) {
+            long visits = blockCarry[block];
+            for (int t = termOffsets[block]; t < termOffsets[block + 1]; t++) {
+                visits += termCoefficients[t] * slotVisits[termSlots[t]];
+            }
+            if (visits <= 0) {
+                blockCarry[block] = visits;
+                continue;
+            }
+            blockCarry[block] = 0;
+            for (int j = lineOffsets[block]; j < lineOffsets[block + 1]; j++) {
+                if (coverageOnly) {
+                    counters[j].mark(lineNumbers[j]);
+                } else {
+                    counters[j].add(lineNumbers[j], visits);
+                }
+            }
+        }
+        for (int branch = 0; branch < branchTermOffsets.length - 1; branch++) {
+            long visits = branchCarry[branch];
+            for (int t = branchTermOffsets[branch]; t < branchTermOffsets[branch + 1]; t++) {
+                visits += branchTermCoefficients[t] * slotVisits[branchTermSlots[t]];
+            }
+            if (visits <= 0) {
+                branchCarry[branch] = visits;
+                continue;
+            }
+            branchCarry[branch] = 0;
+            if (coverageOnly) {
+                branches.mark(branch);
+            } else {
+                branches.add(branch, visits);
+            }
+        }
+    }
+
+    /**
+     * Drops the visits since the last harvest, for when probes are switched off. Must only be called by one thread at a
+     * time.
+     */
+    void discard() {
+        System.arraycopy(probes, 0, harvested, 0, probes.length);
+    }
+}
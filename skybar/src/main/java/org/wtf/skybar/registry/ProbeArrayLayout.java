@@ -0,0 +1,225 @@
+package org.wtf.skybar.registry;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Describes how the slots of a class's probe array turn into line counts. The lines are grouped into blocks that always
+ * run together, and each block is counted as a sum of slots times a coefficient. A probe per line or per block is a
+ * block with a single slot and a coefficient of 1; with edge probes a block count can also be derived from several
+ * slots, like an entry count that is the sum of the counts of the edges into the block.
+ *
+ * With branch coverage the layout also has branch outcomes, counted the same way: by a slot of their own, or with edge
+ * probes from the slots of the edges, at no extra cost.
+ */
+@NotThreadSafe
+public final class ProbeArrayLayout {
+
+    private int numSlots;
+
+    private int numBlocks;
+    private int[] lineOffsets = new int[]{0};
+    private int[] lineNumbers = new int[16];
+    private int[] termOffsets = new int[]{0};
+    private int[] termSlots = new int[16];
+    private int[] termCoefficients = new int[16];
+
+    private int numBranches;
+    private int[] branchKeys = new int[16];
+    private int[] branchTermOffsets = new int[]{0};
+    private int[] branchTermSlots = new int[16];
+    private int[] branchTermCoefficients = new int[16];
+
+    /**
+     * @return the index of a new slot in the probe array
+     */
+    public int addSlot() {
+        return numSlots++;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * @param lineNumbers lines of the block. A line that appears twice is counted twice.
+     * @param slot        the slot that counts the block
+     */
+    public void addBlock(int[] lineNumbers, int slot) {
+        addBlock(lineNumbers, new int[]{slot}, new int[]{1});
+    }
+
+    /**
+     * @param lineNumbers  lines of the block. A line that appears twice is counted twice.
+     * @param slots        the slots the block count is derived from
+     * @param coefficients what each slot is multiplied with
+     */
+    public void addBlock(int[] lineNumbers, int[] slots, int[] coefficients) {
+        int lineStart = lineOffsets[numBlocks];
+        int termStart = termOffsets[numBlocks];
+        this.lineNumbers = ensureCapacity(this.lineNumbers, lineStart + lineNumbers.length);
+        System.arraycopy(lineNumbers, 0, this.lineNumbers, lineStart, lineNumbers.length);
+        termSlots = ensureCapacity(termSlots, termStart + slots.length);
+        System.arraycopy(slots, 0, termSlots, termStart, slots.length);
+        termCoefficients = ensureCapacity(termCoefficients, termStart + slots.length);
+        System.arraycopy(coefficients, 0, termCoefficients, termStart, slots.length);
+
+        numBlocks++;
+        lineOffsets = ensureCapacity(lineOffsets, numBlocks + 1);
+        lineOffsets[numBlocks] = lineStart + lineNumbers.length;
+        termOffsets = ensureCapacity(termOffsets, numBlocks + 1);
+        termOffsets[numBlocks] = termStart + slots.length;
+    }
+
+    /**
+     * @param key  identifies the branch outcome, see {@link SkybarRegistry#branchKey(int, int)}
+     * @param slot the slot that counts the outcome
+     */
+    public void addBranch(int key, int slot) {
+        addBranch(key, new int[]{slot}, new int[]{1});
+    }
+
+    /**
+     * @param key          identifies the branch outcome, see {@link SkybarRegistry#branchKey(int, int)}
+     * @param slots        the slots the outcome count is derived from
+     * @param coefficients what each slot is multiplied with
+     */
+    public void addBranch(int key, int[] slots, int[] coefficients) {
+        int termStart = branchTermOffsets[numBranches];
+        branchKeys = ensureCapacity(branchKeys, numBranches + 1);
+        branchKeys[numBranches] = key;
+        branchTermSlots = ensureCapacity(branchTermSlots, termStart + slots.length);
+        System.arraycopy(slots, 0, branchTermSlots, termStart, slots.length);
+        branchTermCoefficients = ensureCapacity(branchTermCoefficients, termStart + slots.length);
+        System.arraycopy(coefficients, 0, branchTermCoefficients, termStart, slots.length);
+
+        numBranches++;
+        branchTermOffsets = ensureCapacity(branchTermOffsets, numBranches + 1);
+        branchTermOffsets[numBranches] = termStart + slots.length;
+    }
+
+    /**
+     * Writes the layout in the form {@link #readFrom(ByteBuffer)} reads, so it can be cached with the class it was
+     * built for.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numSlots);
+        out.writeInt(numBlocks);
+        for (int block = 0; block < numBlocks; block++) {
+            out.writeInt(lineOffsets[block + 1] - lineOffsets[block]);
+            for (int i = lineOffsets[block]; i < lineOffsets[block + 1]; i++) {
+                out.writeInt(lineNumbers[i]);
+            }
+            out.writeInt(termOffsets[block + 1] - termOffsets[block]);
+            for (int t = termOffsets[block]; t < termOffsets[block + 1]; t++) {
+                out.writeInt(termSlots[t]);
+                out.writeInt(termCoefficients[t]);
+            }
+        }
+        out.writeInt(numBranches);
+        for (int branch = 0; branch < numBranches; branch++) {
+            out.writeInt(branchKeys[branch]);
+            out.writeInt(branchTermOffsets[branch + 1] - branchTermOffsets[branch]);
+            for (int t = branchTermOffsets[branch]; t < branchTermOffsets[branch + 1]; t++) {
+                out.writeInt(branchTermSlots[t]);
+                out.writeInt(branchTermCoefficients[t]);
+            }
+        }
+    }
+
+    /**
+     * @param in positioned at a layout written by {@link #writeTo(DataOutput)}, and left just after it
+     */
+    public static ProbeArrayLayout readFrom(ByteBuffer in) {
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        layout.numSlots = in.getInt();
+        int numBlocks = in.getInt();
+        for (int block = 0; block < numBlocks; block++) {
+            int[] lines = new int[in.getInt()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = in.getInt();
+            }
+            int[] slots = new int[in.getInt()];
+            int[] coefficients = new int[slots.length];
+            for (int t = 0; t < slots.length; t++) {
+                slots[t] = in.getInt();
+                coefficients[t] = in.getInt();
+            }
+            layout.addBlock(lines, slots, coefficients);
+        }
+        int numBranches = in.getInt();
+        for (int branch = 0; branch < numBranches; branch++) {
+            int key = in.getInt();
+            int[] slots = new int[in.getInt()];
+            int[] coefficients = new int[slots.length];
+            for (int t = 0; t < slots.length; t++) {
+                slots[t] = in.getInt();
+                coefficients[t] = in.getInt();
+            }
+            layout.addBranch(key, slots, coefficients);
+        }
+        return layout;
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+
+    /**
+     * @return the lines of all blocks, in the order they were added
+     */
+    public int[] getLineNumbers() {
+        return Arrays.copyOf(lineNumbers, lineOffsets[numBlocks]);
+    }
+
+    int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * @return where the lines of each block start in {@link #getLineNumbers()}, followed by the number of lines
+     */
+    int[] getLineOffsets() {
+        return Arrays.copyOf(lineOffsets, numBlocks + 1);
+    }
+
+    /**
+     * @return where the slots and coefficients of each block start, followed by the number of terms
+     */
+    int[] getTermOffsets() {
+        return Arrays.copyOf(termOffsets, numBlocks + 1);
+    }
+
+    int[] getTermSlots() {
+        return Arrays.copyOf(termSlots, termOffsets[numBlocks]);
+    }
+
+    int[] getTermCoefficients() {
+        return Arrays.copyOf(termCoefficients, termOffsets[numBlocks]);
+    }
+
+    /**
+     * @return the key of each branch outcome, in the order they were added
+     */
+    int[] getBranchKeys() {
+        return Arrays.copyOf(branchKeys, numBranches);
+    }
+
+    /**
+     * @return where the slots and coefficients of each branch outcome start, followed by the number of terms
+     */
+    int[] getBranchTermOffsets() {
+        return Arrays.copyOf(branchTermOffsets, numBranches + 1);
+    }
+
+    int[] getBranchTermSlots() {
+        return Arrays.copyOf(branchTermSlots, branchTermOffsets[numBranches]);
+    }
+
+    int[] getBranchTermCoefficients() {
+        return Arrays.copyOf(branchTermCoefficients, branchTermOffsets[numBranches]);
+    }
+}
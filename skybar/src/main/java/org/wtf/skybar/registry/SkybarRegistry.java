@@ -1,22 +1,47 @@
 package org.wtf.skybar.registry;
 
 import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
 import net.openhft.koloboke.collect.map.hash.HashIntLongMap;
 import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.lang.invoke.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 /**
  * Handles accumulating line visits and distributing deltas to any registered listeners.
+ *
+ * Source files are interned into compact int ids when their classes are transformed. Probes, counters and deltas are
+ * all keyed by id; the source names are only needed again when results are serialized.
+ *
+ * With branch coverage the outcomes of jumps and switches are counted too. They are published next to the lines of
+ * their source, under negative keys that encode the line and the outcome, see {@link #branchKey(int, int)}. Consumers
+ * that only know about lines can skip the negative keys.
+ *
+ * With allocation counting the objects and arrays allocated on each line are counted, and the bytes of the arrays
+ * estimated, under negative keys of their own below those of the branches, see {@link #allocationKey(int)}.
+ *
+ * With method timing the latency of every call of an instrumented method is recorded too, and the percentiles of the
+ * methods that ran are handed to the {@link TimingListener}s on every delta pass. With the call graph, every call
+ * is counted by the line it is made from and the method it calls, see {@link #getCallGraph()}. With lock contention
+ * accounting, how long each line waited to enter its monitors is recorded the same way as method latencies, and handed
+ * to the contention listeners.
+ *
+ * In sampling mode classes get no probes at all. Their lines are registered as usual, and a sampler counts the line each
+ * thread is seen running into the same counters, so the deltas look the same as with probes. See
+ * {@link #visitSampledLine(String, int)}.
  */
 @ThreadSafe
 public class SkybarRegistry {
@@ -25,93 +50,651 @@ public class SkybarRegistry {
 
     private static MethodHandle addMethodHandle;
     private static MethodHandle incrementMethodHandle;
+    private static MethodHandle incrementKeyedMethodHandle;
+    private static MethodHandle recordTimeMethodHandle;
+    private static MethodHandle countArrayMethodHandle;
+
+    /**
+     * Highest line number a class file can have
+     */
+    public static final int MAX_LINE_NUMBER = 0xFFFF;
+
+    /**
+     * How many outcomes the branches of a class can have on a single line; further ones aren't counted
+     */
+    public static final int MAX_BRANCH_OUTCOMES_PER_LINE = 256;
+
+    /**
+     * Lowest branch key; allocation keys are below it
+     */
+    private static final int MIN_BRANCH_KEY = branchKey(MAX_LINE_NUMBER, MAX_BRANCH_OUTCOMES_PER_LINE - 1);
+
+    /**
+     * Estimated size of an array header, as with compressed class pointers on a 64 bit JVM
+     */
+    private static final int ARRAY_HEADER_BYTES = 16;
 
     static {
         try {
             addMethodHandle = MethodHandles.lookup()
-                    .findVirtual(LongAdder.class,
-                            "add", MethodType.methodType(void.class, new Class[]{long.class}));
+                    .findVirtual(LineCounters.class,
+                            "add", MethodType.methodType(void.class, new Class[]{int.class, long.class}));
 
             incrementMethodHandle = MethodHandles.lookup()
-                    .findVirtual(LongAdder.class,
-                            "increment", MethodType.methodType(void.class, new Class[]{}));
+                    .findVirtual(LineCounters.class,
+                            "increment", MethodType.methodType(void.class, new Class[]{int.class}));
+
+            incrementKeyedMethodHandle = MethodHandles.lookup()
+                    .findVirtual(KeyedCounters.class,
+                            "increment", MethodType.methodType(void.class, new Class[]{int.class}));
+
+            recordTimeMethodHandle = MethodHandles.lookup()
+                    .findVirtual(MethodTimer.class,
+                            "record", MethodType.methodType(void.class, new Class[]{long.class}));
+
+            countArrayMethodHandle = MethodHandles.lookup()
+                    .findStatic(SkybarRegistry.class, "countArray",
+                            MethodType.methodType(void.class, KeyedCounters.class, int.class, int.class, int.class));
         } catch (NoSuchMethodException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private final ConcurrentMap<String, Map<Integer, LongAdder>> visits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SourceLines> sourcesByName = new ConcurrentHashMap<>();
+    /**
+     * Indexed by source id. Grown under the sourcesByName lock, and re-assigned on every new source to publish it.
+     */
+    private volatile SourceLines[] sources = new SourceLines[64];
+    private int numSources;
+    /**
+     * Segments with counts that changed since the last delta pass, so a pass only looks at what changed
+     */
+    private final Queue<CounterSegment> dirtySegments = new ConcurrentLinkedQueue<>();
+    /**
+     * Indexed by probe array id. Grown under its own lock, and re-assigned on every new array to publish it.
+     */
+    private volatile ProbeArray[] probeArrays = new ProbeArray[64];
+    private int numProbeArrays;
+    private final Object probeArrayLock = new Object();
+    /**
+     * Ids of the probe arrays that instrumented classes look up by key. Only written under probeArrayLock.
+     */
+    private final ConcurrentMap<String, Integer> probeArrayIdsByKey = new ConcurrentHashMap<>();
+    /**
+     * Branch counters of the classes with invokedynamic probes, by the same kind of key as the probe arrays
+     */
+    private final ConcurrentMap<String, KeyedCounters> branchCountersByKey = new ConcurrentHashMap<>();
+    /**
+     * Allocation counters of the instrumented classes, by the same kind of key as the probe arrays
+     */
+    private final ConcurrentMap<String, KeyedCounters> allocationCountersByKey = new ConcurrentHashMap<>();
+    /**
+     * Latency histograms, by method name
+     */
+    private final ConcurrentMap<String, MethodTimer> timersByMethod = new ConcurrentHashMap<>();
+    /**
+     * Monitor wait histograms, by source id and line packed into a long
+     */
+    private final ConcurrentMap<Long, MethodTimer> monitorTimersByLine = new ConcurrentHashMap<>();
+    /**
+     * Source ids of the classes that are sampled rather than instrumented, by class name as in stack traces
+     */
+    private final ConcurrentMap<String, Integer> sampledSourceIds = new ConcurrentHashMap<>();
+    private final CallGraph callGraph = new CallGraph();
     private final ConcurrentMap<String, ClassLoader> classLoaderBySourceFile = new ConcurrentHashMap<>();
 
     private final List<DeltaListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<TimingListener> timingListeners = new CopyOnWriteArrayList<>();
+    private final List<TimingListener> contentionListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Sequence number of the last delta handed to the listeners. Starts from the time the registry was created, in
+     * microseconds, so the numbers of a restarted agent don't go on from those of the one before.
+     */
+    private long deltaSequence = System.currentTimeMillis() * 1000;
+
+    private volatile boolean coverageOnly;
+    private volatile boolean branchCoverage;
+    private volatile boolean methodTiming;
+    private volatile boolean callGraphEnabled;
+    private volatile boolean allocationCounting;
+    private volatile boolean lockContention;
+    private volatile boolean sampling;
+
+    private volatile boolean enabled = true;
+    private volatile SwitchPoint probeSwitchPoint = new SwitchPoint();
 
     /**
-     * Can only be called once for a given source / line pair
+     * In coverage-only mode a line is only recorded as run (count 1) or not (count 0). Probes linked in this mode
+     * disable themselves after their first execution. Only affects probes that are linked after the call, so set it
+     * before any instrumented class runs.
      *
+     * @param coverageOnly true to only record whether lines ran, false to count every visit
+     */
+    public void setCoverageOnly(boolean coverageOnly) {
+        this.coverageOnly = coverageOnly;
+    }
+
+    public boolean isCoverageOnly() {
+        return coverageOnly;
+    }
+
+    /**
+     * Only affects classes instrumented after the call, so set it before any are.
+     *
+     * @param branchCoverage true to count how often each outcome of a jump or switch is taken, next to the lines
+     */
+    public void setBranchCoverage(boolean branchCoverage) {
+        this.branchCoverage = branchCoverage;
+    }
+
+    public boolean isBranchCoverage() {
+        return branchCoverage;
+    }
+
+    /**
+     * Only affects classes instrumented after the call, so set it before any are. Timed methods read the clock on entry
+     * even while probes are switched off, so leave it off unless the latencies are needed.
+     *
+     * @param methodTiming true to record how long every call of an instrumented method takes
+     */
+    public void setMethodTiming(boolean methodTiming) {
+        this.methodTiming = methodTiming;
+    }
+
+    public boolean isMethodTiming() {
+        return methodTiming;
+    }
+
+    /**
+     * Only affects classes instrumented after the call, so set it before any are.
+     *
+     * @param callGraph true to count the calls each line makes to each method it calls
+     */
+    public void setCallGraph(boolean callGraph) {
+        this.callGraphEnabled = callGraph;
+    }
+
+    public boolean isCallGraph() {
+        return callGraphEnabled;
+    }
+
+    /**
+     * Only affects classes instrumented after the call, so set it before any are.
+     *
+     * @param allocationCounting true to count the objects and arrays each line allocates, see
+     *                           {@link #allocationKey(int)}
+     */
+    public void setAllocationCounting(boolean allocationCounting) {
+        this.allocationCounting = allocationCounting;
+    }
+
+    public boolean isAllocationCounting() {
+        return allocationCounting;
+    }
+
+    /**
+     * Only affects classes instrumented after the call, so set it before any are. Monitor probes read the clock even
+     * while probes are switched off, like timed methods.
+     *
+     * @param lockContention true to record how long every monitor enter and synchronized method waits for its lock,
+     *                       by line
+     */
+    public void setLockContention(boolean lockContention) {
+        this.lockContention = lockContention;
+    }
+
+    public boolean isLockContention() {
+        return lockContention;
+    }
+
+    /**
+     * Only affects classes transformed after the call, so set it before any are. Sampled classes aren't changed, so
+     * branches, timings, calls, allocations and monitor waits aren't recorded for them whatever else is set.
+     *
+     * @param sampling true to leave classes as they are and only register their lines, for a sampler to count with
+     *                 {@link #visitSampledLine(String, int)}
+     */
+    public void setSampling(boolean sampling) {
+        this.sampling = sampling;
+    }
+
+    public boolean isSampling() {
+        return sampling;
+    }
+
+    /**
+     * @return how often each line called each method, for the calls that ran at least once. Unlike line counts these
+     * are read live, not as of the last delta pass.
+     */
+    public List<CallEdge> getCallGraph() {
+        return callGraph.getEdges();
+    }
+
+    /**
+     * @param lineNumber line of the jump or switch
+     * @param outcome    number of the outcome among the outcomes of the branches on the line in the same class, from 0
+     *                   up to {@link #MAX_BRANCH_OUTCOMES_PER_LINE}. The outcomes of a jump are "not taken" and then
+     *                   "taken"; those of a switch are the default and then each other target, in table order.
+     * @return the key the outcome is published under, which is always negative
+     */
+    public static int branchKey(int lineNumber, int outcome) {
+        return -(lineNumber * MAX_BRANCH_OUTCOMES_PER_LINE + outcome) - 1;
+    }
+
+    /**
+     * @return true if the key of a published count is a branch key, false if it is a line number
+     */
+    public static boolean isBranchKey(int key) {
+        return key < 0 && key >= MIN_BRANCH_KEY;
+    }
+
+    /**
+     * @param branchKey key from {@link #branchKey(int, int)}
+     * @return the line of the branch
+     */
+    public static int branchLine(int branchKey) {
+        return (-branchKey - 1) / MAX_BRANCH_OUTCOMES_PER_LINE;
+    }
+
+    /**
+     * @param branchKey key from {@link #branchKey(int, int)}
+     * @return the number of the outcome on its line
+     */
+    public static int branchOutcome(int branchKey) {
+        return (-branchKey - 1) % MAX_BRANCH_OUTCOMES_PER_LINE;
+    }
+
+    /**
+     * @param lineNumber line of the allocations
+     * @return the key the number of objects and arrays allocated on the line is published under, which is always
+     * negative and below every branch key
+     */
+    public static int allocationKey(int lineNumber) {
+        return MIN_BRANCH_KEY - 1 - 2 * lineNumber;
+    }
+
+    /**
+     * @param lineNumber line of the allocations
+     * @return the key the estimated bytes of the arrays allocated on the line are published under, right below its
+     * {@link #allocationKey(int)}. Objects aren't sized, their classes may not even be loaded yet.
+     */
+    public static int arrayBytesKey(int lineNumber) {
+        return allocationKey(lineNumber) - 1;
+    }
+
+    /**
+     * @return true if the key of a published count is an {@link #allocationKey(int)} or an {@link #arrayBytesKey(int)}
+     */
+    public static boolean isAllocationKey(int key) {
+        return key < MIN_BRANCH_KEY;
+    }
+
+    /**
+     * @param key key for which {@link #isAllocationKey(int)} is true
+     * @return true if it is an {@link #arrayBytesKey(int)}, false if it is an {@link #allocationKey(int)}
+     */
+    public static boolean isArrayBytesKey(int key) {
+        return ((MIN_BRANCH_KEY - 1 - key) & 1) == 1;
+    }
+
+    /**
+     * @param key key for which {@link #isAllocationKey(int)} is true
+     * @return the line of the allocations
+     */
+    public static int allocationLine(int key) {
+        return (MIN_BRANCH_KEY - 1 - key) / 2;
+    }
+
+    /**
+     * Switches all probes on or off. Probes are on by default.
+     *
+     * Invokedynamic probes are guarded by a {@link SwitchPoint} that is invalidated on every switch, so switched off
+     * they compile down to nothing and switched on they cost what they did before. Probe arrays are plain array
+     * increments that can't be switched off; what they count while probes are off is discarded instead.
+     *
+     * @param enabled true to record visits, false to ignore them
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled == this.enabled) {
+            return;
+        }
+        if (enabled) {
+            discardProbeArrays();
+        } else {
+            // Publish what the arrays counted up to now with the next delta
+            harvestProbeArrays();
+        }
+
+        SwitchPoint previous = probeSwitchPoint;
+        this.enabled = enabled;
+        probeSwitchPoint = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[]{previous});
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the switch point that is invalidated the next time probes are switched on or off
+     */
+    SwitchPoint getProbeSwitchPoint() {
+        return probeSwitchPoint;
+    }
+
+    /**
      * @param sourceName path to source file
-     * @param lineNumber line number
+     * @return the id of the source file, allocated on the first call for a given name
      */
-    public void registerLine(String sourceName, int lineNumber) {
-        Map<Integer, LongAdder> lines = visits.get(sourceName);
+    public int internSource(String sourceName) {
+        SourceLines lines = sourcesByName.get(sourceName);
         if(lines == null) {
-            Map<Integer, LongAdder> newLines = new ConcurrentHashMap<>();
-            Map<Integer, LongAdder> existingLines = visits.putIfAbsent(sourceName, newLines);
-            lines = existingLines != null ? existingLines : newLines;
+            synchronized (sourcesByName) {
+                lines = sourcesByName.get(sourceName);
+                if(lines == null) {
+                    int sourceId = numSources++;
+                    SourceLines[] current = sources;
+                    if(sourceId == current.length) {
+                        current = Arrays.copyOf(current, current.length * 2);
+                    }
+                    lines = new SourceLines(sourceId, sourceName, dirtySegments);
+                    current[sourceId] = lines;
+                    sources = current;
+                    sourcesByName.put(sourceName, lines);
+                }
+            }
         }
-        lines.putIfAbsent(lineNumber, new LongAdder());
+        return lines.getSourceId();
     }
 
     /**
-     * Can only be called after registerLine has been called for the same line
-     * @param sourceName name of the source file
-     * @param lineNumber the line number to get the LongAdder for
-     * @return the LongAdder used to accumulate visit counts for the line
+     * @param sourceId id from {@link #internSource(String)}
+     * @return path to the source file
+     */
+    public String getSourceName(int sourceId) {
+        return sources[sourceId].getSourceName();
+    }
+
+    /**
+     * Registers a single line. Prefer {@link #registerLines(int, int[])}, which lays out all the lines of a class in
+     * one dense table.
+     *
+     * @param sourceId   id from {@link #internSource(String)}
+     * @param lineNumber line number
      */
-    public LongAdder getAdderForLine(String sourceName, int lineNumber) {
-        return visits.get(sourceName).get(lineNumber);
+    public void registerLine(int sourceId, int lineNumber) {
+        registerLines(sourceId, new int[]{lineNumber});
     }
 
     /**
-     * @param prev map containing the previously accumulated line visits
+     * Registers a batch of lines, typically all the lines of one class as known at transform time. Lines that are
+     * already registered keep their existing counters.
+     *
+     * @param sourceId    id from {@link #internSource(String)}
+     * @param lineNumbers line numbers, in any order
      */
-    public void updateListeners(Map<String, IntLongMap> prev) {
-        Map<String, IntLongMap> delta = new HashMap<>();
-        for (Map.Entry<String, Map<Integer, LongAdder>> sourceLines : visits.entrySet()) {
+    public void registerLines(int sourceId, int[] lineNumbers) {
+        sources[sourceId].register(lineNumbers);
+    }
 
-            String sourceName = sourceLines.getKey();
-            Map<Integer, LongAdder> currentLines = sourceLines.getValue();
+    /**
+     * Counts one visit of a line. Used by probes in classes that can't use invokedynamic, so this is on the hot path.
+     * Can only be called after registerLine has been called for the same line.
+     *
+     * @param sourceId   id of the source file
+     * @param lineNumber the line number that was visited
+     */
+    public void visitLine(int sourceId, int lineNumber) {
+        LineCounters counters = getCountersForLine(sourceId, lineNumber);
+        if(coverageOnly) {
+            counters.mark(lineNumber);
+        } else {
+            counters.increment(lineNumber);
+        }
+    }
 
-            IntLongMap prevLines = prev.get(sourceName);
+    /**
+     * Like {@link #visitLine(int, int)}, but for any number of visits.
+     *
+     * @param sourceId   id of the source file
+     * @param lineNumber the line number that was visited
+     * @param visits     number of visits
+     */
+    public void visitLine(int sourceId, int lineNumber, long visits) {
+        LineCounters counters = getCountersForLine(sourceId, lineNumber);
+        if(!coverageOnly) {
+            counters.add(lineNumber, visits);
+        } else if(visits > 0) {
+            counters.mark(lineNumber);
+        }
+    }
 
+    /**
+     * Registers the lines of a class that is sampled rather than instrumented, see {@link #setSampling(boolean)}.
+     *
+     * @param className   binary name of the class as in stack traces, as in "com.foo.Bar$Baz"
+     * @param sourceId    id from {@link #internSource(String)}
+     * @param lineNumbers line numbers of the class, in any order
+     */
+    public void registerSampledClass(String className, int sourceId, int[] lineNumbers) {
+        registerLines(sourceId, lineNumbers);
+        sampledSourceIds.put(className, sourceId);
+    }
 
-            if(prevLines == null) {
-                IntLongMap map = HashIntLongMaps.newMutableMap();
-                delta.put(sourceName, map);
-                prev.put(sourceName, map);
-                currentLines.forEach((lnum, adder) -> map.put(lnum.intValue(), adder.longValue()));
-            } else {
-                currentLines.forEach((lnum, adder) -> {
-                    long count = adder.longValue();
-                    long prevCount = prevLines.getOrDefault(lnum.intValue(), 0l);
-                    long diff = count - prevCount;
-                    if(diff > 0) {
-                        IntLongMap deltaForSource = delta.get(sourceName);
-                        if(deltaForSource == null) {
-                            delta.put(sourceName, deltaForSource = HashIntLongMaps.newMutableMap());
-                        }
-                        deltaForSource.put(lnum.intValue(), diff);
-                        prev.get(sourceName).put(lnum.intValue(), count);
-                    }
-                });
+    /**
+     * Counts one sample of a thread running a line, like a probe would count a visit. A sampler calls this for the
+     * frames of a stack from the top down, until one is counted, so a sample goes to the innermost line of a sampled
+     * class, whatever it called that wasn't sampled.
+     *
+     * @param className  binary name of the class of the frame, as in "com.foo.Bar$Baz"
+     * @param lineNumber line of the frame
+     * @return true if the line was counted, false if the frame isn't in a registered line of a sampled class
+     */
+    public boolean visitSampledLine(String className, int lineNumber) {
+        Integer sourceId = sampledSourceIds.get(className);
+        if(sourceId == null || lineNumber <= 0) {
+            return false;
+        }
+        LineCounters counters = getCountersForLine(sourceId, lineNumber);
+        if(counters == null) {
+            return false;
+        }
+        if(coverageOnly) {
+            counters.mark(lineNumber);
+        } else {
+            counters.increment(lineNumber);
+        }
+        return true;
+    }
+
+    /**
+     * Creates the probe array for a class instrumented with array probes. Slot i counts visits of lineNumbers[i].
+     *
+     * @param sourceId    id from {@link #internSource(String)}
+     * @param lineNumbers the line for each slot. Must already be registered with {@link #registerLines(int, int[])}.
+     * @return the id the class looks its probe array up with
+     */
+    public int registerProbeArray(int sourceId, int[] lineNumbers) {
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        for (int lineNumber : lineNumbers) {
+            layout.addBlock(new int[]{lineNumber}, layout.addSlot());
+        }
+        return registerProbeArray(sourceId, layout);
+    }
+
+    /**
+     * Creates the probe array for a class instrumented with probes per basic block or per edge, where each slot can
+     * count several lines and a line count can be derived from several slots.
+     *
+     * @param sourceId id from {@link #internSource(String)}
+     * @param layout   the slots and the blocks of lines they count. The lines must already be registered with
+     *                 {@link #registerLines(int, int[])}.
+     * @return the id the class looks its probe array up with
+     */
+    public int registerProbeArray(int sourceId, ProbeArrayLayout layout) {
+        ProbeArray probeArray = new ProbeArray(sources[sourceId], layout);
+        synchronized (probeArrayLock) {
+            int probeArrayId = numProbeArrays++;
+            ProbeArray[] current = probeArrays;
+            if(probeArrayId == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
             }
+            current[probeArrayId] = probeArray;
+            probeArrays = current;
+            return probeArrayId;
+        }
+    }
 
+    /**
+     * Like {@link #registerProbeArray(int, ProbeArrayLayout)}, but for a probe array that instrumented classes look up
+     * by key rather than by an id that is only valid in this run. Classes with the same key share a probe array, so the
+     * key must identify the instrumented class bytes, and registering a key again does nothing.
+     *
+     * @param key      identifies the instrumented class
+     * @param sourceId id from {@link #internSource(String)}
+     * @param layout   the slots and the blocks of lines they count. The lines must already be registered with
+     *                 {@link #registerLines(int, int[])}.
+     */
+    public void registerProbeArray(String key, int sourceId, ProbeArrayLayout layout) {
+        synchronized (probeArrayLock) {
+            if(!probeArrayIdsByKey.containsKey(key)) {
+                probeArrayIdsByKey.put(key, registerProbeArray(sourceId, layout));
+            }
+        }
+    }
+
+    /**
+     * Registers the branch outcomes of a class instrumented with invokedynamic probes. Classes with array probes have
+     * theirs in the {@link ProbeArrayLayout}. Like probe arrays, branch counters are looked up by key, and registering
+     * a key again does nothing.
+     *
+     * @param key        identifies the instrumented class
+     * @param sourceId   id from {@link #internSource(String)}
+     * @param branchKeys key of each outcome, see {@link #branchKey(int, int)}. The probe of an outcome refers to it by
+     *                   its index.
+     */
+    public void registerBranches(String key, int sourceId, int[] branchKeys) {
+        branchCountersByKey.computeIfAbsent(key, k -> sources[sourceId].registerKeyed(branchKeys));
+    }
+
+    /**
+     * Registers the allocation counters of a class. Like probe arrays, they are looked up by key, and registering a key
+     * again does nothing.
+     *
+     * @param key            identifies the instrumented class
+     * @param sourceId       id from {@link #internSource(String)}
+     * @param allocationKeys key of each counter, see {@link #allocationKey(int)} and {@link #arrayBytesKey(int)}. The
+     *                       probe of an allocation refers to its count by index; the bytes of an array are counted at
+     *                       the next index.
+     */
+    public void registerAllocations(String key, int sourceId, int[] allocationKeys) {
+        allocationCountersByKey.computeIfAbsent(key, k -> sources[sourceId].registerKeyed(allocationKeys));
+    }
+
+    /**
+     * Called once per instrumented class, the first time one of its array probes runs.
+     *
+     * @param probeArrayId id from {@link #registerProbeArray(int, int[])}
+     * @return the array the class counts its line visits in
+     */
+    public long[] getProbeArray(int probeArrayId) {
+        return probeArrays[probeArrayId].getProbes();
+    }
+
+    /**
+     * @param key key from {@link #registerProbeArray(String, int, ProbeArrayLayout)}
+     * @return the array the class counts its line visits in
+     */
+    public long[] getProbeArray(String key) {
+        return getProbeArray(probeArrayIdsByKey.get(key));
+    }
+
+    private LineCounters getCountersForLine(int sourceId, int lineNumber) {
+        return sources[sourceId].countersFor(lineNumber);
+    }
+
+    /**
+     * Publishes the changes since the last call. Only the segments that were written to since then are scanned, and
+     * newly registered lines are published once with their current count, even if that is 0.
+     *
+     * Probe arrays can't flag themselves as dirty, so all of them are harvested into their segments first.
+     */
+    public synchronized void updateListeners() {
+        if (enabled) {
+            harvestProbeArrays();
+        } else {
+            discardProbeArrays();
+        }
+
+        // Take only what is queued now; segments that get dirty again while we scan are for the next pass
+        List<CounterSegment> segments = new ArrayList<>();
+        CounterSegment dirty;
+        while((dirty = dirtySegments.poll()) != null) {
+            segments.add(dirty);
+        }
+
+        // A new map every pass, listeners may keep it
+        IntObjMap<IntLongMap> delta = HashIntObjMaps.newMutableMap();
+        for (CounterSegment segment : segments) {
+            segment.clearDirty();
+
+            int sourceId = segment.getSource().getSourceId();
+            segment.publish((int lnum, long diff) -> {
+                IntLongMap deltaForSource = delta.get(sourceId);
+                if(deltaForSource == null) {
+                    delta.put(sourceId, deltaForSource = HashIntLongMaps.newMutableMap());
+                }
+                // Branches of two classes of a source can share a key
+                deltaForSource.addValue(lnum, diff);
+            });
         }
 
         if(!delta.isEmpty()) {
+            deltaSequence++;
             for (DeltaListener listener : listeners) {
                 listener.accept(delta);
             }
         }
+
+        publishTimings();
+    }
+
+    private void publishTimings() {
+        publishTimings(timersByMethod.values(), timingListeners);
+        publishTimings(monitorTimersByLine.values(), contentionListeners);
+    }
+
+    private static void publishTimings(Collection<MethodTimer> timers, List<TimingListener> timingListeners) {
+        List<MethodLatency> changed = new ArrayList<>();
+        for (MethodTimer timer : timers) {
+            if(timer.harvest()) {
+                changed.add(timer.getLatency());
+            }
+        }
+        if(!changed.isEmpty()) {
+            for (TimingListener listener : timingListeners) {
+                listener.accept(changed);
+            }
+        }
+    }
+
+    private void harvestProbeArrays() {
+        boolean coverageOnly = isCoverageOnly();
+        for (ProbeArray probeArray : probeArrays) {
+            if(probeArray == null) {
+                break;
+            }
+            probeArray.harvest(coverageOnly);
+        }
+    }
+
+    private void discardProbeArrays() {
+        for (ProbeArray probeArray : probeArrays) {
+            if(probeArray == null) {
+                break;
+            }
+            probeArray.discard();
+        }
     }
 
     /**
@@ -121,28 +704,124 @@ public class SkybarRegistry {
      * @param deltaListener the listener to be called when a delta is available
      * @return the current accumulated state
      */
-    public synchronized Map<String, IntLongMap> getCurrentSnapshot(DeltaListener deltaListener) {
+    public synchronized IntObjMap<IntLongMap> getCurrentSnapshot(DeltaListener deltaListener) {
         listeners.add(deltaListener);
-        Map<String, IntLongMap> snapshot = new HashMap<>();
-        visits.forEach((source, lines) -> {
+        return snapshotOf(sourceId -> true);
+    }
+
+    /**
+     * Like {@link #getCurrentSnapshot(DeltaListener)}, but hands the snapshot to the consumer before the listener can
+     * get a delta, so whatever the consumer does with it comes before the first delta
+     */
+    public synchronized void getCurrentSnapshot(DeltaListener deltaListener,
+                                                Consumer<IntObjMap<IntLongMap>> snapshotConsumer) {
+        snapshotConsumer.accept(getCurrentSnapshot(deltaListener));
+    }
+
+    /**
+     * Hands the consumer the current state of some sources, between two deltas. A listener that changes what it
+     * listens to in the consumer gets every delta either in the state or after it, never lost between the two.
+     *
+     * @param sourceIds which sources to include, by id
+     */
+    public synchronized void getCurrentSnapshotOf(IntPredicate sourceIds,
+                                                  Consumer<IntObjMap<IntLongMap>> snapshotConsumer) {
+        snapshotConsumer.accept(snapshotOf(sourceIds));
+    }
+
+    private IntObjMap<IntLongMap> snapshotOf(IntPredicate sourceIds) {
+        IntObjMap<IntLongMap> snapshot = HashIntObjMaps.newMutableMap();
+        sourcesByName.values().forEach(lines -> {
+            if(!sourceIds.test(lines.getSourceId())) {
+                return;
+            }
             HashIntLongMap map = HashIntLongMaps.newMutableMap();
-            snapshot.put(source, map);
-            lines.forEach((line, adder) -> map.put(line.intValue(), adder.longValue()));
+            lines.forEachPublished(map::addValue);
+            if(!map.isEmpty()) {
+                snapshot.put(lines.getSourceId(), map);
+            }
         });
         return snapshot;
     }
 
+    /**
+     * @return sequence number of the last delta handed to the listeners, or of the current snapshot; every delta has
+     * the number after the one before it. A listener can call it while it is handed a delta, to get the number of that
+     * delta.
+     */
+    public synchronized long getDeltaSequence() {
+        return deltaSequence;
+    }
+
+    /**
+     * Register a listener for future deltas, for listeners that get their snapshots by
+     * {@link #getCurrentSnapshotOf(IntPredicate, Consumer)}
+     *
+     * @return sequence number of the last delta before the first one the listener gets
+     */
+    public synchronized long registerListener(DeltaListener listener) {
+        listeners.add(listener);
+        return deltaSequence;
+    }
+
     public synchronized void unregisterListener(DeltaListener listener) {
         listeners.remove(listener);
     }
 
+    /**
+     * Get the latency of every method that has run (as of the last updateListeners()) and register a listener for the
+     * methods that run after that
+     *
+     * @param timingListener the listener to be called with the methods that ran since the last delta pass
+     * @return the latency of every method that ran so far
+     */
+    public synchronized List<MethodLatency> getCurrentTimings(TimingListener timingListener) {
+        timingListeners.add(timingListener);
+        return latenciesOf(timersByMethod.values());
+    }
+
+    public synchronized void unregisterTimingListener(TimingListener timingListener) {
+        timingListeners.remove(timingListener);
+    }
+
+    /**
+     * Like {@link #getCurrentTimings(TimingListener)}, but for the time lines waited to enter monitors, see
+     * {@link #setLockContention(boolean)}. Each {@link MethodLatency} is that of a line, and names the method the line
+     * is in.
+     *
+     * @param contentionListener the listener to be called with the lines that entered monitors since the last delta
+     *                           pass
+     * @return the monitor waits of every line that entered a monitor so far
+     */
+    public synchronized List<MethodLatency> getCurrentContention(TimingListener contentionListener) {
+        contentionListeners.add(contentionListener);
+        return latenciesOf(monitorTimersByLine.values());
+    }
+
+    public synchronized void unregisterContentionListener(TimingListener contentionListener) {
+        contentionListeners.remove(contentionListener);
+    }
+
+    private static List<MethodLatency> latenciesOf(Collection<MethodTimer> timers) {
+        List<MethodLatency> latencies = new ArrayList<>();
+        for (MethodTimer timer : timers) {
+            MethodLatency latency = timer.getLatency();
+            if(latency.getCount() > 0) {
+                latencies.add(latency);
+            }
+        }
+        return latencies;
+    }
+
     /**
      * Invoke Dynamic bootstrap method called once per line callsite. Takes the source name and line number as "extra" bootstrap parameters
-     * and returns a CallSite with a method handle for the add method of the LongAdder for that line
+     * and returns a CallSite with a method handle that increments that line's slot in its counter table. In coverage-only
+     * mode the CallSite instead marks the line once and then turns itself into a no-op. Either way the CallSite does
+     * nothing while probes are switched off, see {@link #setEnabled(boolean)}.
      * @param lookup factory for creating MethodHandles
      * @param name name of the method (unused)
      * @param type signature of the indy method
-     * @param sourceName source file name
+     * @param sourceName source file, interned once per call site
      * @param lineNumber line number
      * @return the cal site
      * @throws NoSuchMethodException
@@ -150,13 +829,19 @@ public class SkybarRegistry {
      */
     @SuppressWarnings("unused")
     public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String sourceName, int lineNumber) throws NoSuchMethodException, IllegalAccessException {
-        LongAdder adder = registry.getAdderForLine(sourceName, lineNumber);
-        MethodHandle increment = incrementMethodHandle
-                .bindTo(adder);
+        LineCounters counters = registry.getCountersForLine(registry.internSource(sourceName), lineNumber);
+        if(registry.isCoverageOnly()) {
+            return new HitOnceCallSite(type, counters, lineNumber, registry);
+        }
+        MethodHandle increment = MethodHandles.insertArguments(incrementMethodHandle.bindTo(counters), 0, lineNumber);
 
-        return new ConstantCallSite(increment);
+        return new SwitchableCallSite(type, increment, registry);
     }
 
+    /**
+     * Like {@link #bootstrap}, but the call site takes the number of visits to add as a long argument. Used to report
+     * visits counted in local variables when a method exits.
+     */
     @SuppressWarnings("unused")
     public static CallSite bootstrapMulti(MethodHandles.Lookup lookup,
                                           String name,
@@ -164,12 +849,141 @@ public class SkybarRegistry {
                                           String sourceName,
                                           int lineNumber) throws NoSuchMethodException, IllegalAccessException {
 
-        LongAdder adder = registry.getAdderForLine(sourceName, lineNumber);
+        LineCounters counters = registry.getCountersForLine(registry.internSource(sourceName), lineNumber);
+        if(registry.isCoverageOnly()) {
+            return new HitOnceCallSite(type, counters, lineNumber, registry);
+        }
+
+        MethodHandle add = MethodHandles.insertArguments(addMethodHandle.bindTo(counters), 0, lineNumber);
+
+        return new SwitchableCallSite(type, add, registry);
+    }
+
+    /**
+     * Like {@link #bootstrap}, but for a branch outcome probe. Takes the key the class registered its branches with and
+     * the index of the outcome as "extra" bootstrap parameters.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapBranch(MethodHandles.Lookup lookup,
+                                           String name,
+                                           MethodType type,
+                                           String key,
+                                           int index) throws NoSuchMethodException, IllegalAccessException {
+
+        KeyedCounters counters = registry.branchCountersByKey.get(key);
+        if(registry.isCoverageOnly()) {
+            return new HitOnceCallSite(type, counters, index, registry);
+        }
+
+        MethodHandle increment = MethodHandles.insertArguments(incrementKeyedMethodHandle.bindTo(counters), 0, index);
+
+        return new SwitchableCallSite(type, increment, registry);
+    }
+
+    /**
+     * Invoke Dynamic bootstrap method for the probe after an object allocation, see
+     * {@link #setAllocationCounting(boolean)}. Takes the key the class registered its allocations with and the index of
+     * the count as "extra" bootstrap parameters. Allocations are always counted, even in coverage-only mode.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapAllocation(MethodHandles.Lookup lookup,
+                                               String name,
+                                               MethodType type,
+                                               String key,
+                                               int index) throws NoSuchMethodException, IllegalAccessException {
+
+        KeyedCounters counters = registry.allocationCountersByKey.get(key);
+        MethodHandle increment = MethodHandles.insertArguments(incrementKeyedMethodHandle.bindTo(counters), 0, index);
+
+        return new SwitchableCallSite(type, increment, registry);
+    }
+
+    /**
+     * Like {@link #bootstrapAllocation}, but for the probe in front of an array allocation, which takes the length of
+     * the array. Also takes the size of an element in bytes, to estimate the size of the array with.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapArrayAllocation(MethodHandles.Lookup lookup,
+                                                    String name,
+                                                    MethodType type,
+                                                    String key,
+                                                    int index,
+                                                    int elementSize)
+            throws NoSuchMethodException, IllegalAccessException {
+
+        KeyedCounters counters = registry.allocationCountersByKey.get(key);
+        MethodHandle count = MethodHandles.insertArguments(countArrayMethodHandle, 0, counters, index, elementSize);
+
+        return new SwitchableCallSite(type, count, registry);
+    }
+
+    /**
+     * Target of the array allocation probes. A negative length throws right after, but is counted as an empty array.
+     */
+    private static void countArray(KeyedCounters counters, int index, int elementSize, int length) {
+        counters.increment(index);
+        counters.add(index + 1, ARRAY_HEADER_BYTES + (long) Math.max(length, 0) * elementSize);
+    }
+
+    /**
+     * Invoke Dynamic bootstrap method for the timing probes of a method, see {@link #setMethodTiming(boolean)}. Takes the
+     * source name, the method name and its first line as "extra" bootstrap parameters, and returns a CallSite that
+     * takes the {@link System#nanoTime()} of the method's entry and records the time since then in the method's latency
+     * histogram. The histogram is shared by all the exits of the method, and by all the classes of that name.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapTimer(MethodHandles.Lookup lookup,
+                                          String name,
+                                          MethodType type,
+                                          String sourceName,
+                                          String methodName,
+                                          int lineNumber) throws NoSuchMethodException, IllegalAccessException {
+
+        int sourceId = registry.internSource(sourceName);
+        MethodTimer timer = registry.timersByMethod.computeIfAbsent(methodName,
+                k -> new MethodTimer(sourceId, methodName, lineNumber));
 
-        MethodHandle add = addMethodHandle
-                .bindTo(adder);
+        return new SwitchableCallSite(type, recordTimeMethodHandle.bindTo(timer), registry);
+    }
 
-        return new ConstantCallSite(add);
+    /**
+     * Invoke Dynamic bootstrap method for the probe after a monitor enter, see {@link #setLockContention(boolean)}.
+     * Takes the source name, the name of the method the monitor is entered in and the line as "extra" bootstrap
+     * parameters, and returns a CallSite that takes the {@link System#nanoTime()} from before the monitor enter and
+     * records the time since then in the line's histogram. All the monitors of a line share the histogram.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapMonitor(MethodHandles.Lookup lookup,
+                                            String name,
+                                            MethodType type,
+                                            String sourceName,
+                                            String methodName,
+                                            int lineNumber) throws NoSuchMethodException, IllegalAccessException {
+
+        int sourceId = registry.internSource(sourceName);
+        MethodTimer timer = registry.monitorTimersByLine.computeIfAbsent(
+                ((long) sourceId << 32) | (lineNumber & 0xFFFFFFFFL),
+                k -> new MethodTimer(sourceId, methodName, lineNumber));
+
+        return new SwitchableCallSite(type, recordTimeMethodHandle.bindTo(timer), registry);
+    }
+
+    /**
+     * Invoke Dynamic bootstrap method for the probe in front of a call, see {@link #setCallGraph(boolean)}. Takes the
+     * source name, the line of the call and the method it calls as "extra" bootstrap parameters, and returns a CallSite
+     * that counts the call. Call sites of the same line and callee share a count.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapCall(MethodHandles.Lookup lookup,
+                                         String name,
+                                         MethodType type,
+                                         String sourceName,
+                                         int lineNumber,
+                                         String callee) throws NoSuchMethodException, IllegalAccessException {
+
+        MethodHandle increment = registry.callGraph.counterFor(registry.internSource(sourceName), lineNumber, callee);
+
+        return new SwitchableCallSite(type, increment, registry);
     }
 
     public void registerClassLoader(String sourceFile, ClassLoader loader) {
@@ -181,9 +995,17 @@ public class SkybarRegistry {
     }
 
     /**
-     * Implementations should not hold on to the map that's passed in. It will be re-used, so copy data out of it if you
-     * need to keep the contents.
+     * Every delta pass passes in a new map, and the registry never touches it again, so implementations may keep it, as
+     * CoverageBroadcaster does for clients that reconnect. The same map goes to every listener, so they must not change
+     * it. The map is keyed by source id; use {@link #getSourceName(int)} to resolve them.
+     */
+    @FunctionalInterface
+    public interface DeltaListener extends Consumer<IntObjMap<IntLongMap>> {}
+
+    /**
+     * Called with the latencies of the methods that ran since the last delta pass. Each is the total since the method
+     * was first timed, as percentiles can't be added up.
      */
     @FunctionalInterface
-    public interface DeltaListener extends Consumer<Map<String, IntLongMap>> {}
+    public interface TimingListener extends Consumer<List<MethodLatency>> {}
 }
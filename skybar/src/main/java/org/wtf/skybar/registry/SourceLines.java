@@ -0,0 +1,109 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.function.IntLongConsumer;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * All the line counters for one source file. Each batch of registered lines (normally everything one class contributes)
+ * becomes a dense {@link LineCounters} segment. A source file compiled into several classes ends up with a handful of
+ * segments; a line that is already owned by an earlier segment is never counted twice.
+ *
+ * Branch and allocation counters are segments of their own, a {@link KeyedCounters} per instrumented class and kind.
+ */
+@ThreadSafe
+final class SourceLines {
+
+    private final int sourceId;
+    private final String sourceName;
+    private final Queue<CounterSegment> dirtySegments;
+    private volatile LineCounters[] segments = new LineCounters[0];
+    private volatile KeyedCounters[] keyedSegments = new KeyedCounters[0];
+
+    /**
+     * @param sourceId      id the source file was interned as
+     * @param sourceName    path to the source file
+     * @param dirtySegments where segments are queued when they are written to, shared by all the sources of a registry
+     */
+    SourceLines(int sourceId, String sourceName, Queue<CounterSegment> dirtySegments) {
+        this.sourceId = sourceId;
+        this.sourceName = sourceName;
+        this.dirtySegments = dirtySegments;
+    }
+
+    int getSourceId() {
+        return sourceId;
+    }
+
+    String getSourceName() {
+        return sourceName;
+    }
+
+    /**
+     * @param lineNumbers lines to register. Lines that are already registered are ignored.
+     */
+    synchronized void register(int[] lineNumbers) {
+        int[] newLines = Arrays.stream(lineNumbers)
+                .filter(line -> countersFor(line) == null)
+                .distinct()
+                .toArray();
+        if (newLines.length == 0) {
+            return;
+        }
+        LineCounters[] current = segments;
+        LineCounters[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new LineCounters(this, newLines);
+        segments = updated;
+        markDirty(updated[current.length]);
+    }
+
+    /**
+     * @param keys key of each counter, see {@link SkybarRegistry#branchKey(int, int)} and
+     *             {@link SkybarRegistry#allocationKey(int)}
+     * @return the counters, a segment of their own
+     */
+    synchronized KeyedCounters registerKeyed(int[] keys) {
+        KeyedCounters counters = new KeyedCounters(this, keys);
+        KeyedCounters[] current = keyedSegments;
+        KeyedCounters[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = counters;
+        keyedSegments = updated;
+        markDirty(counters);
+        return counters;
+    }
+
+    void markDirty(CounterSegment segment) {
+        dirtySegments.add(segment);
+    }
+
+    /**
+     * @return the segment that counts the line, or null if the line was never registered
+     */
+    @Nullable
+    LineCounters countersFor(int lineNumber) {
+        for (LineCounters segment : segments) {
+            if (segment.isRegistered(lineNumber)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keyed counters of different classes, or of one class, can have the same key, so the consumer may see a key more
+     * than once.
+     *
+     * @see CounterSegment#forEachPublished
+     */
+    void forEachPublished(IntLongConsumer consumer) {
+        for (LineCounters segment : segments) {
+            segment.forEachPublished(consumer);
+        }
+        for (KeyedCounters segment : keyedSegments) {
+            segment.forEachPublished(consumer);
+        }
+    }
+}
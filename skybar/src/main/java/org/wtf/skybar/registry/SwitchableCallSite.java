@@ -0,0 +1,81 @@
+package org.wtf.skybar.registry;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Call site that runs its probe while probes are switched on in the registry, and does nothing while they are off.
+ * The target is guarded by the registry's current {@link SwitchPoint}, so the JIT compiles the guard away and a switched
+ * off probe down to nothing. Switching invalidates the switch point; the next call through a call site then relinks it
+ * against the new switch point and state.
+ */
+class SwitchableCallSite extends MutableCallSite {
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle NO_OP;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            RELINK = lookup.findVirtual(SwitchableCallSite.class, "relink", MethodType.methodType(MethodHandle.class));
+            NO_OP = lookup.findStatic(SwitchableCallSite.class, "noOp", MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final SkybarRegistry registry;
+    private MethodHandle probe;
+    /**
+     * Does nothing, with the type of the call site
+     */
+    final MethodHandle noOp;
+    /**
+     * Relinks the call site, then calls the new target with the arguments of the call
+     */
+    private final MethodHandle relinkAndCall;
+
+    /**
+     * @param probe what to run while probes are switched on, of the same type as the call site
+     */
+    SwitchableCallSite(MethodType type, MethodHandle probe, SkybarRegistry registry) {
+        this(type, registry);
+        setProbe(probe);
+    }
+
+    /**
+     * Leaves the call site unlinked, for subclasses that need to set a probe bound to themselves.
+     */
+    SwitchableCallSite(MethodType type, SkybarRegistry registry) {
+        super(type);
+        this.registry = registry;
+        this.noOp = MethodHandles.dropArguments(NO_OP, 0, type.parameterList());
+        this.relinkAndCall = MethodHandles.foldArguments(MethodHandles.exactInvoker(type), RELINK.bindTo(this));
+    }
+
+    /**
+     * Replaces the probe and relinks the call site. Other threads may still run the old probe for a while.
+     */
+    final void setProbe(MethodHandle probe) {
+        this.probe = probe;
+        relink();
+    }
+
+    /**
+     * @return what the call site runs until the switch point is invalidated
+     */
+    private MethodHandle relink() {
+        // The registry publishes the new state before it invalidates the old switch point, so reading the switch point
+        // first never pairs a current switch point with a stale state
+        SwitchPoint switchPoint = registry.getProbeSwitchPoint();
+        MethodHandle target = registry.isEnabled() ? probe : noOp;
+        setTarget(switchPoint.guardWithTest(target, relinkAndCall));
+        return target;
+    }
+
+    private static void noOp() {
+    }
+}
@@ -1,8 +1,5 @@
 package org.wtf.skybar.time;
 
-import java.util.HashMap;
-import java.util.Map;
-import net.openhft.koloboke.collect.map.IntLongMap;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.component.LifeCycle.Listener;
 import org.eclipse.jetty.util.log.Log;
@@ -26,11 +23,10 @@ public class RegistryUpdateListeners extends Thread implements Listener {
 
     @Override
     public void run() {
-        Map<String, IntLongMap> deltaBuffer = new HashMap<>();
         try {
             Thread.sleep(INITIAL_DELAY);
             while (!this.isInterrupted()) {
-                this.registry.updateListeners(deltaBuffer);
+                this.registry.updateListeners();
                 Thread.sleep(PULSE_PERIOD);
             }
         } catch (InterruptedException e) {
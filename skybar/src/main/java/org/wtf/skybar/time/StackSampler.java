@@ -0,0 +1,70 @@
+package org.wtf.skybar.time;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the lines the running threads are seen on, instead of probes counting every visit, see
+ * {@link SkybarRegistry#setSampling(boolean)}. Every interval the stacks of all threads are taken, only as deep as
+ * needed, and each runnable thread counts one visit of the innermost line of a sampled class on its stack.
+ *
+ * Stacks are taken at safepoints, so lines between them, like those of a counted loop, get the samples of the next
+ * one. The counts are a profile of where the time went, not of how often lines ran.
+ */
+public class StackSampler extends Thread {
+    private static final Logger LOG = Log.getLogger(StackSampler.class);
+    private final SkybarRegistry registry;
+    private final long intervalMillis;
+    private final int maxDepth;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @param intervalMillis time between samples. Taking one pauses the application briefly, so this bounds what
+     *                       sampling costs.
+     * @param maxDepth       frames to look at from the top of each stack. A sample whose frames are all outside the
+     *                       sampled classes isn't counted.
+     */
+    public StackSampler(SkybarRegistry registry, long intervalMillis, int maxDepth) {
+        super("StackSampler");
+        super.setDaemon(true);
+        this.registry = registry;
+        this.intervalMillis = intervalMillis;
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.isInterrupted()) {
+                Thread.sleep(intervalMillis);
+                if (registry.isEnabled()) {
+                    sample();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Stopped sampling");
+        }
+    }
+
+    /**
+     * Takes one sample of every runnable thread but this one
+     */
+    void sample() {
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), maxDepth)) {
+            // Threads that ended since their ids were taken have no info
+            if (info == null || info.getThreadId() == getId() || info.getThreadState() != State.RUNNABLE) {
+                continue;
+            }
+            for (StackTraceElement frame : info.getStackTrace()) {
+                if (registry.visitSampledLine(frame.getClassName(), frame.getLineNumber())) {
+                    break;
+                }
+            }
+        }
+    }
+}
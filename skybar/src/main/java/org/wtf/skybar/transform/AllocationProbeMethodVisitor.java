@@ -0,0 +1,122 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Counts the objects and arrays a method allocates, by line, see {@link SkybarRegistry#setAllocationCounting(boolean)}.
+ *
+ * Objects are counted by an invokedynamic probe right after their NEW; putting it in front would move the label that
+ * frames identify the uninitialized object by. Arrays of one dimension get a probe in front of the allocation that
+ * takes a copy of the length, so their bytes can be estimated from it and the size of an element, counting references
+ * as compressed. Multi-dimensional arrays are only counted, by a probe after the allocation: their lengths are spread
+ * over the stack, and only the outermost array is counted.
+ *
+ * Allocations before the first line number of a method have no line to count them under, and aren't counted.
+ */
+class AllocationProbeMethodVisitor extends MethodVisitor implements Opcodes {
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapAllocation", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, int.class).toMethodDescriptorString());
+    private static final Handle ARRAY_BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapArrayAllocation", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, int.class, int.class).toMethodDescriptorString());
+    private static final int REFERENCE_BYTES = 4;
+
+    private final String key;
+    private final AllocationSites allocationSites;
+    private int lineNumber = -1;
+
+    /**
+     * @param key key the class registers its allocations with
+     */
+    AllocationProbeMethodVisitor(String key, AllocationSites allocationSites, MethodVisitor mv) {
+        super(ASM5, mv);
+        this.key = key;
+        this.allocationSites = allocationSites;
+    }
+
+    /**
+     * @return true if the allocations of a class can be counted, which takes invokedynamic
+     */
+    static boolean canCount(int version) {
+        return PerLineMethodVisitor.useInvokeDynamic(version);
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        super.visitLineNumber(line, start);
+        lineNumber = line;
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        if (opcode == ANEWARRAY) {
+            countArray(REFERENCE_BYTES);
+        }
+        super.visitTypeInsn(opcode, type);
+        if (opcode == NEW) {
+            countObject();
+        }
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        if (opcode == NEWARRAY) {
+            countArray(elementSize(operand));
+        }
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        super.visitMultiANewArrayInsn(desc, dims);
+        countObject();
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        // The copy of an array length
+        super.visitMaxs(maxStack + 1, maxLocals);
+    }
+
+    private void countObject() {
+        if (lineNumber != -1) {
+            super.visitInvokeDynamicInsn("visitAllocation", "()V", BOOTSTRAP, key,
+                    allocationSites.indexOf(lineNumber));
+        }
+    }
+
+    private void countArray(int elementSize) {
+        if (lineNumber != -1) {
+            super.visitInsn(DUP);
+            super.visitInvokeDynamicInsn("visitArrayAllocation", "(I)V", ARRAY_BOOTSTRAP, key,
+                    allocationSites.indexOf(lineNumber), elementSize);
+        }
+    }
+
+    private static int elementSize(int arrayType) {
+        switch (arrayType) {
+            case T_BOOLEAN:
+            case T_BYTE:
+                return 1;
+            case T_CHAR:
+            case T_SHORT:
+                return 2;
+            case T_LONG:
+            case T_DOUBLE:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.util.Arrays;
+
+/**
+ * Numbers the allocation counters of a class as its allocations get probes. Each line with allocations gets two: the
+ * number of objects and arrays allocated, keyed by {@link SkybarRegistry#allocationKey(int)}, and right after it the
+ * estimated bytes of the arrays, keyed by {@link SkybarRegistry#arrayBytesKey(int)}. Like {@link BranchKeys}, a class
+ * gets the same numbers every time it is instrumented.
+ */
+final class AllocationSites {
+
+    private final IntIntMap indexesByLine = HashIntIntMaps.newMutableMap();
+    private int[] keys = new int[16];
+    private int size;
+
+    /**
+     * @return the index of the allocation count of the line; its array bytes are at the next index
+     */
+    int indexOf(int lineNumber) {
+        int index = indexesByLine.getOrDefault(lineNumber, -1);
+        if (index == -1) {
+            index = size;
+            if (size + 2 > keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[size++] = SkybarRegistry.allocationKey(lineNumber);
+            keys[size++] = SkybarRegistry.arrayBytesKey(lineNumber);
+            indexesByLine.put(lineNumber, index);
+        }
+        return index;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the key of each counter, by index
+     */
+    int[] toArray() {
+        return Arrays.copyOf(keys, size);
+    }
+}
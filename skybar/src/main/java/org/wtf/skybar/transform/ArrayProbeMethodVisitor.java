@@ -0,0 +1,98 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.set.IntSet;
+import org.objectweb.asm.MethodVisitor;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.transform.util.WorkingLineNumberVisitor;
+
+/**
+ * Inserts an increment of the line's slot in the class's probe array on each line number. The array is fetched through
+ * a tiny synthetic accessor (see {@link SkybarClassVisitor}), which the JIT inlines, so a probe ends up as a field load
+ * and an add, with no call into the registry.
+ */
+class ArrayProbeMethodVisitor extends WorkingLineNumberVisitor {
+
+    private final String className;
+    private final boolean coverageOnly;
+    private final IntSet lines;
+    private final IntIntMap probeSlots;
+    private final ProbeArrayLayout layout;
+
+    /**
+     * @param className    internal name of the class that owns the probe array
+     * @param coverageOnly true to store 1 in the slot instead of incrementing it
+     * @param lines        collects the instrumented lines, to be registered once the whole class has been visited
+     * @param probeSlots   probe array slot of each line, shared by all the methods of the class. New lines are added.
+     * @param layout       slots of the class's probe array, which new lines get a slot and a block in
+     */
+    public ArrayProbeMethodVisitor(String className, boolean coverageOnly, IntSet lines, IntIntMap probeSlots,
+                                   ProbeArrayLayout layout, MethodVisitor mv) {
+        super(ASM5, mv);
+        this.className = className;
+        this.coverageOnly = coverageOnly;
+        this.lines = lines;
+        this.probeSlots = probeSlots;
+        this.layout = layout;
+    }
+
+    @Override
+    protected void onLineNumber(int lineNumber) {
+        lines.add(lineNumber);
+        int slot = probeSlots.computeIfAbsent(lineNumber, line -> {
+            int newSlot = layout.addSlot();
+            layout.addBlock(new int[]{line}, newSlot);
+            return newSlot;
+        });
+
+        visitProbe(mv, className, slot, coverageOnly);
+    }
+
+    /**
+     * Emits a probe for a slot of the class's probe array.
+     */
+    static void visitProbe(MethodVisitor mv, String className, int slot, boolean coverageOnly) {
+        // We output the byte code equivalent to:
+        //    $skybarProbes()[slot]++
+        // or, in coverage-only mode:
+        //    $skybarProbes()[slot] = 1
+        mv.visitMethodInsn(INVOKESTATIC, className, SkybarClassVisitor.PROBES_NAME, SkybarClassVisitor.PROBES_ACCESSOR_DESC, false);
+        pushInt(mv, slot);
+        if(coverageOnly) {
+            mv.visitInsn(LCONST_1);
+        } else {
+            mv.visitInsn(DUP2);
+            mv.visitInsn(LALOAD);
+            mv.visitInsn(LCONST_1);
+            mv.visitInsn(LADD);
+        }
+        mv.visitInsn(LASTORE);
+    }
+
+    /**
+     * Uses the shortest encoding, since probes count against the JIT's inlining budget
+     */
+    private static void pushInt(MethodVisitor mv, int value) {
+        if(value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if(value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if(value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * @return how much a probe adds to the operand stack: array, index and the long slot value, plus the long to add
+     */
+    static int probeStackSize(boolean coverageOnly) {
+        return coverageOnly ? 4 : 6;
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        mv.visitMaxs(maxStack + probeStackSize(coverageOnly), maxLocals);
+    }
+}
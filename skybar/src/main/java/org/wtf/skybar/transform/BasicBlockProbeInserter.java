@@ -0,0 +1,53 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.set.IntSet;
+import org.objectweb.asm.tree.MethodNode;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+
+/**
+ * Puts one array probe per block of lines instead of one per line, at the first line of each
+ * {@link ControlFlowGraph.Block}. The registry spreads the visits of a block over its lines when it harvests the probe
+ * arrays, so lines get exactly the counts they get with a probe per line.
+ */
+class BasicBlockProbeInserter {
+
+    private final String className;
+    private final boolean coverageOnly;
+    private final IntSet lines;
+    private final ProbeArrayLayout layout;
+
+    /**
+     * @param className    internal name of the class that owns the probe array
+     * @param coverageOnly true to store 1 in the slot instead of incrementing it
+     * @param lines        collects the instrumented lines, to be registered once the whole class has been visited
+     * @param layout       slots and blocks of the class's probe array, shared by all the methods of the class
+     */
+    BasicBlockProbeInserter(String className, boolean coverageOnly, IntSet lines, ProbeArrayLayout layout) {
+        this.className = className;
+        this.coverageOnly = coverageOnly;
+        this.lines = lines;
+        this.layout = layout;
+    }
+
+    void insertProbes(MethodNode method, ControlFlowGraph graph) {
+        boolean inserted = false;
+        for (ControlFlowGraph.Block block : graph.getBlocks()) {
+            if (block.firstLineSite == null) {
+                continue;
+            }
+            int slot = layout.addSlot();
+            layout.addBlock(block.getLines(), slot);
+            for (int line : block.getLines()) {
+                lines.add(line);
+            }
+
+            MethodNode probe = new MethodNode();
+            ArrayProbeMethodVisitor.visitProbe(probe, className, slot, coverageOnly);
+            method.instructions.insertBefore(block.firstLineSite, probe.instructions);
+            inserted = true;
+        }
+        if (inserted) {
+            method.maxStack += ArrayProbeMethodVisitor.probeStackSize(coverageOnly);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.util.Arrays;
+
+/**
+ * Numbers the branch outcomes of a class as they get probes, and keys each by its line and its number among the
+ * outcomes of the class on that line, see {@link SkybarRegistry#branchKey(int, int)}. Methods and their instructions
+ * are always visited in the same order, so a class gets the same keys every time it is instrumented, whatever the
+ * probe strategy.
+ */
+final class BranchKeys {
+
+    private final IntIntMap outcomesByLine = HashIntIntMaps.newMutableMap();
+    private int[] keys = new int[16];
+    private int size;
+
+    /**
+     * @return true if the line can take that many more outcomes
+     */
+    boolean hasRoom(int lineNumber, int outcomes) {
+        return outcomesByLine.getOrDefault(lineNumber, 0) + outcomes <= SkybarRegistry.MAX_BRANCH_OUTCOMES_PER_LINE;
+    }
+
+    /**
+     * @return the index of the new outcome
+     */
+    int add(int lineNumber) {
+        int outcome = outcomesByLine.addValue(lineNumber, 1) - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size] = SkybarRegistry.branchKey(lineNumber, outcome);
+        return size++;
+    }
+
+    int keyOf(int index) {
+        return keys[index];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the key of each outcome, by index
+     */
+    int[] toArray() {
+        return Arrays.copyOf(keys, size);
+    }
+}
@@ -0,0 +1,114 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.transform.ControlFlowGraph.Block;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Counts the outcomes of the conditional jumps and switches of a method, for branch coverage. An outcome is counted on
+ * the edge it takes, where {@link EdgeProbeInserter} would count it: just after the jump when it falls through, at the
+ * start of the target if the branch is its only way in, and otherwise in a trampoline at the end of the method.
+ *
+ * The probes are the kind the lines of the class get, a slot of the probe array or an invokedynamic call site linked
+ * to the outcome's counter. Edge probes need none, they derive the outcomes from the slots they have anyway.
+ */
+class BranchProbeInserter implements Opcodes {
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapBranch", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, int.class).toMethodDescriptorString());
+
+    private final String className;
+    private final int version;
+    private final boolean coverageOnly;
+    private final BranchKeys branchKeys;
+    @Nullable
+    private final ProbeArrayLayout layout;
+    private final String key;
+
+    /**
+     * @param className    internal name of the class that owns the probe array
+     * @param version      class file version, to tell if the method needs stack map frames
+     * @param coverageOnly true to store 1 in a slot instead of incrementing it
+     * @param branchKeys   numbers the outcomes of the class
+     * @param layout       slots of the class's probe array, or null for invokedynamic probes
+     * @param key          the key the class registers its branches with, for invokedynamic probes
+     */
+    BranchProbeInserter(String className, int version, boolean coverageOnly, BranchKeys branchKeys,
+                        @Nullable ProbeArrayLayout layout, String key) {
+        this.className = className;
+        this.version = version;
+        this.coverageOnly = coverageOnly;
+        this.branchKeys = branchKeys;
+        this.layout = layout;
+        this.key = key;
+    }
+
+    void insertProbes(MethodNode method, ControlFlowGraph graph) {
+        if (graph.hasSubroutines() || (layout == null && !PerLineMethodVisitor.useInvokeDynamic(version))) {
+            return;
+        }
+        boolean needsFrames = (version & 0xFFFF) >= V1_6;
+        boolean inserted = false;
+        for (Block from : graph.getBlocks()) {
+            if (!ControlFlowGraph.endsInBranch(from) || from.lastLine == -1
+                    || !branchKeys.hasRoom(from.lastLine, from.successors.size())
+                    || (needsFrames && !hasTrampolineFrames(graph, from))) {
+                continue;
+            }
+            for (Block to : from.successors) {
+                InsnList probe = probe(from.lastLine);
+                if (EdgeProbeInserter.isUntakenBranch(graph, from, to)) {
+                    method.instructions.insert(from.last, probe);
+                } else if (EdgeProbeInserter.isOnlyEntryOf(from, to)) {
+                    method.instructions.insertBefore(to.first, probe);
+                } else {
+                    EdgeProbeInserter.addTrampoline(method, graph, from, to, probe, needsFrames);
+                }
+            }
+            inserted = true;
+        }
+        if (inserted && layout != null) {
+            method.maxStack += ArrayProbeMethodVisitor.probeStackSize(coverageOnly);
+        }
+    }
+
+    /**
+     * @return false if a trampoline would need a frame that the method doesn't have in expanded form
+     */
+    private static boolean hasTrampolineFrames(ControlFlowGraph graph, Block from) {
+        for (Block to : from.successors) {
+            if (EdgeProbeInserter.needsTrampoline(graph, from, to)) {
+                FrameNode frame = ControlFlowGraph.frameOf(to);
+                if (frame == null || frame.type != F_NEW) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private InsnList probe(int lineNumber) {
+        int index = branchKeys.add(lineNumber);
+        MethodNode probe = new MethodNode();
+        if (layout != null) {
+            int slot = layout.addSlot();
+            layout.addBranch(branchKeys.keyOf(index), slot);
+            ArrayProbeMethodVisitor.visitProbe(probe, className, slot, coverageOnly);
+        } else {
+            probe.visitInvokeDynamicInsn("visitBranch", "()V", BOOTSTRAP, key, index);
+        }
+        return probe.instructions;
+    }
+}
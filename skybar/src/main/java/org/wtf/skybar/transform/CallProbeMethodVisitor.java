@@ -0,0 +1,60 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Counts the calls a method makes, by the line they are made from and the method they call, see
+ * {@link SkybarRegistry#setCallGraph(boolean)}. Every invoke instruction gets an invokedynamic probe in front of it, so a
+ * call is counted even if the callee throws. Invokedynamic instructions of the method itself are left alone, since
+ * what they call is only known once they are linked.
+ *
+ * Calls before the first line number of a method have no line to count them under, and aren't counted.
+ */
+class CallProbeMethodVisitor extends MethodVisitor implements Opcodes {
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapCall", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, int.class, String.class).toMethodDescriptorString());
+
+    private final String sourceName;
+    private int lineNumber = -1;
+
+    /**
+     * @param sourceName source file of the caller, which the calls are counted under
+     */
+    CallProbeMethodVisitor(String sourceName, MethodVisitor mv) {
+        super(ASM5, mv);
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * @return true if the calls of a class can be counted, which takes invokedynamic
+     */
+    static boolean canCount(int version) {
+        return PerLineMethodVisitor.useInvokeDynamic(version);
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        super.visitLineNumber(line, start);
+        lineNumber = line;
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        if (lineNumber != -1) {
+            super.visitInvokeDynamicInsn("visitCall", "()V", BOOTSTRAP, sourceName, lineNumber,
+                    owner.replace('/', '.') + "." + name + desc);
+        }
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+}
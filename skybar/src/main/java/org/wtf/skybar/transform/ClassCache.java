@@ -0,0 +1,176 @@
+package org.wtf.skybar.transform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Instrumented classes on disk, so a JVM that loads the same classes again can skip ASM altogether. Entries are keyed
+ * by a hash of the original class bytes, the way they are instrumented and the Skybar build, so a changed class or a
+ * new Skybar simply misses. Next to the instrumented bytes an entry holds what instrumenting the class registered, see
+ * {@link ClassMetadata}.
+ *
+ * Entries are read through memory mapped files and written to a temporary file that is then moved into place, so
+ * several JVMs can share a cache directory. An entry that can't be read counts as a miss.
+ */
+@ThreadSafe
+public class ClassCache {
+    private static final Logger logger = LoggerFactory.getLogger(ClassCache.class);
+
+    private static final int MAGIC = 0x534b4243;
+    /**
+     * Bump when the entry format or the meaning of instrumented bytes changes in a way the build fingerprint may miss
+     */
+    private static final int FORMAT_VERSION = 5;
+    private static final String SKYBAR_BUILD = skybarBuild();
+
+    private final Path directory;
+
+    /**
+     * @param directory where to keep the entries. Created when the first entry is written.
+     */
+    public ClassCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param classBytes    the original class
+     * @param probeStrategy how the class is instrumented
+     * @param coverageOnly   whether the probes only mark lines
+     * @param branchCoverage whether branch outcomes get probes too
+     * @param methodTiming   whether methods are timed
+     * @param callGraph      whether calls are counted
+     * @param allocationCounting whether allocations are counted
+     * @param lockContention     whether monitor waits are recorded
+     * @param retransformable    whether the class may be retransformed later, which keeps its synchronized methods
+     * @return the key of the instrumented class, also used as the key of its probe array
+     */
+    static String keyOf(byte[] classBytes, ProbeStrategy probeStrategy, boolean coverageOnly, boolean branchCoverage,
+                        boolean methodTiming, boolean callGraph, boolean allocationCounting,
+                        boolean lockContention, boolean retransformable) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+        digest.update((FORMAT_VERSION + ":" + SKYBAR_BUILD + ":" + probeStrategy + ":" + coverageOnly + ":"
+                + branchCoverage + ":" + methodTiming + ":"
+                + callGraph + ":" + allocationCounting + ":" + lockContention + ":" + retransformable + ":")
+                .getBytes(StandardCharsets.UTF_8));
+        digest.update(classBytes);
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached class, or null if there is none or it can't be read
+     */
+    @Nullable
+    CachedClass get(String key) {
+        Path file = fileFor(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return CachedClass.readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Truncated or garbled, perhaps by a JVM that died while writing it
+            logger.debug("Ignoring unreadable cache entry " + file, e);
+            return null;
+        }
+    }
+
+    void put(String key, CachedClass cachedClass) {
+        Path file = fileFor(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+            try {
+                Files.write(temp, cachedClass.toBytes());
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            logger.warn("Couldn't cache instrumented class in " + file, e);
+        }
+    }
+
+    private Path fileFor(String key) {
+        // Fan out, so no directory gets too many entries
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    /**
+     * Snapshot builds keep their version while their code changes, so the jar Skybar was loaded from is part of it.
+     */
+    private static String skybarBuild() {
+        String build = String.valueOf(ClassCache.class.getPackage().getImplementationVersion());
+        try {
+            URL location = ClassCache.class.getProtectionDomain().getCodeSource().getLocation();
+            File jar = new File(location.toURI());
+            if (jar.isFile()) {
+                build += ":" + jar.length() + ":" + jar.lastModified();
+            }
+        } catch (Exception e) {
+            logger.debug("Can't tell which jar Skybar was loaded from", e);
+        }
+        return build;
+    }
+
+    /**
+     * An instrumented class and what instrumenting it registered
+     */
+    static final class CachedClass {
+        final ClassMetadata metadata;
+        final byte[] classBytes;
+
+        CachedClass(ClassMetadata metadata, byte[] classBytes) {
+            this.metadata = metadata;
+            this.classBytes = classBytes;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(classBytes.length + 4 * metadata.lines.length + 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            metadata.writeTo(out);
+            out.writeInt(classBytes.length);
+            out.write(classBytes);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static CachedClass readFrom(ByteBuffer in) {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Not a cache entry of this version");
+            }
+            ClassMetadata metadata = ClassMetadata.readFrom(in);
+            byte[] classBytes = new byte[in.getInt()];
+            in.get(classBytes);
+            return new CachedClass(metadata, classBytes);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.wtf.skybar.transform;
+
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What instrumenting a class registered with the registry. Instrumented classes refer to their source file by name and
+ * to their probe array by key, so registering this again in another run makes the instrumented bytes work there too,
+ * without instrumenting the class again. See {@link ClassCache} and {@link OfflineInstrumentation}.
+ */
+@Immutable
+public final class ClassMetadata {
+    final String className;
+    /**
+     * Key of the probe array
+     */
+    final String key;
+    /**
+     * Null if the class has no source file attribute, and so no probes
+     */
+    @Nullable
+    final String sourceFile;
+    final int[] lines;
+    /**
+     * Keys of the branch outcomes with invokedynamic probes, by index. Those with array probes are in the layout.
+     */
+    final int[] branches;
+    /**
+     * Keys of the allocation counters, by index
+     */
+    final int[] allocations;
+    @Nullable
+    final ProbeArrayLayout probeLayout;
+
+    ClassMetadata(String className, String key, @Nullable String sourceFile, int[] lines, int[] branches,
+                  int[] allocations, @Nullable ProbeArrayLayout probeLayout) {
+        this.className = className;
+        this.key = key;
+        this.sourceFile = sourceFile;
+        this.lines = lines;
+        this.branches = branches;
+        this.allocations = allocations;
+        this.probeLayout = probeLayout;
+    }
+
+    /**
+     * @param visitor the visitor that instrumented the class
+     */
+    static ClassMetadata of(String key, SkybarClassVisitor visitor) {
+        return new ClassMetadata(visitor.getClassName(), key, visitor.getSourceFile(), visitor.getLines(),
+                visitor.getBranches(), visitor.getAllocations(), visitor.getProbeLayout());
+    }
+
+    /**
+     * @return internal name of the class
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Registers the source, lines, branches, allocations and probe array of the class, as instrumenting it did
+     *
+     * @param loader the class loader to look the source up with
+     */
+    void register(SkybarRegistry registry, ClassLoader loader) {
+        if(sourceFile == null) {
+            return;
+        }
+        int sourceId = registry.internSource(sourceFile);
+        if(lines.length > 0) {
+            registry.registerLines(sourceId, lines);
+        }
+        if(branches.length > 0) {
+            registry.registerBranches(key, sourceId, branches);
+        }
+        if(allocations.length > 0) {
+            registry.registerAllocations(key, sourceId, allocations);
+        }
+        if(probeLayout != null) {
+            registry.registerProbeArray(key, sourceId, probeLayout);
+        }
+        registry.registerClassLoader(sourceFile, loader);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeString(out, className);
+        writeString(out, key);
+        out.writeBoolean(sourceFile != null);
+        if(sourceFile != null) {
+            writeString(out, sourceFile);
+        }
+        out.writeInt(lines.length);
+        for (int line : lines) {
+            out.writeInt(line);
+        }
+        out.writeInt(branches.length);
+        for (int branch : branches) {
+            out.writeInt(branch);
+        }
+        out.writeInt(allocations.length);
+        for (int allocation : allocations) {
+            out.writeInt(allocation);
+        }
+        out.writeBoolean(probeLayout != null);
+        if(probeLayout != null) {
+            probeLayout.writeTo(out);
+        }
+    }
+
+    static ClassMetadata readFrom(ByteBuffer in) {
+        String className = readString(in);
+        String key = readString(in);
+        String sourceFile = in.get() != 0 ? readString(in) : null;
+        int[] lines = readInts(in);
+        int[] branches = readInts(in);
+        int[] allocations = readInts(in);
+        ProbeArrayLayout probeLayout = in.get() != 0 ? ProbeArrayLayout.readFrom(in) : null;
+        return new ClassMetadata(className, key, sourceFile, lines, branches, allocations, probeLayout);
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] ints = new int[in.getInt()];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + 4 * ints.length);
+        return ints;
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
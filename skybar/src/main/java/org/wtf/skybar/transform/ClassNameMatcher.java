@@ -0,0 +1,189 @@
+package org.wtf.skybar.transform;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes to instrument. A class is instrumented if its slash-separated name starts with one of the
+ * included prefixes and none of the excluded ones, or if it matches the include regex and not the exclude regex.
+ * Skybar itself and generated classes with $$ in their name are never instrumented.
+ *
+ * This runs for every class the JVM loads, so the prefixes are compiled into a trie up front. Most names fall off the
+ * trie within a few characters, and a name is walked at most once no matter how many prefixes there are. The literal
+ * start of the include regex goes into the same trie, so the regexes are only tried for names the prefixes don't
+ * decide and that could match the include regex at all.
+ */
+@Immutable
+final class ClassNameMatcher {
+
+    /**
+     * Prefix of names that are never instrumented, whatever the prefixes and regexes say
+     */
+    static final String SKYBAR_PREFIX = "org/wtf/skybar";
+
+    private static final byte NOT_INCLUDED = 0;
+    private static final byte INCLUDED = 1;
+    private static final byte NEVER = 2;
+    /**
+     * Prefixes don't include it, but the include regex might
+     */
+    private static final byte TRY_REGEX = 3;
+
+    private final Node root;
+    @Nullable
+    private final Pattern includeRegex;
+    @Nullable
+    private final Pattern excludeRegex;
+
+    ClassNameMatcher(@Nullable String[] includes, @Nullable String[] excludes, @Nullable Pattern includeRegex,
+                     @Nullable Pattern excludeRegex) {
+        this.includeRegex = includeRegex;
+        this.excludeRegex = excludeRegex;
+
+        Builder builder = new Builder();
+        if (includes != null) {
+            for (String include : includes) {
+                builder.add(include).included = true;
+            }
+        }
+        if (excludes != null) {
+            for (String exclude : excludes) {
+                builder.add(exclude).excluded = true;
+            }
+        }
+        if (includeRegex != null) {
+            builder.add(literalPrefix(includeRegex)).tryRegex = true;
+        }
+        builder.add(SKYBAR_PREFIX).never = true;
+        this.root = builder.compile(false, false, false);
+    }
+
+    boolean matches(String className) {
+        // Walk down the trie as far as the name goes; the deepest node reached knows every prefix along the way
+        Node node = root;
+        int length = className.length();
+        for (int i = 0; i < length && !node.isFinal; i++) {
+            Node child = node.child(className.charAt(i));
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+
+        switch (node.decision) {
+            case NEVER:
+                return false;
+            case INCLUDED:
+                return !className.contains("$$");
+            case TRY_REGEX:
+                return !className.contains("$$")
+                        && includeRegex.matcher(className).matches()
+                        && (excludeRegex == null || !excludeRegex.matcher(className).matches());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return what every name the regex matches starts with, perhaps nothing
+     */
+    static String literalPrefix(Pattern regex) {
+        String pattern = regex.pattern();
+        if (regex.flags() != 0 || pattern.indexOf('|') >= 0) {
+            // Flags like case insensitivity change what a literal matches, and alternatives each have their own start
+            return "";
+        }
+        int end = 0;
+        while (end < pattern.length() && "\\^$.|?*+()[]{}".indexOf(pattern.charAt(end)) < 0) {
+            end++;
+        }
+        if (end < pattern.length() && "?*{".indexOf(pattern.charAt(end)) >= 0) {
+            // The last literal is optional
+            end = Math.max(0, end - 1);
+        }
+        return pattern.substring(0, end);
+    }
+
+    @Immutable
+    private static final class Node {
+        /**
+         * Sorted
+         */
+        private final char[] keys;
+        private final Node[] children;
+        /**
+         * What the prefixes ending here or above say
+         */
+        private final byte decision;
+        /**
+         * Nothing deeper can change the decision, so there is no need to walk on
+         */
+        private final boolean isFinal;
+
+        private Node(char[] keys, Node[] children, byte decision, boolean isFinal) {
+            this.keys = keys;
+            this.children = children;
+            this.decision = decision;
+            this.isFinal = isFinal;
+        }
+
+        @Nullable
+        private Node child(char c) {
+            char[] keys = this.keys;
+            // Fan out is small for package names, where a linear scan beats a binary search
+            if (keys.length <= 8) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+    }
+
+    private static final class Builder {
+        private final TreeMap<Character, Builder> children = new TreeMap<>();
+        private boolean included;
+        private boolean excluded;
+        private boolean never;
+        private boolean tryRegex;
+
+        Builder add(String prefix) {
+            Builder node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Builder());
+            }
+            return node;
+        }
+
+        Node compile(boolean includedAbove, boolean excludedAbove, boolean tryRegexAbove) {
+            if (never) {
+                // Nothing overrides never, so the subtree can go
+                return new Node(new char[0], new Node[0], NEVER, true);
+            }
+            boolean isIncluded = includedAbove || included;
+            boolean isExcluded = excludedAbove || excluded;
+            boolean isTryRegex = tryRegexAbove || tryRegex;
+            byte decision = isIncluded && !isExcluded ? INCLUDED : isTryRegex ? TRY_REGEX : NOT_INCLUDED;
+
+            char[] keys = new char[children.size()];
+            Node[] compiled = new Node[children.size()];
+            boolean changesBelow = false;
+            int i = 0;
+            for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                compiled[i] = child.getValue().compile(isIncluded, isExcluded, isTryRegex);
+                changesBelow |= compiled[i].decision != decision || !compiled[i].isFinal;
+                i++;
+            }
+            return new Node(keys, compiled, decision, !changesBelow);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The blocks of a method as far as line counts are concerned: every line in a block runs exactly as often as the block
+ * is entered. So a block starts at every jump target and exception handler, after every jump, switch, return or
+ * throw, and at any line that follows an instruction of the block that may throw: if it throws, the lines after it
+ * don't run.
+ *
+ * The line probe points are the ones {@link org.wtf.skybar.transform.util.WorkingLineNumberVisitor} would use: the
+ * first instruction after a line number, or just after it if that is a NEW. Probes placed per block therefore give
+ * lines exactly the counts they get with a probe per line.
+ *
+ * The graph is a snapshot; instructions inserted into the method afterwards are not reflected.
+ */
+class ControlFlowGraph implements Opcodes {
+
+    static final class Block {
+        final int index;
+        /**
+         * First instruction of the block. Any labels and frames in front of it belong to the block too.
+         */
+        final AbstractInsnNode first;
+        AbstractInsnNode last;
+        /**
+         * Line of the last instruction, or -1 if the method has no line numbers up to there
+         */
+        int lastLine = -1;
+        /**
+         * Instruction to put a probe for the lines of the block in front of, or null if the block has no lines
+         */
+        @Nullable
+        AbstractInsnNode firstLineSite;
+        private int[] lines = new int[0];
+        boolean mayThrow;
+        boolean returns;
+        boolean isHandler;
+        /**
+         * Number of backward jumps that jump over or to this block; a rough measure of how hot it is
+         */
+        int loopDepth;
+        /**
+         * Blocks reached without an exception, without duplicates. After a conditional jump the block it falls through
+         * to comes first and then the target; after a switch the default target comes first and then the others, in
+         * table order.
+         */
+        final List<Block> successors = new ArrayList<>();
+        int numPredecessors;
+        private boolean fallsThrough;
+
+        Block(int index, AbstractInsnNode first) {
+            this.index = index;
+            this.first = first;
+        }
+
+        /**
+         * @return the line of each probe point in the block, in order. A line with two probe points in the block
+         * appears twice.
+         */
+        int[] getLines() {
+            return lines;
+        }
+
+        private void addLine(int line, AbstractInsnNode site) {
+            if (firstLineSite == null) {
+                firstLineSite = site;
+            }
+            lines = Arrays.copyOf(lines, lines.length + 1);
+            lines[lines.length - 1] = line;
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<LabelNode, Block> blocksByLabel = new HashMap<>();
+    private boolean hasSubroutines;
+
+    private ControlFlowGraph() {
+    }
+
+    static ControlFlowGraph of(MethodNode method) {
+        ControlFlowGraph graph = new ControlFlowGraph();
+        graph.build(method);
+        return graph;
+    }
+
+    List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the block that starts at or runs through the label
+     */
+    Block blockAt(LabelNode label) {
+        return blocksByLabel.get(label);
+    }
+
+    /**
+     * @return true for old code with JSR/RET subroutines, whose control flow can't be told from the instructions
+     */
+    boolean hasSubroutines() {
+        return hasSubroutines;
+    }
+
+    /**
+     * @return the frame in front of the first instruction of the block, if there is one
+     */
+    @Nullable
+    static FrameNode frameOf(Block block) {
+        for (AbstractInsnNode insn = block.first.getPrevious(); insn != null && insn.getOpcode() < 0;
+             insn = insn.getPrevious()) {
+            if (insn instanceof FrameNode) {
+                return (FrameNode) insn;
+            }
+        }
+        return null;
+    }
+
+    private void build(MethodNode method) {
+        Set<LabelNode> targets = jumpTargets(method);
+        List<LabelNode> pendingLabels = new ArrayList<>();
+        Block current = null;
+        boolean startBlock = true;
+        int pendingLine = -1;
+        int currentLine = -1;
+
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LineNumberNode) {
+                pendingLine = ((LineNumberNode) insn).line;
+                currentLine = pendingLine;
+                continue;
+            }
+            if (insn instanceof LabelNode) {
+                pendingLabels.add((LabelNode) insn);
+                startBlock |= targets.contains(insn);
+                continue;
+            }
+            if (insn.getOpcode() < 0) {
+                continue;
+            }
+
+            // The probe for a NEW goes after it, so the line is on the next instruction, after the NEW may have thrown
+            boolean probePoint = pendingLine != -1 && insn.getOpcode() != NEW;
+            if (startBlock || (probePoint && current.mayThrow)) {
+                Block block = new Block(blocks.size(), insn);
+                if (current != null && current.fallsThrough) {
+                    current.successors.add(block);
+                }
+                blocks.add(block);
+                current = block;
+                startBlock = false;
+            }
+            for (LabelNode label : pendingLabels) {
+                blocksByLabel.put(label, current);
+            }
+            pendingLabels.clear();
+
+            if (probePoint) {
+                current.addLine(pendingLine, insn);
+                pendingLine = -1;
+            }
+            current.mayThrow |= mayThrow(insn);
+            current.last = insn;
+            current.lastLine = currentLine;
+            current.fallsThrough = fallsThrough(insn);
+            startBlock = endsBlock(insn);
+        }
+
+        for (Block block : blocks) {
+            AbstractInsnNode last = block.last;
+            int opcode = last.getOpcode();
+            if (opcode == JSR || opcode == RET) {
+                hasSubroutines = true;
+            } else if (last instanceof JumpInsnNode) {
+                addSuccessor(block, ((JumpInsnNode) last).label);
+            } else if (last instanceof TableSwitchInsnNode) {
+                addSuccessor(block, ((TableSwitchInsnNode) last).dflt);
+                ((TableSwitchInsnNode) last).labels.forEach(label -> addSuccessor(block, label));
+            } else if (last instanceof LookupSwitchInsnNode) {
+                addSuccessor(block, ((LookupSwitchInsnNode) last).dflt);
+                ((LookupSwitchInsnNode) last).labels.forEach(label -> addSuccessor(block, label));
+            } else if (opcode >= IRETURN && opcode <= RETURN) {
+                block.returns = true;
+            }
+        }
+        for (Block block : blocks) {
+            for (Block successor : block.successors) {
+                successor.numPredecessors++;
+                if (successor.index <= block.index) {
+                    for (int i = successor.index; i <= block.index; i++) {
+                        blocks.get(i).loopDepth++;
+                    }
+                }
+            }
+        }
+        for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+            blockAt(tryCatchBlock.handler).isHandler = true;
+        }
+    }
+
+    /**
+     * @return true if the block ends in a conditional jump or a switch with more than one target, whose outcomes are
+     * the successors of the block
+     */
+    static boolean endsInBranch(Block block) {
+        int opcode = block.last.getOpcode();
+        boolean branch = block.last instanceof JumpInsnNode ? opcode != GOTO && opcode != JSR
+                : block.last instanceof TableSwitchInsnNode || block.last instanceof LookupSwitchInsnNode;
+        return branch && block.successors.size() > 1;
+    }
+
+    private void addSuccessor(Block block, LabelNode label) {
+        Block successor = blockAt(label);
+        if (!block.successors.contains(successor)) {
+            block.successors.add(successor);
+        }
+    }
+
+    private static Set<LabelNode> jumpTargets(MethodNode method) {
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof JumpInsnNode) {
+                targets.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) insn).dflt);
+                targets.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) insn).dflt);
+                targets.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+            targets.add(tryCatchBlock.handler);
+        }
+        return targets;
+    }
+
+    /**
+     * @return true if the next instruction is only reached through a jump, or starts a new block anyway
+     */
+    private static boolean endsBlock(AbstractInsnNode insn) {
+        return insn instanceof JumpInsnNode || !fallsThrough(insn);
+    }
+
+    /**
+     * @return true if the next instruction can run right after this one
+     */
+    private static boolean fallsThrough(AbstractInsnNode insn) {
+        if (insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode) {
+            return false;
+        }
+        switch (insn.getOpcode()) {
+            case GOTO:
+            case JSR:
+            case RET:
+            case IRETURN:
+            case LRETURN:
+            case FRETURN:
+            case DRETURN:
+            case ARETURN:
+            case RETURN:
+            case ATHROW:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Errors the JVM can raise anywhere, like StackOverflowError, are ignored; probes per line don't handle them either.
+     *
+     * @return true if the instruction can throw an exception
+     */
+    static boolean mayThrow(AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            case IALOAD:
+            case LALOAD:
+            case FALOAD:
+            case DALOAD:
+            case AALOAD:
+            case BALOAD:
+            case CALOAD:
+            case SALOAD:
+            case IASTORE:
+            case LASTORE:
+            case FASTORE:
+            case DASTORE:
+            case AASTORE:
+            case BASTORE:
+            case CASTORE:
+            case SASTORE:
+            case IDIV:
+            case LDIV:
+            case IREM:
+            case LREM:
+            case GETSTATIC:
+            case PUTSTATIC:
+            case GETFIELD:
+            case PUTFIELD:
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC:
+            case INVOKEINTERFACE:
+            case INVOKEDYNAMIC:
+            case NEW:
+            case NEWARRAY:
+            case ANEWARRAY:
+            case ARRAYLENGTH:
+            case ATHROW:
+            case CHECKCAST:
+            case INSTANCEOF:
+            case MONITORENTER:
+            case MONITOREXIT:
+            case MULTIANEWARRAY:
+                return true;
+            case LDC:
+                // Class and method handle constants are resolved on first use
+                Object cst = ((LdcInsnNode) insn).cst;
+                return cst instanceof Type || cst instanceof Handle;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.set.IntSet;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.transform.ControlFlowGraph.Block;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Counts edges between {@link ControlFlowGraph.Block}s instead of the blocks themselves, placing probes the way Ball and
+ * Larus do: build a spanning tree of the control flow graph that holds the edges expected to run most often, and only
+ * put probes on the edges that aren't in it. The counts of the tree edges, and from those the block counts, follow
+ * from flow conservation, which the registry applies when it harvests the probe array. A loop then costs one
+ * increment per iteration, however many blocks its body has.
+ *
+ * The graph gets a virtual exit, an edge from the exit back to the entry for method invocations, and a virtual
+ * "thrown" vertex. Blocks that may throw have an edge to it that can't be counted, so those edges are always in the
+ * tree. Exceptions go from there to the handlers, which can be counted where the handler starts, or out of the method,
+ * which is counted in a catch-all handler like the one {@link TryCatchMethodVisitor} uses. Constructors can't have
+ * a handler around the super constructor call, so there that edge is in the tree too.
+ *
+ * The invocations, on the other hand, are always counted. As a tree edge they'd follow from the returns, so a method
+ * that never returns, like the run loop of a thread, would never show its entry as run. A method that is still running
+ * can't be told from one that left through the thrown vertex then, so a harvest that catches it in a block that may
+ * throw, as a blocking call is, gets the blocks right; other counts catch up once it moves on.
+ *
+ * Every block that may throw takes an edge out of the tree, so in code full of calls edge probes can cost more than a
+ * probe per block. The inserter therefore estimates both and leaves methods where edges don't pay off alone.
+ *
+ * The outcomes of conditional jumps and switches are edges too, so with branch coverage they are derived from the
+ * same slots, and cost nothing extra.
+ */
+class EdgeProbeInserter implements Opcodes {
+
+    private enum Kind {
+        /**
+         * Between two blocks, counted at the end of the source, the start of the target, or in a trampoline
+         */
+        FLOW,
+        /**
+         * From a returning block to the exit, counted before the return
+         */
+        RETURN,
+        /**
+         * From the exit back to the entry, counted at the start of the method; never in the tree
+         */
+        INVOKE,
+        /**
+         * From a block that may throw to the thrown vertex; can't be counted
+         */
+        THROW,
+        /**
+         * From the thrown vertex to a handler, counted at the start of the handler
+         */
+        CATCH,
+        /**
+         * From the thrown vertex to the exit, counted in a catch-all handler
+         */
+        UNCAUGHT
+    }
+
+    /**
+     * Weight of the edges that only run when something throws
+     */
+    private static final double COLD = 1.0 / 64;
+
+    private static final class Edge {
+        final Kind kind;
+        final int from;
+        final int to;
+        final double weight;
+        boolean inTree;
+        int chord = -1;
+        /**
+         * The count of the edge as coefficients of the chord counts
+         */
+        int[] count;
+
+        Edge(Kind kind, int from, int to, double weight) {
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+
+        int other(int vertex) {
+            return vertex == from ? to : from;
+        }
+    }
+
+    private final String className;
+    private final int version;
+    private final IntSet lines;
+    private final ProbeArrayLayout layout;
+    @Nullable
+    private final BranchKeys branchKeys;
+
+    /**
+     * @param className  internal name of the class that owns the probe array
+     * @param version    class file version, to tell if the method needs stack map frames
+     * @param lines      collects the instrumented lines, to be registered once the whole class has been visited
+     * @param layout     slots and blocks of the class's probe array, shared by all the methods of the class
+     * @param branchKeys numbers the branch outcomes of the class, or null without branch coverage
+     */
+    EdgeProbeInserter(String className, int version, IntSet lines, ProbeArrayLayout layout,
+                      @Nullable BranchKeys branchKeys) {
+        this.className = className;
+        this.version = version;
+        this.lines = lines;
+        this.layout = layout;
+        this.branchKeys = branchKeys;
+    }
+
+    /**
+     * @return false if the method was left alone, because edge probes aren't expected to be cheaper than a probe per
+     * block or because its control flow is beyond what is handled here
+     */
+    boolean insertProbes(MethodNode method, ControlFlowGraph graph) {
+        List<Block> blocks = graph.getBlocks();
+        if (blocks.isEmpty() || graph.hasSubroutines()) {
+            return false;
+        }
+        for (Block block : blocks) {
+            // Handlers must only be entered through exceptions, or counting their start counts more than the CATCH edge
+            if (block.isHandler && block.numPredecessors > 0) {
+                return false;
+            }
+        }
+        boolean needsFrames = (version & 0xFFFF) >= V1_6;
+        boolean catchAll = !"<init>".equals(method.name);
+        int exit = blocks.size();
+        int thrown = exit + 1;
+        int numVertices = exit + 2;
+
+        List<Edge> edges = new ArrayList<>();
+        edges.add(new Edge(Kind.INVOKE, exit, 0, 1));
+        edges.add(new Edge(Kind.UNCAUGHT, thrown, exit, catchAll ? COLD : Double.POSITIVE_INFINITY));
+        for (Block block : blocks) {
+            for (Block successor : block.successors) {
+                // Trampolines cost a jump on top of the probe, so they'd better be in the tree
+                double weight = hotness(Math.min(block.loopDepth, successor.loopDepth));
+                edges.add(new Edge(Kind.FLOW, block.index, successor.index,
+                        needsTrampoline(graph, block, successor) ? weight * 1.5 : weight));
+            }
+            if (block.returns) {
+                edges.add(new Edge(Kind.RETURN, block.index, exit, hotness(block.loopDepth)));
+            }
+            if (block.mayThrow) {
+                edges.add(new Edge(Kind.THROW, block.index, thrown, Double.POSITIVE_INFINITY));
+            }
+            if (block.isHandler) {
+                edges.add(new Edge(Kind.CATCH, thrown, block.index, COLD));
+            }
+        }
+
+        if (!buildSpanningTree(edges, numVertices)) {
+            return false;
+        }
+        int numChords = 0;
+        double edgeCost = 0;
+        for (Edge edge : edges) {
+            if (!edge.inTree) {
+                edge.chord = numChords++;
+                edgeCost += costOf(edge, blocks);
+                if (edge.kind == Kind.FLOW && needsFrames
+                        && needsTrampoline(graph, blocks.get(edge.from), blocks.get(edge.to))) {
+                    FrameNode frame = ControlFlowGraph.frameOf(blocks.get(edge.to));
+                    if (frame == null || frame.type != F_NEW) {
+                        return false;
+                    }
+                }
+            }
+        }
+        double blockCost = 0;
+        for (Block block : blocks) {
+            if (block.firstLineSite != null) {
+                blockCost += hotness(block.loopDepth);
+            }
+        }
+        if (edgeCost >= blockCost || !solveTreeEdges(edges, numVertices, numChords)) {
+            return false;
+        }
+
+        int[] slots = new int[numChords];
+        for (int i = 0; i < numChords; i++) {
+            slots[i] = layout.addSlot();
+        }
+        for (Block block : blocks) {
+            if (block.firstLineSite != null) {
+                addBlockToLayout(block, edges, slots, numChords);
+            }
+            if (branchKeys != null) {
+                addBranchesToLayout(block, edges, slots);
+            }
+        }
+        insertChordProbes(method, graph, edges, slots, needsFrames);
+        return true;
+    }
+
+    private static double hotness(int loopDepth) {
+        return Math.pow(8, Math.min(loopDepth, 16));
+    }
+
+    private static double costOf(Edge edge, List<Block> blocks) {
+        switch (edge.kind) {
+            case FLOW:
+                return hotness(Math.min(blocks.get(edge.from).loopDepth, blocks.get(edge.to).loopDepth));
+            case RETURN:
+                return hotness(blocks.get(edge.from).loopDepth);
+            case INVOKE:
+                return 1;
+            default:
+                return COLD;
+        }
+    }
+
+    /**
+     * Kruskal's algorithm for a maximum spanning tree. Edges with an infinite weight can't be counted, so they go in
+     * first; they all touch the thrown vertex, so they never form a cycle. The invocation edge is left out.
+     *
+     * @return false if the graph isn't connected without the invocation edge
+     */
+    private static boolean buildSpanningTree(List<Edge> edges, int numVertices) {
+        int[] parents = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            parents[i] = i;
+        }
+        List<Edge> byWeight = new ArrayList<>(edges);
+        byWeight.sort(Comparator.comparingDouble((Edge edge) -> edge.weight).reversed());
+        int treeSize = 0;
+        for (Edge edge : byWeight) {
+            if (edge.kind == Kind.INVOKE) {
+                continue;
+            }
+            int fromRoot = root(parents, edge.from);
+            int toRoot = root(parents, edge.to);
+            if (fromRoot != toRoot) {
+                parents[fromRoot] = toRoot;
+                edge.inTree = true;
+                treeSize++;
+            } else if (edge.weight == Double.POSITIVE_INFINITY) {
+                return false;
+            }
+        }
+        return treeSize == numVertices - 1;
+    }
+
+    private static int root(int[] parents, int vertex) {
+        while (parents[vertex] != vertex) {
+            parents[vertex] = parents[parents[vertex]];
+            vertex = parents[vertex];
+        }
+        return vertex;
+    }
+
+    /**
+     * Expresses the count of every tree edge in chord counts, by repeatedly taking a vertex with a single unsolved tree
+     * edge, whose count is then the difference between what flows in and out of the vertex through the other edges.
+     *
+     * @return false if some tree edge could not be solved
+     */
+    private static boolean solveTreeEdges(List<Edge> edges, int numVertices, int numChords) {
+        List<List<Edge>> incident = new ArrayList<>();
+        for (int i = 0; i < numVertices; i++) {
+            incident.add(new ArrayList<>());
+        }
+        int[] unsolved = new int[numVertices];
+        for (Edge edge : edges) {
+            incident.get(edge.from).add(edge);
+            if (edge.to != edge.from) {
+                incident.get(edge.to).add(edge);
+            }
+            if (edge.inTree) {
+                unsolved[edge.from]++;
+                unsolved[edge.to]++;
+            } else {
+                edge.count = new int[numChords];
+                edge.count[edge.chord] = 1;
+            }
+        }
+
+        Deque<Integer> leaves = new ArrayDeque<>();
+        for (int i = 0; i < numVertices; i++) {
+            if (unsolved[i] == 1) {
+                leaves.add(i);
+            }
+        }
+        int solved = 0;
+        while (!leaves.isEmpty()) {
+            int vertex = leaves.poll();
+            if (unsolved[vertex] != 1) {
+                continue;
+            }
+            Edge treeEdge = null;
+            int[] balance = new int[numChords];
+            for (Edge edge : incident.get(vertex)) {
+                if (edge.count == null) {
+                    treeEdge = edge;
+                    continue;
+                }
+                // in minus out
+                for (int i = 0; i < numChords; i++) {
+                    if (edge.to == vertex) {
+                        balance[i] += edge.count[i];
+                    }
+                    if (edge.from == vertex) {
+                        balance[i] -= edge.count[i];
+                    }
+                }
+            }
+            if (treeEdge.to == vertex) {
+                for (int i = 0; i < numChords; i++) {
+                    balance[i] = -balance[i];
+                }
+            }
+            treeEdge.count = balance;
+            solved++;
+            unsolved[vertex]--;
+            int other = treeEdge.other(vertex);
+            if (--unsolved[other] == 1) {
+                leaves.add(other);
+            }
+        }
+        return solved == numVertices - 1;
+    }
+
+    /**
+     * A block is entered as often as its incoming edges run
+     */
+    private void addBlockToLayout(Block block, List<Edge> edges, int[] slots, int numChords) {
+        int[] count = new int[numChords];
+        for (Edge edge : edges) {
+            if (edge.to == block.index) {
+                for (int i = 0; i < numChords; i++) {
+                    count[i] += edge.count[i];
+                }
+            }
+        }
+        int[][] terms = termsOf(count, slots);
+        layout.addBlock(block.getLines(), terms[0], terms[1]);
+        for (int line : block.getLines()) {
+            lines.add(line);
+        }
+    }
+
+    /**
+     * An outcome of a branch is taken as often as the edge to its target runs
+     */
+    private void addBranchesToLayout(Block block, List<Edge> edges, int[] slots) {
+        if (!ControlFlowGraph.endsInBranch(block) || block.lastLine == -1
+                || !branchKeys.hasRoom(block.lastLine, block.successors.size())) {
+            return;
+        }
+        for (Block successor : block.successors) {
+            for (Edge edge : edges) {
+                if (edge.kind == Kind.FLOW && edge.from == block.index && edge.to == successor.index) {
+                    int[][] terms = termsOf(edge.count, slots);
+                    layout.addBranch(branchKeys.keyOf(branchKeys.add(block.lastLine)), terms[0], terms[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the slots and coefficients of the chords that a count expressed in chord counts has
+     */
+    private static int[][] termsOf(int[] count, int[] slots) {
+        int numTerms = 0;
+        for (int coefficient : count) {
+            if (coefficient != 0) {
+                numTerms++;
+            }
+        }
+        int[] termSlots = new int[numTerms];
+        int[] coefficients = new int[numTerms];
+        for (int i = 0, t = 0; i < count.length; i++) {
+            if (count[i] != 0) {
+                termSlots[t] = slots[i];
+                coefficients[t++] = count[i];
+            }
+        }
+        return new int[][]{termSlots, coefficients};
+    }
+
+    /**
+     * @return true if neither end of the edge has a spot that only the edge runs through
+     */
+    static boolean needsTrampoline(ControlFlowGraph graph, Block from, Block to) {
+        return from.successors.size() > 1 && !isOnlyEntryOf(from, to) && !isUntakenBranch(graph, from, to);
+    }
+
+    static boolean isOnlyEntryOf(Block from, Block to) {
+        return to.numPredecessors == 1 && to.index != 0 && !to.isHandler;
+    }
+
+    static boolean isUntakenBranch(ControlFlowGraph graph, Block from, Block to) {
+        return from.last instanceof JumpInsnNode && from.last.getOpcode() != GOTO && to.index == from.index + 1
+                && graph.blockAt(((JumpInsnNode) from.last).label) != to;
+    }
+
+    private void insertChordProbes(MethodNode method, ControlFlowGraph graph, List<Edge> edges, int[] slots,
+                                   boolean needsFrames) {
+        List<Block> blocks = graph.getBlocks();
+        InsnList instructions = method.instructions;
+        LabelNode methodStart = new LabelNode();
+        LabelNode methodEnd = new LabelNode();
+        instructions.insert(methodStart);
+        instructions.add(methodEnd);
+
+        boolean catchAllAdded = false;
+        for (Edge edge : edges) {
+            if (edge.inTree) {
+                continue;
+            }
+            InsnList probe = probe(slots[edge.chord]);
+            switch (edge.kind) {
+                case FLOW:
+                    Block from = blocks.get(edge.from);
+                    Block to = blocks.get(edge.to);
+                    if (from.successors.size() == 1) {
+                        if (isJump(from.last)) {
+                            instructions.insertBefore(from.last, probe);
+                        } else {
+                            instructions.insert(from.last, probe);
+                        }
+                    } else if (isOnlyEntryOf(from, to)) {
+                        instructions.insertBefore(to.first, probe);
+                    } else if (isUntakenBranch(graph, from, to)) {
+                        instructions.insert(from.last, probe);
+                    } else {
+                        addTrampoline(method, graph, from, to, probe, needsFrames);
+                    }
+                    break;
+                case RETURN:
+                    instructions.insertBefore(blocks.get(edge.from).last, probe);
+                    break;
+                case INVOKE:
+                    instructions.insert(probe);
+                    break;
+                case CATCH:
+                    instructions.insertBefore(blocks.get(edge.to).first, probe);
+                    break;
+                case UNCAUGHT:
+                    LabelNode handler = new LabelNode();
+                    InsnList catchAll = new InsnList();
+                    catchAll.add(handler);
+                    if (needsFrames) {
+                        catchAll.add(new FrameNode(F_NEW, 0, new Object[0], 1, new Object[]{"java/lang/Throwable"}));
+                    }
+                    catchAll.add(probe);
+                    catchAll.add(new InsnNode(ATHROW));
+                    // Trampolines may follow, but they are outside the protected range
+                    instructions.add(catchAll);
+                    method.tryCatchBlocks.add(new TryCatchBlockNode(methodStart, methodEnd, handler, null));
+                    catchAllAdded = true;
+                    break;
+                default:
+                    throw new IllegalStateException("Can't count " + edge.kind + " edges");
+            }
+        }
+        int probeStack = ArrayProbeMethodVisitor.probeStackSize(false);
+        method.maxStack += probeStack;
+        if (catchAllAdded) {
+            method.maxStack = Math.max(method.maxStack, 1 + probeStack);
+        }
+    }
+
+    private static boolean isJump(AbstractInsnNode insn) {
+        return insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode
+                || insn instanceof LookupSwitchInsnNode;
+    }
+
+    /**
+     * Points the jumps from one block to another at a new bit of code at the end of the method that counts the edge
+     * and then jumps on to the original target.
+     */
+    static void addTrampoline(MethodNode method, ControlFlowGraph graph, Block from, Block to, InsnList probe,
+                                      boolean needsFrames) {
+        LabelNode trampoline = new LabelNode();
+        LabelNode target;
+        if (from.last instanceof JumpInsnNode) {
+            JumpInsnNode jump = (JumpInsnNode) from.last;
+            target = jump.label;
+            jump.label = trampoline;
+        } else if (from.last instanceof TableSwitchInsnNode) {
+            TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) from.last;
+            target = retarget(graph, tableSwitch.labels, to, trampoline);
+            if (graph.blockAt(tableSwitch.dflt) == to) {
+                target = tableSwitch.dflt;
+                tableSwitch.dflt = trampoline;
+            }
+        } else {
+            LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) from.last;
+            target = retarget(graph, lookupSwitch.labels, to, trampoline);
+            if (graph.blockAt(lookupSwitch.dflt) == to) {
+                target = lookupSwitch.dflt;
+                lookupSwitch.dflt = trampoline;
+            }
+        }
+
+        InsnList code = new InsnList();
+        code.add(trampoline);
+        if (needsFrames) {
+            FrameNode frame = ControlFlowGraph.frameOf(to);
+            code.add(new FrameNode(F_NEW, frame.local.size(), frame.local.toArray(), frame.stack.size(),
+                    frame.stack.toArray()));
+        }
+        code.add(probe);
+        code.add(new JumpInsnNode(GOTO, target));
+        method.instructions.add(code);
+    }
+
+    private static LabelNode retarget(ControlFlowGraph graph, List<LabelNode> labels, Block to, LabelNode trampoline) {
+        LabelNode target = null;
+        for (int i = 0; i < labels.size(); i++) {
+            if (graph.blockAt(labels.get(i)) == to) {
+                target = labels.get(i);
+                labels.set(i, trampoline);
+            }
+        }
+        return target;
+    }
+
+    private InsnList probe(int slot) {
+        MethodNode probe = new MethodNode();
+        ArrayProbeMethodVisitor.visitProbe(probe, className, slot, false);
+        return probe.instructions;
+    }
+}
@@ -0,0 +1,69 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.set.IntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.annotation.Nullable;
+
+/**
+ * Registers the lines of a class that is sampled rather than instrumented, see
+ * {@link SkybarRegistry#setSampling(boolean)}. Nothing is written, the class stays as it is; classes without a source
+ * file attribute aren't registered, just like they don't get probes.
+ */
+final class LineTableVisitor extends ClassVisitor implements Opcodes {
+
+    private final SkybarRegistry registry;
+    private final IntSet lines = HashIntSets.newMutableSet();
+    private String className;
+    @Nullable
+    private String sourceFile;
+
+    LineTableVisitor(SkybarRegistry registry) {
+        super(ASM5);
+        this.registry = registry;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.className = name;
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+        this.sourceFile = className.substring(0, className.lastIndexOf("/") + 1) + source;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        if(sourceFile == null) {
+            return null;
+        }
+        return new MethodVisitor(ASM5) {
+            @Override
+            public void visitLineNumber(int line, Label start) {
+                lines.add(line);
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd() {
+        if(sourceFile != null && !lines.isEmpty()) {
+            registry.registerSampledClass(className.replace('/', '.'), registry.internSource(sourceFile),
+                    lines.toIntArray());
+        }
+    }
+
+    /**
+     * @return path of the source file of the class, as in "com/foo/Bar.java", or null if it has none
+     */
+    @Nullable
+    String getSourceFile() {
+        return sourceFile;
+    }
+}
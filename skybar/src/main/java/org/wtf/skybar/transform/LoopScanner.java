@@ -0,0 +1,172 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the methods of a class that have loops, straight from the Code attributes of the class file, so methods without
+ * them don't need to be buffered into a tree first. A loop here is what {@link SkybarClassVisitor} treats as one: a jump
+ * back to the same or an earlier instruction.
+ */
+final class LoopScanner implements Opcodes {
+
+    // Forms ASM reads into the plain instructions, so Opcodes has no names for them
+    private static final int LDC_W = 19;
+    private static final int LDC2_W = 20;
+    private static final int WIDE = 196;
+    private static final int GOTO_W = 200;
+    private static final int JSR_W = 201;
+
+    private LoopScanner() {
+    }
+
+    /**
+     * @return name + descriptor of each method with a backward jump, or null if the class file can't be scanned
+     */
+    @Nullable
+    static Set<String> methodsWithLoops(ClassReader reader) {
+        try {
+            return scan(reader);
+        } catch (RuntimeException e) {
+            // Let ASM have a go at reading it
+            return null;
+        }
+    }
+
+    private static Set<String> scan(ClassReader reader) {
+        char[] buf = new char[reader.getMaxStringLength()];
+        Set<String> methodsWithLoops = new HashSet<>();
+
+        // access, this class, super class, then the interfaces
+        int offset = reader.header + 6;
+        offset += 2 + 2 * reader.readUnsignedShort(offset);
+
+        int fieldCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            offset = skipAttributes(reader, offset + 6);
+        }
+
+        int methodCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < methodCount; i++) {
+            String name = reader.readUTF8(offset + 2, buf);
+            String desc = reader.readUTF8(offset + 4, buf);
+            int attributeCount = reader.readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributeCount; j++) {
+                int length = reader.readInt(offset + 2);
+                if ("Code".equals(reader.readUTF8(offset, buf))) {
+                    // max stack, max locals, then the code itself
+                    int codeLength = reader.readInt(offset + 10);
+                    if (hasBackwardJump(reader.b, offset + 14, codeLength)) {
+                        methodsWithLoops.add(name + desc);
+                    }
+                }
+                offset += 6 + length;
+            }
+        }
+        return methodsWithLoops;
+    }
+
+    private static int skipAttributes(ClassReader reader, int offset) {
+        int attributeCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            offset += 6 + reader.readInt(offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean hasBackwardJump(byte[] b, int codeStart, int codeLength) {
+        int pc = 0;
+        while (pc < codeLength) {
+            int opcode = b[codeStart + pc] & 0xFF;
+            if ((opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL) {
+                if (readShort(b, codeStart + pc + 1) <= 0) {
+                    return true;
+                }
+                pc += 3;
+            } else if (opcode == GOTO_W || opcode == JSR_W) {
+                if (readInt(b, codeStart + pc + 1) <= 0) {
+                    return true;
+                }
+                pc += 5;
+            } else if (opcode == TABLESWITCH) {
+                // Switches are not jumps, as far as loops are concerned
+                int operands = codeStart + pc + 4 - (pc & 3);
+                int low = readInt(b, operands + 4);
+                int high = readInt(b, operands + 8);
+                pc = operands - codeStart + 12 + 4 * (high - low + 1);
+            } else if (opcode == LOOKUPSWITCH) {
+                int operands = codeStart + pc + 4 - (pc & 3);
+                int pairs = readInt(b, operands + 4);
+                pc = operands - codeStart + 8 + 8 * pairs;
+            } else if (opcode == WIDE) {
+                pc += (b[codeStart + pc + 1] & 0xFF) == IINC ? 6 : 4;
+            } else {
+                pc += length(opcode);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the length of an instruction with fixed size operands
+     */
+    private static int length(int opcode) {
+        switch (opcode) {
+            case BIPUSH:
+            case LDC:
+            case ILOAD:
+            case LLOAD:
+            case FLOAD:
+            case DLOAD:
+            case ALOAD:
+            case ISTORE:
+            case LSTORE:
+            case FSTORE:
+            case DSTORE:
+            case ASTORE:
+            case RET:
+            case NEWARRAY:
+                return 2;
+            case SIPUSH:
+            case LDC_W:
+            case LDC2_W:
+            case IINC:
+            case GETSTATIC:
+            case PUTSTATIC:
+            case GETFIELD:
+            case PUTFIELD:
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC:
+            case NEW:
+            case ANEWARRAY:
+            case CHECKCAST:
+            case INSTANCEOF:
+                return 3;
+            case MULTIANEWARRAY:
+                return 4;
+            case INVOKEINTERFACE:
+            case INVOKEDYNAMIC:
+                return 5;
+            default:
+                return 1;
+        }
+    }
+
+    private static int readShort(byte[] b, int index) {
+        return (short) (((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF));
+    }
+
+    private static int readInt(byte[] b, int index) {
+        return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16) | ((b[index + 2] & 0xFF) << 8)
+                | (b[index + 3] & 0xFF);
+    }
+}
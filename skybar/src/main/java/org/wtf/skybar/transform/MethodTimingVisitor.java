@@ -0,0 +1,122 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times every call of a method into its latency histogram, see {@link SkybarRegistry#setMethodTiming(boolean)}. The
+ * method reads {@link System#nanoTime()} into a new local when it is entered, after the super or this call in a
+ * constructor, and hands it to an invokedynamic call site on every way out: before each return, and in a handler around
+ * the whole body that rethrows whatever it catches.
+ *
+ * Line probes are added further down the chain, so they don't see the timing code as lines of their own.
+ */
+class MethodTimingVisitor extends AdviceAdapter {
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapTimer", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, String.class, int.class).toMethodDescriptorString());
+
+    private final String className;
+    private final String sourceName;
+    private final String methodName;
+
+    /**
+     * Local holding the start time
+     */
+    private int startLocal;
+    private final Label tryStart = new Label();
+    private final Label tryEnd = new Label();
+    private final Label catchHandler = new Label();
+    private boolean entered;
+    /**
+     * The line the method starts on, as far as it has been visited
+     */
+    private int firstLine = -1;
+
+    /**
+     * @param sourceName source file, which the timer is published under
+     */
+    MethodTimingVisitor(String className, String sourceName, int access, String name, String desc,
+                        MethodVisitor mv) {
+        super(ASM5, mv, access, name, desc);
+        this.className = className;
+        this.sourceName = sourceName;
+        this.methodName = className.replace('/', '.') + "." + name + desc;
+    }
+
+    /**
+     * @return true if the method can be timed: it needs invokedynamic, and bridges only call the method they bridge to
+     */
+    static boolean canTime(int version, int access) {
+        return PerLineMethodVisitor.useInvokeDynamic(version) && (access & (ACC_BRIDGE | ACC_ABSTRACT | ACC_NATIVE)) == 0;
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        super.visitLineNumber(line, start);
+        if (firstLine == -1) {
+            firstLine = line;
+        }
+    }
+
+    @Override
+    protected void onMethodEnter() {
+        invokeStatic(Type.getType(System.class), new Method("nanoTime", "()J"));
+        startLocal = newLocal(Type.LONG_TYPE);
+        storeLocal(startLocal);
+        mark(tryStart);
+        entered = true;
+    }
+
+    @Override
+    protected void onMethodExit(int opcode) {
+        // A throw ends up in the catch handler
+        if (opcode != ATHROW) {
+            recordTime();
+        }
+    }
+
+    private void recordTime() {
+        loadLocal(startLocal);
+        mv.visitInvokeDynamicInsn("recordTime", "(J)V", BOOTSTRAP, sourceName, methodName, firstLine);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (entered) {
+            instrumentCatchHandler();
+        }
+        // The start time on top of a return value, or of the exception in the handler
+        super.visitMaxs(Math.max(maxStack + 2, 3), maxLocals);
+    }
+
+    private void instrumentCatchHandler() {
+        mark(tryEnd);
+        // After the method's own handlers, so it only sees what they don't catch
+        visitTryCatchBlock(tryStart, tryEnd, catchHandler, null);
+        mark(catchHandler);
+        List<Object> locals = new ArrayList<>();
+        if ((methodAccess & ACC_STATIC) == 0) {
+            locals.add(className);
+        }
+        for (Type argumentType : Type.getArgumentTypes(methodDesc)) {
+            locals.add(TryCatchMethodVisitor.getLocalObjectFor(argumentType));
+        }
+        // Classes new enough for invokedynamic need frames. The start time is added by the local variable sorter.
+        visitFrame(F_NEW, locals.size(), locals.toArray(), 1, new Object[]{"java/lang/Throwable"});
+        recordTime();
+        mv.visitInsn(ATHROW);
+    }
+}
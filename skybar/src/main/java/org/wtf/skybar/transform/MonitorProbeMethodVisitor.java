@@ -0,0 +1,221 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how long each monitor enter of a method waits for its lock, by line, see
+ * {@link SkybarRegistry#setLockContention(boolean)}. The clock is read in front of the monitor enter and swapped under
+ * the monitor, so the wait is measured without a local:
+ * <pre>
+ *     monitor                  -> INVOKESTATIC System.nanoTime
+ *                              -> DUP2_X1, POP2 (start, monitor)
+ *     MONITORENTER             -> MONITORENTER (start)
+ *                              -> INVOKEDYNAMIC enterMonitor(J)V
+ * </pre>
+ * A synchronized method has its lock taken by the JVM before it runs, so it can't be measured where it is. Instead the
+ * flag is dropped (see {@link #desugars(int, int)}) and the method takes and releases its lock itself, the way javac
+ * compiles a synchronized block: entering the monitor of this, or of the class for a static method, under its first
+ * line, exiting it before every return, and in a handler around the whole body that rethrows whatever it catches. Use
+ * {@link #forSynchronizedMethod} for those, which looks up the first line before the method is visited.
+ *
+ * Monitors entered before the first line number of a method have no line to record them under, and aren't measured.
+ */
+class MonitorProbeMethodVisitor extends MethodVisitor implements Opcodes {
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(SkybarRegistry.class),
+            "bootstrapMonitor", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, String.class, String.class, int.class).toMethodDescriptorString());
+
+    private final String className;
+    private final String sourceName;
+    private final String methodName;
+    private final int access;
+    private final String desc;
+    /**
+     * True if the method takes the lock of a synchronized method itself
+     */
+    private final boolean synchronizedMethod;
+    /**
+     * First line of a synchronized method, which its own lock is measured under
+     */
+    private final int methodLine;
+    private int lineNumber = -1;
+    private final Label tryStart = new Label();
+    private final Label tryEnd = new Label();
+    private final Label catchHandler = new Label();
+
+    /**
+     * @param sourceName source file, which the waits are published under
+     */
+    MonitorProbeMethodVisitor(String className, String sourceName, int access, String name, String desc,
+                              MethodVisitor mv) {
+        this(className, sourceName, access, name, desc, false, -1, mv);
+    }
+
+    private MonitorProbeMethodVisitor(String className, String sourceName, int access, String name, String desc,
+                                      boolean synchronizedMethod, int methodLine, MethodVisitor mv) {
+        super(ASM5, mv);
+        this.className = className;
+        this.sourceName = sourceName;
+        this.methodName = className.replace('/', '.') + "." + name + desc;
+        this.access = access;
+        this.desc = desc;
+        this.synchronizedMethod = synchronizedMethod;
+        this.methodLine = methodLine;
+    }
+
+    /**
+     * Like the constructor, but for a method that {@link #desugars(int, int)}. The method is buffered until its first
+     * line is known.
+     *
+     * @param access access flags of the method as it was, with the synchronized flag
+     * @param mv     visitor of the method without the synchronized flag
+     */
+    static MethodVisitor forSynchronizedMethod(String className, String sourceName, int access, String name,
+                                               String desc, String signature, String[] exceptions, MethodVisitor mv) {
+        return new FirstLineScan(className, sourceName, access, name, desc, signature, exceptions, mv);
+    }
+
+    /**
+     * @return true if the monitor waits of a class can be recorded, which takes invokedynamic
+     */
+    static boolean canRecord(int version) {
+        return PerLineMethodVisitor.useInvokeDynamic(version);
+    }
+
+    /**
+     * @return true if the method is synchronized, and has code to take its lock in instead
+     */
+    static boolean desugars(int version, int access) {
+        return canRecord(version) && (access & ACC_SYNCHRONIZED) != 0 && (access & (ACC_ABSTRACT | ACC_NATIVE)) == 0;
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        if (synchronizedMethod) {
+            loadLock();
+            enterMonitor(methodLine, tryStart);
+        }
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        super.visitLineNumber(line, start);
+        lineNumber = line;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (opcode == MONITORENTER) {
+            enterMonitor(lineNumber, null);
+            return;
+        }
+        if (synchronizedMethod && opcode >= IRETURN && opcode <= RETURN) {
+            loadLock();
+            super.visitInsn(MONITOREXIT);
+        }
+        super.visitInsn(opcode);
+    }
+
+    /**
+     * Enters the monitor on top of the stack
+     *
+     * @param entered label to put right after the monitor enter, or null
+     */
+    private void enterMonitor(int line, Label entered) {
+        if (line == -1) {
+            super.visitInsn(MONITORENTER);
+            if (entered != null) {
+                super.visitLabel(entered);
+            }
+            return;
+        }
+        super.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        super.visitInsn(DUP2_X1);
+        super.visitInsn(POP2);
+        super.visitInsn(MONITORENTER);
+        if (entered != null) {
+            super.visitLabel(entered);
+        }
+        super.visitInvokeDynamicInsn("enterMonitor", "(J)V", BOOTSTRAP, sourceName, methodName, line);
+    }
+
+    private void loadLock() {
+        if ((access & ACC_STATIC) != 0) {
+            super.visitLdcInsn(Type.getObjectType(className));
+        } else {
+            super.visitVarInsn(ALOAD, 0);
+        }
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (synchronizedMethod) {
+            instrumentCatchHandler();
+        }
+        // The start time twice on top of the monitor, or the lock on top of a return value
+        super.visitMaxs(Math.max(maxStack + 4, 5), maxLocals);
+    }
+
+    private void instrumentCatchHandler() {
+        super.visitLabel(tryEnd);
+        // After the method's own handlers, so it only sees what they don't catch
+        super.visitTryCatchBlock(tryStart, tryEnd, catchHandler, null);
+        super.visitLabel(catchHandler);
+        List<Object> locals = new ArrayList<>();
+        if ((access & ACC_STATIC) == 0) {
+            locals.add(className);
+        }
+        for (Type argumentType : Type.getArgumentTypes(desc)) {
+            locals.add(TryCatchMethodVisitor.getLocalObjectFor(argumentType));
+        }
+        super.visitFrame(F_NEW, locals.size(), locals.toArray(), 1, new Object[]{"java/lang/Throwable"});
+        loadLock();
+        super.visitInsn(MONITOREXIT);
+        super.visitInsn(ATHROW);
+    }
+
+    private static final class FirstLineScan extends MethodNode {
+        private final String className;
+        private final String sourceName;
+        private final MethodVisitor next;
+
+        FirstLineScan(String className, String sourceName, int access, String name, String desc, String signature,
+                      String[] exceptions, MethodVisitor next) {
+            super(ASM5, access, name, desc, signature, exceptions);
+            this.className = className;
+            this.sourceName = sourceName;
+            this.next = next;
+        }
+
+        @Override
+        public void visitEnd() {
+            super.visitEnd();
+            accept(new MonitorProbeMethodVisitor(className, sourceName, access, name, desc, true, firstLine(), next));
+        }
+
+        private int firstLine() {
+            for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LineNumberNode) {
+                    return ((LineNumberNode) insn).line;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.wtf.skybar.transform;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Instruments classes ahead of time, so a build can rewrite jars and class directories and the application starts
+ * without any ASM work. The instrumented classes need their {@link ClassMetadata} registered before they run, so the
+ * metadata of all the classes goes into a file next to them, for the agent to load at startup instead of transforming
+ * them. See the offline instrumenter in the tools module.
+ *
+ * Classes are instrumented for the registry's coverage-only and branch coverage modes, and only work with an agent in
+ * the same coverage-only mode. Their branches are counted whatever the agent's branch coverage mode. Classes too old
+ * for invokedynamic are only instrumented with array probes; with probes per line they would refer to their source by
+ * an id of the instrumenting JVM, so they are left for the agent.
+ */
+@ThreadSafe
+public final class OfflineInstrumentation {
+
+    /**
+     * Suffix of the metadata file written next to an instrumented jar or class directory
+     */
+    public static final String METADATA_SUFFIX = ".skybar";
+
+    private static final int MAGIC = 0x534b424d;
+    private static final int FORMAT_VERSION = 3;
+
+    private final ProbeStrategy probeStrategy;
+    private final boolean coverageOnly;
+    private final boolean branchCoverage;
+    private final boolean methodTiming;
+    private final boolean callGraph;
+    private final boolean allocationCounting;
+    private final boolean lockContention;
+    private final ClassNameMatcher classNameMatcher;
+    private final Queue<ClassMetadata> instrumented = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param includes prefixes of the internal names of the classes to instrument
+     * @param excludes prefixes of the internal names of classes to leave alone, or null
+     */
+    public OfflineInstrumentation(ProbeStrategy probeStrategy, String[] includes, @Nullable String[] excludes) {
+        this.probeStrategy = probeStrategy;
+        this.coverageOnly = SkybarRegistry.registry.isCoverageOnly();
+        this.branchCoverage = SkybarRegistry.registry.isBranchCoverage();
+        this.methodTiming = SkybarRegistry.registry.isMethodTiming();
+        this.callGraph = SkybarRegistry.registry.isCallGraph();
+        this.allocationCounting = SkybarRegistry.registry.isAllocationCounting();
+        this.lockContention = SkybarRegistry.registry.isLockContention();
+        this.classNameMatcher = new ClassNameMatcher(includes, excludes, null, null);
+    }
+
+    /**
+     * @return the instrumented class, or null if it is left as it is: not included, instrumented already, without a
+     * source file to count lines of, or with probes that only work in this JVM, see
+     * {@link SkybarClassVisitor#isCacheable()}. The agent instruments those when they load.
+     * @throws IllegalArgumentException if ASM can't read the class
+     */
+    @Nullable
+    public byte[] instrument(byte[] classBytes) {
+        ClassReader reader = new ClassReader(classBytes);
+        if(!classNameMatcher.matches(reader.getClassName()) || SkybarClassVisitor.isInstrumented(reader)) {
+            return null;
+        }
+        String key = ClassCache.keyOf(classBytes, probeStrategy, coverageOnly, branchCoverage, methodTiming,
+                callGraph, allocationCounting, lockContention, false);
+        ClassWriter writer = new ClassWriter(reader, 0);
+        SkybarClassVisitor visitor = new SkybarClassVisitor(writer, probeStrategy, key,
+                LoopScanner.methodsWithLoops(reader));
+        reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+        if(visitor.getSourceFile() == null || !visitor.isCacheable()) {
+            return null;
+        }
+        instrumented.add(ClassMetadata.of(key, visitor));
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return how many classes have been instrumented so far
+     */
+    public int getInstrumentedCount() {
+        return instrumented.size();
+    }
+
+    /**
+     * Writes the metadata of the classes instrumented so far. Call once they are all done.
+     */
+    public void writeMetadata(Path file) throws IOException {
+        List<ClassMetadata> classes = new ArrayList<>(instrumented);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeBoolean(coverageOnly);
+            out.writeInt(classes.size());
+            for (ClassMetadata metadata : classes) {
+                metadata.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Registers the classes of a metadata file, so that they count lines once they run. Their sources are looked up
+     * with the system class loader.
+     *
+     * @return the number of classes registered
+     * @throws IOException if the file can't be read, or the classes were instrumented for another coverage-only mode
+     */
+    public static int registerMetadata(Path file, SkybarRegistry registry) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IOException(file + " isn't Skybar metadata of this version");
+            }
+            boolean coverageOnly = in.get() != 0;
+            if(coverageOnly != registry.isCoverageOnly()) {
+                throw new IOException("The classes of " + file + " were instrumented with coverageOnly=" + coverageOnly
+                        + ", but the agent runs with coverageOnly=" + registry.isCoverageOnly());
+            }
+            int count = in.getInt();
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            for (int i = 0; i < count; i++) {
+                ClassMetadata.readFrom(in).register(registry, loader);
+            }
+            return count;
+        } catch (RuntimeException e) {
+            throw new IOException("Can't read " + file, e);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.wtf.skybar.transform;
 
+import net.openhft.koloboke.collect.set.IntSet;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -17,22 +18,34 @@ import java.lang.invoke.MethodType;
 class PerLineMethodVisitor extends WorkingLineNumberVisitor {
 
     private final int version;
-    private final String sourceFile;
-
-    public PerLineMethodVisitor(int version, String sourceFile, MethodVisitor mv) {
+    private final String sourceName;
+    private final int sourceId;
+    private final IntSet lines;
+
+    /**
+     * @param lines collects the instrumented lines, to be registered once the whole class has been visited
+     */
+    public PerLineMethodVisitor(int version, String sourceName, int sourceId, IntSet lines, MethodVisitor mv) {
         super(ASM5, mv);
         this.version = version;
-        this.sourceFile = sourceFile;
+        this.sourceName = sourceName;
+        this.sourceId = sourceId;
+        this.lines = lines;
     }
 
     @Override
     protected void onLineNumber(int lineNumber) {
-        SkybarRegistry.registry.registerLine(sourceFile, lineNumber);
+        lines.add(lineNumber);
 
-        reportSingleLineExecuted(lineNumber, sourceFile, version, mv);
+        reportSingleLineExecuted(lineNumber, sourceName, sourceId, version, mv);
     }
 
-    public static void reportSingleLineExecuted(int lineNumber, String sourceFile, int version, MethodVisitor mv) {
+    /**
+     * Call sites name their source file rather than its id, which is only valid in this run, so instrumented classes can
+     * be cached. The id is looked up once, when the call site is linked.
+     */
+    public static void reportSingleLineExecuted(int lineNumber, String sourceName, int sourceId, int version,
+                                                MethodVisitor mv) {
         if(useInvokeDynamic(version)) {
 
             // The invokedynamic byte code points to a bootstrap method used by the JVM to look up the call site method at the first executions.
@@ -48,29 +61,25 @@ class PerLineMethodVisitor extends WorkingLineNumberVisitor {
                     "bootstrap",
                     methodDescriptor);
 
-            // Pass sourceFile and lineNumber as "extra" arguments to the bootstrap method
-            mv.visitInvokeDynamicInsn("visitLine", "()V", bootstrap, sourceFile, lineNumber);
+            // Pass source name and lineNumber as "extra" arguments to the bootstrap method
+            mv.visitInvokeDynamicInsn("visitLine", "()V", bootstrap, sourceName, lineNumber);
         } else {
             // Slower, but compatible with Java <= 1.6
             // We output the byte code equivalent to:
-            //    SkybarRegistry.registry.getAdderForLine(sourceFile, lineNumber).add(1)
+            //    SkybarRegistry.registry.visitLine(sourceId, lineNumber)
 
             // Get the SkyBarRegistry instance onto the stack
             mv.visitFieldInsn(GETSTATIC, "org/wtf/skybar/registry/SkybarRegistry", "registry", "Lorg/wtf/skybar/registry/SkybarRegistry;");
-            // Add source file and line number
-            mv.visitLdcInsn(sourceFile);
+            // Add source id and line number
+            mv.visitLdcInsn(sourceId);
             mv.visitLdcInsn(lineNumber);
-            // Get the LongAdder
-            mv.visitMethodInsn(INVOKEVIRTUAL, "org/wtf/skybar/registry/SkybarRegistry", "getAdderForLine", "(Ljava/lang/String;I)Ljava/util/concurrent/atomic/LongAdder;", false);
-            // We are always adding one line visit
-            mv.visitInsn(LCONST_1);
-            // Invoke the add method
-            mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/concurrent/atomic/LongAdder", "add", "(J)V", false);
+            // Count the visit
+            mv.visitMethodInsn(INVOKEVIRTUAL, "org/wtf/skybar/registry/SkybarRegistry", "visitLine", "(II)V", false);
 
         }
     }
 
-    private static boolean useInvokeDynamic(int version) {
+    static boolean useInvokeDynamic(int version) {
         return version != Opcodes.V1_1 && version >= Opcodes.V1_7;
     }
 
@@ -0,0 +1,50 @@
+package org.wtf.skybar.transform;
+
+import java.util.Locale;
+
+/**
+ * How line probes count visits.
+ */
+public enum ProbeStrategy {
+    /**
+     * One invokedynamic call site per line, linked straight to that line's counter. Methods with loops count in local
+     * variables and report when they exit.
+     */
+    INVOKE_DYNAMIC,
+    /**
+     * One synthetic static long[] per class with a slot per line, so a probe is a plain array increment. The registry
+     * harvests the arrays on every delta pass. Interfaces keep using {@link #INVOKE_DYNAMIC} probes.
+     */
+    ARRAY,
+    /**
+     * Like {@link #ARRAY}, but with a slot per basic block rather than per line, so straight-line code pays for a
+     * single increment. The registry derives the line counts from the block counts.
+     */
+    BASIC_BLOCK,
+    /**
+     * Like {@link #BASIC_BLOCK}, but with a slot per control flow edge off a spanning tree of the method, so a loop costs
+     * a single increment per iteration. The registry derives the block and line counts from the edge counts. Methods
+     * where that isn't expected to pay off, and all methods in coverage-only mode, get a slot per basic block. While a
+     * method runs some of its counts can lag behind, and only catch up once it returns or throws.
+     */
+    EDGE;
+
+    /**
+     * @param name "indy", "array", "blocks" or "edges", as in the config
+     */
+    public static ProbeStrategy forName(String name) {
+        switch (name.trim().toLowerCase(Locale.US)) {
+            case "indy":
+                return INVOKE_DYNAMIC;
+            case "array":
+                return ARRAY;
+            case "blocks":
+                return BASIC_BLOCK;
+            case "edges":
+                return EDGE;
+            default:
+                throw new IllegalArgumentException("Unknown probe strategy '" + name.trim()
+                        + "', use indy, array, blocks or edges");
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package org.wtf.skybar.transform;
 
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.set.IntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
@@ -9,17 +14,144 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.registry.SkybarRegistry;
 
+import javax.annotation.Nullable;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Adds line probes to every method of a class that has a source file attribute.
+ *
+ * With any strategy but {@link ProbeStrategy#INVOKE_DYNAMIC} the class also gets a synthetic static long[] field holding its probe array, and a
+ * synthetic static accessor that fetches the array from the registry on first use. Both are private, and the class
+ * gets no static initializer, so the default serialVersionUID of the class doesn't change.
+ *
+ * Methods are buffered into a tree when their probes depend on the whole method, such as loops with invokedynamic
+ * probes or probes per basic block. The rest stream straight through, if the caller says which methods have loops.
+ * With branch coverage (see {@link SkybarRegistry#setBranchCoverage(boolean)}) every method is buffered, since branch
+ * probes go on the edges out of jumps and switches.
+ *
+ * With method timing (see {@link SkybarRegistry#setMethodTiming(boolean)}) every method of a class new enough for
+ * invokedynamic is also timed into a latency histogram, on top of whatever its lines get. Likewise with the call graph
+ * (see {@link SkybarRegistry#setCallGraph(boolean)}) its calls are counted by line and callee, and with allocation
+ * counting (see {@link SkybarRegistry#setAllocationCounting(boolean)}) its allocations by line. With lock contention
+ * accounting (see {@link SkybarRegistry#setLockContention(boolean)}) the monitor waits of its lines are recorded, and its
+ * synchronized methods take their locks in their own code, unless the class may be retransformed later.
+ *
+ * The instrumented class refers to its source file by name and to its probe array by key, never by an id that is only
+ * valid in this run, so the instrumented bytes can be cached and reused. See {@link ClassCache}.
+ */
 class SkybarClassVisitor extends ClassVisitor implements Opcodes {
+    static final String PROBES_NAME = "$skybarProbes";
+    static final String PROBES_ACCESSOR_DESC = "()[J";
+    private static final String REGISTRY_NAME = "org/wtf/skybar/registry/SkybarRegistry";
+    /**
+     * Tag of a class in the constant pool
+     */
+    private static final int CONSTANT_CLASS = 7;
+
+    /**
+     * Makes up probe array keys when the caller doesn't provide one
+     */
+    private static final AtomicInteger uniqueKeys = new AtomicInteger();
+
+    private final ProbeStrategy probeStrategy;
+    private final boolean coverageOnly;
+    /**
+     * Null without branch coverage
+     */
+    @Nullable
+    private final BranchKeys branchKeys;
+    /**
+     * True to time every method, see {@link MethodTimingVisitor}
+     */
+    private final boolean methodTiming;
+    /**
+     * True to count calls by line and callee, see {@link CallProbeMethodVisitor}
+     */
+    private final boolean callGraph;
+    /**
+     * Null without allocation counting, see {@link AllocationProbeMethodVisitor}
+     */
+    @Nullable
+    private final AllocationSites allocationSites;
+    /**
+     * True to record monitor waits, see {@link MonitorProbeMethodVisitor}
+     */
+    private final boolean lockContention;
+    /**
+     * True if the class may be retransformed, which can't change the flags of its methods
+     */
+    private final boolean retransformable;
+    @Nullable
+    private final String probeArrayKey;
+    /**
+     * Key of the probe array, which invokedynamic branch and allocation probes use for their counters too
+     */
+    private String key;
+    @Nullable
+    private final Set<String> methodsWithLoops;
     private String className;
     private String sourceFile;
+    private int sourceId;
     private int version;
+    private int access;
+    private final IntSet lines = HashIntSets.newMutableSet();
+    /**
+     * Probe array slot of each line, in the order lines are first seen. Only used with array probes.
+     */
+    private final IntIntMap probeSlots = HashIntIntMaps.newMutableMap();
+    /**
+     * Slots of the probe array and the lines they count
+     */
+    private final ProbeArrayLayout probeLayout = new ProbeArrayLayout();
+    private boolean probeArrayRegistered;
 
     public SkybarClassVisitor(ClassVisitor writer) {
+        this(writer, ProbeStrategy.INVOKE_DYNAMIC);
+    }
+
+    public SkybarClassVisitor(ClassVisitor writer, ProbeStrategy probeStrategy) {
+        this(writer, probeStrategy, null);
+    }
+
+    /**
+     * @param probeArrayKey key to register the probe array with. Classes with the same key share a probe array, so it
+     *                      must identify the class bytes and the way they are instrumented. Null for a key of its own.
+     */
+    public SkybarClassVisitor(ClassVisitor writer, ProbeStrategy probeStrategy, @Nullable String probeArrayKey) {
+        this(writer, probeStrategy, probeArrayKey, null);
+    }
+
+    /**
+     * @param methodsWithLoops name + descriptor of the methods with loops, see {@link LoopScanner}. Null to buffer every
+     *                         method and look for loops in the tree.
+     */
+    public SkybarClassVisitor(ClassVisitor writer, ProbeStrategy probeStrategy, @Nullable String probeArrayKey,
+                              @Nullable Set<String> methodsWithLoops) {
+        this(writer, probeStrategy, probeArrayKey, methodsWithLoops, false);
+    }
+
+    /**
+     * @param retransformable true if the class may be retransformed later, with or without probes. Its synchronized
+     *                        methods then stay synchronized, and their own monitor waits aren't recorded.
+     */
+    public SkybarClassVisitor(ClassVisitor writer, ProbeStrategy probeStrategy, @Nullable String probeArrayKey,
+                              @Nullable Set<String> methodsWithLoops, boolean retransformable) {
         super(ASM5, writer);
+        this.probeStrategy = probeStrategy;
+        this.coverageOnly = SkybarRegistry.registry.isCoverageOnly();
+        this.branchKeys = SkybarRegistry.registry.isBranchCoverage() ? new BranchKeys() : null;
+        this.methodTiming = SkybarRegistry.registry.isMethodTiming();
+        this.callGraph = SkybarRegistry.registry.isCallGraph();
+        this.allocationSites = SkybarRegistry.registry.isAllocationCounting() ? new AllocationSites() : null;
+        this.lockContention = SkybarRegistry.registry.isLockContention();
+        this.retransformable = retransformable;
+        this.probeArrayKey = probeArrayKey;
+        this.methodsWithLoops = methodsWithLoops;
     }
 
     @Override
@@ -27,28 +159,195 @@ class SkybarClassVisitor extends ClassVisitor implements Opcodes {
         super.visit(version, access, name, signature, superName, interfaces);
         this.className = name;
         this.version = version;
+        this.access = access;
+        this.key = probeArrayKey != null ? probeArrayKey : className + "#" + uniqueKeys.incrementAndGet();
     }
 
     @Override
     public void visitSource(String source, String debug) {
         super.visitSource(source, debug);
         this.sourceFile = className.substring(0, className.lastIndexOf("/") + 1) + source;
+        this.sourceId = SkybarRegistry.registry.internSource(sourceFile);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-        if(sourceFile != null) {
-            return new FirstPass(ASM5, access, name, desc, signature, exceptions, mv);
-        } else {
+        boolean desugar = sourceFile != null && lockContention && !retransformable
+                && MonitorProbeMethodVisitor.desugars(version, access);
+        MethodVisitor mv = super.visitMethod(desugar ? access & ~ACC_SYNCHRONIZED : access, name, desc, signature,
+                exceptions);
+        if(sourceFile == null) {
             return mv;
         }
+        MethodVisitor probes = lineProbes(access, name, desc, signature, exceptions, mv);
+        // Inside the timing, which starts once a synchronized method holds its lock
+        if(desugar) {
+            probes = MonitorProbeMethodVisitor.forSynchronizedMethod(className, sourceFile, access, name, desc,
+                    signature, exceptions, probes);
+        } else if(lockContention && MonitorProbeMethodVisitor.canRecord(version)) {
+            probes = new MonitorProbeMethodVisitor(className, sourceFile, access, name, desc, probes);
+        }
+        if(methodTiming && MethodTimingVisitor.canTime(version, access)) {
+            probes = new MethodTimingVisitor(className, sourceFile, access, name, desc, probes);
+        }
+        // In front of the timing, so it doesn't count the timing's calls
+        if(callGraph && CallProbeMethodVisitor.canCount(version)) {
+            probes = new CallProbeMethodVisitor(sourceFile, probes);
+        }
+        if(allocationSites != null && AllocationProbeMethodVisitor.canCount(version)) {
+            probes = new AllocationProbeMethodVisitor(key, allocationSites, probes);
+        }
+        return probes;
+    }
+
+    private MethodVisitor lineProbes(int access, String name, String desc, String signature, String[] exceptions,
+                                     MethodVisitor mv) {
+        if(probeStrategy == ProbeStrategy.ARRAY && useArrayProbes() && branchKeys == null) {
+            // An array increment is as cheap as a local counter, so loops need no special treatment
+            return new ArrayProbeMethodVisitor(className, coverageOnly, lines, probeSlots, probeLayout, mv);
+        } else if(!useArrayProbes() && methodsWithLoops != null && branchKeys == null
+                && (!methodsWithLoops.contains(name + desc) || isConstructor(name))) {
+            return new PerLineMethodVisitor(version, sourceFile, sourceId, lines, mv);
+        } else {
+            return new FirstPass(ASM5, access, name, desc, signature, exceptions, mv);
+        }
+    }
+
+    private static boolean isConstructor(String name) {
+        return "<init>".equals(name);
+    }
+
+    /**
+     * Registers all the lines of the class at once, so the registry can lay them out in one dense table.
+     */
+    @Override
+    public void visitEnd() {
+        if(sourceFile != null && !lines.isEmpty()) {
+            SkybarRegistry.registry.registerLines(sourceId, lines.toIntArray());
+            if(useArrayProbes()) {
+                SkybarRegistry.registry.registerProbeArray(key, sourceId, probeLayout);
+                probeArrayRegistered = true;
+                addProbeArray(key);
+            } else if(branchKeys != null && !branchKeys.isEmpty()) {
+                SkybarRegistry.registry.registerBranches(key, sourceId, branchKeys.toArray());
+            }
+            if(allocationSites != null && !allocationSites.isEmpty()) {
+                SkybarRegistry.registry.registerAllocations(key, sourceId, allocationSites.toArray());
+            }
+        }
+        super.visitEnd();
+    }
+
+    private boolean useArrayProbes() {
+        // Interface fields have to be public, so interfaces stick to probes that don't need one
+        return probeStrategy != ProbeStrategy.INVOKE_DYNAMIC && (access & ACC_INTERFACE) == 0;
+    }
+
+    /**
+     * Adds the probe array field and its accessor. We output the byte code equivalent to:
+     * <pre>
+     *    private static transient long[] $skybarProbes;
+     *
+     *    private static long[] $skybarProbes() {
+     *        long[] probes = $skybarProbes;
+     *        if(probes == null) {
+     *            $skybarProbes = probes = SkybarRegistry.registry.getProbeArray(probeArrayKey);
+     *        }
+     *        return probes;
+     *    }
+     * </pre>
+     * Threads racing on the first call all get the same array from the registry, so no locking is needed.
+     */
+    private void addProbeArray(String probeArrayKey) {
+        cv.visitField(ACC_PRIVATE | ACC_STATIC | ACC_TRANSIENT | ACC_SYNTHETIC, PROBES_NAME, "[J", null, null)
+                .visitEnd();
+
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, PROBES_NAME, PROBES_ACCESSOR_DESC,
+                null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, className, PROBES_NAME, "[J");
+        mv.visitInsn(DUP);
+        Label initialized = new Label();
+        mv.visitJumpInsn(IFNONNULL, initialized);
+        mv.visitInsn(POP);
+        mv.visitFieldInsn(GETSTATIC, REGISTRY_NAME, "registry", "Lorg/wtf/skybar/registry/SkybarRegistry;");
+        mv.visitLdcInsn(probeArrayKey);
+        mv.visitMethodInsn(INVOKEVIRTUAL, REGISTRY_NAME, "getProbeArray",
+                "(Ljava/lang/String;)[J", false);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(PUTSTATIC, className, PROBES_NAME, "[J");
+        mv.visitLabel(initialized);
+        if((version & 0xFFFF) >= V1_6) {
+            mv.visitFrame(F_NEW, 0, new Object[0], 1, new Object[]{"[J"});
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(2, 0);
+        mv.visitEnd();
     }
 
     public String getSourceFile() {
         return sourceFile;
     }
 
+    String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return the lines registered for the class, in no particular order
+     */
+    int[] getLines() {
+        return lines.toIntArray();
+    }
+
+    /**
+     * @return the keys of the branch outcomes registered for the class with invokedynamic probes, by index. Array
+     * probes have theirs in the probe layout.
+     */
+    int[] getBranches() {
+        return branchKeys != null && !useArrayProbes() ? branchKeys.toArray() : new int[0];
+    }
+
+    /**
+     * @return the keys of the allocation counters registered for the class, by index
+     */
+    int[] getAllocations() {
+        return allocationSites != null ? allocationSites.toArray() : new int[0];
+    }
+
+    /**
+     * @return the layout of the probe array registered for the class, or null if it has none
+     */
+    @Nullable
+    ProbeArrayLayout getProbeLayout() {
+        return probeArrayRegistered ? probeLayout : null;
+    }
+
+    /**
+     * @return false if the instrumented class refers to its source file by id, which is only valid in this run. Classes
+     * too old for invokedynamic do when they get probes per line.
+     */
+    boolean isCacheable() {
+        return useArrayProbes() || PerLineMethodVisitor.useInvokeDynamic(version);
+    }
+
+    /**
+     * @return true if the class has probes already, which it does if it refers to the registry. Classes instrumented
+     * ahead of time do, see {@link OfflineInstrumentation}.
+     */
+    static boolean isInstrumented(ClassReader reader) {
+        char[] buf = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            // The second slot of a long or double constant has no item
+            if (offset > 0 && reader.b[offset - 1] == CONSTANT_CLASS
+                    && REGISTRY_NAME.equals(reader.readUTF8(offset, buf))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     class FirstPass extends MethodNode {
         private final MethodVisitor mv;
 
@@ -60,19 +359,41 @@ class SkybarClassVisitor extends ClassVisitor implements Opcodes {
         @Override
         public void visitEnd() {
             super.visitEnd();
-            if (hasLoops() && !isConstructor(name)) {
+            if (useArrayProbes()) {
+                ControlFlowGraph graph = ControlFlowGraph.of(this);
+                // Edge counts only add up when they are real counts
+                boolean edgeProbes = probeStrategy == ProbeStrategy.EDGE && !coverageOnly
+                        && new EdgeProbeInserter(className, version, lines, probeLayout, branchKeys)
+                        .insertProbes(this, graph);
+                if (!edgeProbes && branchKeys != null) {
+                    new BranchProbeInserter(className, version, coverageOnly, branchKeys, probeLayout, key)
+                            .insertProbes(this, graph);
+                }
+                if (probeStrategy == ProbeStrategy.ARRAY) {
+                    accept(new ArrayProbeMethodVisitor(className, coverageOnly, lines, probeSlots, probeLayout, mv));
+                    return;
+                }
+                if (!edgeProbes) {
+                    new BasicBlockProbeInserter(className, coverageOnly, lines, probeLayout).insertProbes(this, graph);
+                }
+                accept(mv);
+                return;
+            }
+            // Trampolines of branch probes jump backwards, but they're no loop to count lines in locals for
+            boolean loops = hasLoops();
+            if (branchKeys != null) {
+                new BranchProbeInserter(className, version, coverageOnly, branchKeys, null, key)
+                        .insertProbes(this, ControlFlowGraph.of(this));
+            }
+            if (loops && !isConstructor(name)) {
                 LocalVariablesSorter localVariablesSorter = new LocalVariablesSorter(access, desc, mv);
-                accept(new TryCatchMethodVisitor(className, version, access, desc, sourceFile, mv, instructions, localVariablesSorter));
+                accept(new TryCatchMethodVisitor(className, version, access, desc, sourceFile, sourceId, lines, mv, instructions, localVariablesSorter));
             } else {
-                accept(new PerLineMethodVisitor(version, sourceFile, mv));
+                accept(new PerLineMethodVisitor(version, sourceFile, sourceId, lines, mv));
             }
 
         }
 
-        private boolean isConstructor(String name) {
-            return "<init>".equals(name);
-        }
-
         private boolean hasLoops() {
             Set<Label> visitedLabels = new HashSet<>();
 
@@ -13,20 +13,46 @@ import org.slf4j.LoggerFactory;
 import org.objectweb.asm.util.TraceClassVisitor;
 import org.wtf.skybar.registry.SkybarRegistry;
 
+import javax.annotation.Nullable;
+
 public class SkybarTransformer implements ClassFileTransformer {
     private static final Logger logger = LoggerFactory.getLogger(SkybarTransformer.class);
-    private final String[] includes;
-    private final String[] excludes;
-    private final Pattern includeRegex;
-    private final Pattern excludeRegex;
+    private final ClassNameMatcher classNameMatcher;
+    private final ProbeStrategy probeStrategy;
+    @Nullable
+    private final ClassCache cache;
+    private final boolean retransformable;
 
 
     public SkybarTransformer(String[] includes, String[] excludes, Pattern includeRegex, Pattern excludeRegex) {
+        this(includes, excludes, includeRegex, excludeRegex, ProbeStrategy.INVOKE_DYNAMIC);
+    }
+
+    public SkybarTransformer(String[] includes, String[] excludes, Pattern includeRegex, Pattern excludeRegex,
+                             ProbeStrategy probeStrategy) {
+        this(includes, excludes, includeRegex, excludeRegex, probeStrategy, null);
+    }
 
-        this.includes = includes;
-        this.excludes = excludes;
-        this.includeRegex = includeRegex;
-        this.excludeRegex = excludeRegex;
+    /**
+     * @param cache where to look for classes instrumented earlier, and keep the ones instrumented now. Null to
+     *              instrument every class from scratch.
+     */
+    public SkybarTransformer(String[] includes, String[] excludes, Pattern includeRegex, Pattern excludeRegex,
+                             ProbeStrategy probeStrategy, @Nullable ClassCache cache) {
+        this(includes, excludes, includeRegex, excludeRegex, probeStrategy, cache, false);
+    }
+
+    /**
+     * @param retransformable true if the classes may be retransformed later, as they are when the agent is attached
+     *                        and detached. See {@link SkybarClassVisitor}.
+     */
+    public SkybarTransformer(String[] includes, String[] excludes, Pattern includeRegex, Pattern excludeRegex,
+                             ProbeStrategy probeStrategy, @Nullable ClassCache cache, boolean retransformable) {
+
+        this.cache = cache;
+        this.retransformable = retransformable;
+        this.classNameMatcher = new ClassNameMatcher(includes, excludes, includeRegex, excludeRegex);
+        this.probeStrategy = probeStrategy;
     }
 
     @Override
@@ -34,8 +60,35 @@ public class SkybarTransformer implements ClassFileTransformer {
             ProtectionDomain protectionDomain, byte[] bytes) throws IllegalClassFormatException {
 
         if(shouldInstrument(className, loader, bytes))  {
-            logger.debug("Instrumenting " + className);
             ClassReader reader = new ClassReader(bytes);
+            if(SkybarClassVisitor.isInstrumented(reader)) {
+                logger.debug("Leaving " + className + " alone, it has probes already");
+                return bytes;
+            }
+            if(SkybarRegistry.registry.isSampling()) {
+                LineTableVisitor lineTable = new LineTableVisitor(SkybarRegistry.registry);
+                reader.accept(lineTable, ClassReader.SKIP_FRAMES);
+                if(lineTable.getSourceFile() != null) {
+                    SkybarRegistry.registry.registerClassLoader(lineTable.getSourceFile(), loader);
+                }
+                // Sampled classes stay as they are
+                return null;
+            }
+            // Hashing is cheap next to instrumenting, and gives the probe array a key that is the same in every run
+            String key = ClassCache.keyOf(bytes, probeStrategy, SkybarRegistry.registry.isCoverageOnly(),
+                    SkybarRegistry.registry.isBranchCoverage(), SkybarRegistry.registry.isMethodTiming(),
+                    SkybarRegistry.registry.isCallGraph(), SkybarRegistry.registry.isAllocationCounting(),
+                    SkybarRegistry.registry.isLockContention(), retransformable);
+            if(cache != null) {
+                ClassCache.CachedClass cached = cache.get(key);
+                if(cached != null) {
+                    logger.debug("Using cached instrumentation of " + className);
+                    cached.metadata.register(SkybarRegistry.registry, loader);
+                    return cached.classBytes;
+                }
+            }
+
+            logger.debug("Instrumenting " + className);
             ClassWriter writer = new ClassWriter(reader, 0);
             ClassVisitor visitor = writer;
             if(shouldTrace()) {
@@ -44,11 +97,17 @@ public class SkybarTransformer implements ClassFileTransformer {
                 reader.accept(new TraceClassVisitor(new PrintWriter(System.out)), ClassReader.EXPAND_FRAMES);
             }
             try {
-                SkybarClassVisitor skybarVisitor = new SkybarClassVisitor(visitor);
+                SkybarClassVisitor skybarVisitor = new SkybarClassVisitor(visitor, probeStrategy, key,
+                        LoopScanner.methodsWithLoops(reader), retransformable);
                 reader.accept(skybarVisitor, ClassReader.EXPAND_FRAMES);
                 if(skybarVisitor.getSourceFile() != null) {
                     SkybarRegistry.registry.registerClassLoader(skybarVisitor.getSourceFile(), loader);
                 }
+                byte[] instrumented = writer.toByteArray();
+                if(cache != null && skybarVisitor.isCacheable()) {
+                    cache.put(key, new ClassCache.CachedClass(ClassMetadata.of(key, skybarVisitor), instrumented));
+                }
+                return instrumented;
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -61,47 +120,29 @@ public class SkybarTransformer implements ClassFileTransformer {
         return false;
     }
 
+    /**
+     * @return true if the transformer would instrument the class, if it was loaded again or retransformed
+     */
+    public boolean shouldInstrument(Class<?> clazz) {
+        return shouldInstrument(clazz.getName().replace('.', '/'), clazz.getClassLoader());
+    }
+
     private boolean shouldInstrument(String className, ClassLoader loader, byte[] bytes) {
+        if (bytes == null) {
+            return false; // Can't instrument with no byte code
+        }
+        return shouldInstrument(className, loader);
+    }
+
+    private boolean shouldInstrument(String className, ClassLoader loader) {
         if(loader == null) {
             return false; // JDK classes
         }
         if(className == null) {
             return false; // Lambda weirdness?
         }
-        if (className.startsWith("org/wtf/skybar")) {
-            return false; // Can't instrument self
-        }
-        if (bytes == null) {
-            return false; // Can't instrument with no byte code
-        }
-
-        if(className.contains("$$")) {
-            return false;
-        }
         // Ok, do we match our pattern?
         // TODO figure out what to do with classes we can't find source for
-
-        if(matches(className, includes) && !matches(className, excludes)) {
-            return true;
-        }
-        if(matchesRegex(className, includeRegex) && ! matchesRegex(className, excludeRegex)) {
-            return true;
-        }
-        return false;
-    }
-
-    private boolean matchesRegex(String className, Pattern pattern) {
-        return pattern != null && pattern.matcher(className).matches();
-    }
-
-    private boolean matches(String className, String[] patterns) {
-        if(patterns != null) {
-            for (String pattern : patterns) {
-                if (className.startsWith(pattern)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return classNameMatcher.matches(className);
     }
 }
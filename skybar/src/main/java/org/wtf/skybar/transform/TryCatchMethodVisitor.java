@@ -2,6 +2,7 @@ package org.wtf.skybar.transform;
 
 import net.openhft.koloboke.collect.map.IntIntMap;
 import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.set.IntSet;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -15,12 +16,12 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.LongAdder;
 
 import static org.objectweb.asm.Type.*;
 
 /**
  * Inserts instrumentation to update the SkybarRegistry on each method exit. Line visits are tracked as increments of local variables.
+ * In coverage-only mode each exit report disables itself once it has reported a visited line.
  */
 class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
 
@@ -28,7 +29,9 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
     private final int version;
     private final int access;
     private final String desc;
-    private final String sourceFile;
+    private final String sourceName;
+    private final int sourceId;
+    private final IntSet lines;
     private final MethodVisitor mv;
     private final InsnList instructions;
     private final LocalVariablesSorter localVariablesSorter;
@@ -40,13 +43,15 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
     private boolean entered;
 
 
-    public TryCatchMethodVisitor(String className, int version, int access, String desc, String sourceFile, MethodVisitor mv, InsnList instructions, LocalVariablesSorter localVariablesSorter) {
+    public TryCatchMethodVisitor(String className, int version, int access, String desc, String sourceName, int sourceId, IntSet lines, MethodVisitor mv, InsnList instructions, LocalVariablesSorter localVariablesSorter) {
         super(ASM5, localVariablesSorter);
         this.className = className;
         this.version = version;
         this.access = access;
         this.desc = desc;
-        this.sourceFile = sourceFile;
+        this.sourceName = sourceName;
+        this.sourceId = sourceId;
+        this.lines = lines;
         this.mv = mv;
         this.instructions = instructions;
         this.localVariablesSorter = localVariablesSorter;
@@ -73,11 +78,11 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
 
     @Override
     protected void onLineNumber(int lineNumber) {
-        SkybarRegistry.registry.registerLine(sourceFile, lineNumber);
+        lines.add(lineNumber);
         if(entered) {
             mv.visitIincInsn(lineNumberLocals.get(lineNumber), 1);
         } else {
-           PerLineMethodVisitor.reportSingleLineExecuted(lineNumber, sourceFile, version, mv);
+           PerLineMethodVisitor.reportSingleLineExecuted(lineNumber, sourceName, sourceId, version, mv);
         }
     }
 
@@ -108,27 +113,25 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
 
                 mv.visitInsn(I2L);
 
-                mv.visitInvokeDynamicInsn(methodName, "(J)V", bootstrap, sourceFile, line);
+                mv.visitInvokeDynamicInsn(methodName, "(J)V", bootstrap, sourceName, line);
 
             } else {
                 // Slower, but compatible with Java <= 1.6
                 // We output the byte code equivalent to:
-                //    SkybarRegistry.registry.getAdderForLine(sourceFile, lineNumber).add(numExecutionsOfLineX)
+                //    SkybarRegistry.registry.visitLine(sourceId, lineNumber, numExecutionsOfLineX)
 
 
                 // Get the SkyBarRegistry instance onto the stack
                 mv.visitFieldInsn(GETSTATIC, getInternalName(SkybarRegistry.class), "registry", getDescriptor(SkybarRegistry.class));
-                // Add source file and line number
-                mv.visitLdcInsn(sourceFile);
+                // Add source id and line number
+                mv.visitLdcInsn(sourceId);
                 mv.visitLdcInsn(line);
-                // Get the LongAdder
-                mv.visitMethodInsn(INVOKEVIRTUAL, getInternalName(SkybarRegistry.class), "getAdderForLine", getMethodDescriptor(getType(LongAdder.class), getType(String.class), Type.INT_TYPE), false);
                 // Load the execution count for the line
                 mv.visitVarInsn(ILOAD, local);
-                // LongAdder expects a long
+                // The registry expects a long
                 mv.visitInsn(I2L);
-                // Invoke the add method
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/concurrent/atomic/LongAdder", "add", "(J)V", false);
+                // Count the visits
+                mv.visitMethodInsn(INVOKEVIRTUAL, getInternalName(SkybarRegistry.class), "visitLine", getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.LONG_TYPE), false);
 
             }
         });
@@ -141,7 +144,8 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
     @Override
     public void visitMaxs(int maxStack, int maxLocals) {
         instrumentCatchHandler();
-        super.visitMaxs(maxStack + 3, maxLocals + lineNumberLocals.size());
+        // registry, source id, line and a long count for the non-indy report
+        super.visitMaxs(maxStack + 5, maxLocals + lineNumberLocals.size());
     }
 
     private void instrumentCatchHandler() {
@@ -162,7 +166,7 @@ class TryCatchMethodVisitor extends WorkingLineNumberVisitor {
         mv.visitInsn(ATHROW);
     }
 
-    private Object getLocalObjectFor(Type argumentType) {
+    static Object getLocalObjectFor(Type argumentType) {
         Object t;
         switch (argumentType.getSort()) {
             case Type.BOOLEAN:
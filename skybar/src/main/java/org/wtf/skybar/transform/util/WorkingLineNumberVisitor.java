@@ -17,7 +17,10 @@ public class WorkingLineNumberVisitor extends MethodVisitor implements Opcodes{
         super(api, mv);
     }
 
-    private int lineNumber;
+    /**
+     * Line to report before the next instruction, or -1 if it has been reported
+     */
+    private int lineNumber = -1;
 
     @Override
     public void visitLineNumber(int line, Label start) {
@@ -0,0 +1,85 @@
+package org.wtf.skybar.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.wtf.skybar.registry.CallEdge;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers a GET with the call graph as a JSON array of edges, most called first:
+ * [{"source":"com/foo/Bar.java","line":12,"callee":"com.foo.Baz.qux(I)V","count":1234}, ...]. The optional "source"
+ * parameter keeps only the calls made from that source file, "callee" only the calls of methods whose name starts
+ * with it, and "limit" keeps only that many edges.
+ */
+public class CallGraphHandler extends AbstractHandler {
+    private final SkybarRegistry registry;
+
+    public CallGraphHandler(SkybarRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+        if (!"GET".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        int limit = limitOf(request.getParameter("limit"));
+        if (limit < 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be a number");
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.getWriter().write(toJson(registry, registry.getCallGraph(), request.getParameter("source"),
+                request.getParameter("callee"), limit));
+    }
+
+    /**
+     * @param limitParam the limit parameter of the request, or null
+     * @return the most edges to send, no limit without the parameter, or -1 if it isn't a number or is negative
+     */
+    static int limitOf(@Nullable String limitParam) {
+        if (limitParam == null) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Math.max(Integer.parseInt(limitParam), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String toJson(SkybarRegistry registry, List<CallEdge> edges, String source, String callee, int limit) {
+        List<Map<String, Object>> json = new ArrayList<>();
+        edges.stream()
+                .filter(edge -> source == null || source.equals(registry.getSourceName(edge.getSourceId())))
+                .filter(edge -> callee == null || edge.getCallee().startsWith(callee))
+                .sorted(Comparator.comparingLong(CallEdge::getCount).reversed())
+                .limit(limit)
+                .forEach(edge -> {
+                    Map<String, Object> entry = new HashMap<>();
+                    entry.put("source", registry.getSourceName(edge.getSourceId()));
+                    entry.put("line", edge.getLineNumber());
+                    entry.put("callee", edge.getCallee());
+                    entry.put("count", edge.getCount());
+                    json.add(entry);
+                });
+        return JSON.toString(json);
+    }
+}
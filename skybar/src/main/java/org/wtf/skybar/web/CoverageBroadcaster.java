@@ -0,0 +1,215 @@
+package org.wtf.skybar.web;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.registry.SkybarRegistry.DeltaListener;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands the deltas of the registry to every {@link CoverageWebSocket}. The registry calls it on its timer thread, which
+ * only queues the delta; the frames are encoded and sent on a thread of the broadcaster, so a slow client never holds up
+ * the delta pass. A delta is encoded once for all the clients that get every source, as JSON or binary frames they
+ * share; only clients with a subscription get frames of their own.
+ *
+ * Everything a client is sent goes through that thread, in the order the registry produced it, so the snapshots a client
+ * gets on connecting and on subscribing are never overtaken by a delta.
+ *
+ * The last {@link #RESUMABLE_DELTAS} deltas are kept, by sequence number, for clients that lost their connection. A
+ * client that reconnects with the number of the last delta it got is only sent the ones it missed, rather than a
+ * snapshot of every source, as long as they are still kept.
+ */
+class CoverageBroadcaster extends AbstractLifeCycleListener implements DeltaListener {
+    private static final Logger LOG = Log.getLogger(CoverageBroadcaster.class);
+    /**
+     * Deltas kept for clients that reconnect, half a minute of them at the pulse of RegistryUpdateListeners
+     */
+    static final int RESUMABLE_DELTAS = 150;
+    private final SkybarRegistry registry;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CoverageBroadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Only used on the thread of the broadcaster, like the shared encoder
+     */
+    private final List<CoverageWebSocket> clients = new ArrayList<>();
+    private final CoverageFrameEncoder sharedEncoder;
+    /**
+     * The last deltas, oldest first. Added to under the lock of the registry, and with the task that sends each delta
+     * queued under its own lock, so a client that resumes gets the deltas it missed before the ones after.
+     */
+    private final ArrayDeque<SharedDelta> recent = new ArrayDeque<>();
+    /**
+     * Sequence number of the last delta, guarded by recent
+     */
+    private long latestSequence;
+
+    CoverageBroadcaster(SkybarRegistry registry) {
+        this.registry = registry;
+        this.sharedEncoder = new CoverageFrameEncoder(registry);
+    }
+
+    SkybarRegistry getRegistry() {
+        return registry;
+    }
+
+    void start() {
+        long sequence = registry.registerListener(this);
+        synchronized (recent) {
+            latestSequence = Math.max(latestSequence, sequence);
+        }
+    }
+
+    @Override
+    public void lifeCycleStopping(LifeCycle event) {
+        registry.unregisterListener(this);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends the client a snapshot of every source, then the deltas after it
+     */
+    void connect(CoverageWebSocket client) {
+        registry.getCurrentSnapshotOf(sourceId -> true, snapshot -> {
+            long sequence = registry.getDeltaSequence();
+            execute(() -> {
+                clients.add(client);
+                client.sendSnapshot(snapshot, sequence);
+            });
+        });
+    }
+
+    /**
+     * Sends the client the deltas after the last one it got, added up, then the deltas after those, as if it had never
+     * left. Connects it like a new client if they aren't all kept anymore.
+     *
+     * @param lastSequence sequence number of the last delta the client got
+     */
+    void resume(CoverageWebSocket client, long lastSequence) {
+        synchronized (recent) {
+            long oldest = recent.isEmpty() ? latestSequence : recent.getFirst().sequence - 1;
+            if (lastSequence >= oldest && lastSequence <= latestSequence) {
+                List<SharedDelta> missed = new ArrayList<>();
+                for (SharedDelta delta : recent) {
+                    if (delta.sequence > lastSequence) {
+                        missed.add(delta);
+                    }
+                }
+                long sequence = latestSequence;
+                execute(() -> {
+                    clients.add(client);
+                    client.resume(missed, sequence);
+                });
+                return;
+            }
+        }
+        // Outside the lock of the deltas, which the registry takes under its own
+        connect(client);
+    }
+
+    /**
+     * Sends the client a snapshot of the sources it subscribes to, then only the counts of those
+     *
+     * @param prefixes prefixes of source names, or null for every source
+     */
+    void subscribe(CoverageWebSocket client, @Nullable String[] prefixes) {
+        // Under the lock of the registry, so every delta is queued either before the subscription changes or after its
+        // snapshot
+        registry.getCurrentSnapshotOf(
+                sourceId -> CoverageSubscription.matches(prefixes, registry.getSourceName(sourceId)),
+                snapshot -> {
+                    long sequence = registry.getDeltaSequence();
+                    execute(() -> client.subscribe(prefixes, snapshot, sequence));
+                });
+    }
+
+    void disconnect(CoverageWebSocket client) {
+        execute(() -> clients.remove(client));
+    }
+
+    /**
+     * Called by SkybarRegistry once per time period on its timer thread; only queues the delta
+     */
+    @Override
+    public void accept(IntObjMap<IntLongMap> delta) {
+        SharedDelta shared = new SharedDelta(delta, registry.getDeltaSequence());
+        synchronized (recent) {
+            recent.addLast(shared);
+            if (recent.size() > RESUMABLE_DELTAS) {
+                recent.removeFirst();
+            }
+            latestSequence = shared.sequence;
+            execute(() -> broadcast(shared));
+        }
+    }
+
+    private void broadcast(SharedDelta delta) {
+        for (CoverageWebSocket client : clients) {
+            try {
+                client.sendDelta(delta);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to send a delta", e);
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the thread of the broadcaster, after what is queued, unless it is stopped
+     */
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Stopped, not sending to clients");
+        }
+    }
+
+    /**
+     * A delta with the frames of the clients that get every source, each encoded the first time a client needs it and
+     * never changed after that
+     */
+    final class SharedDelta {
+        final IntObjMap<IntLongMap> counts;
+        final long sequence;
+        @Nullable
+        private String json;
+        @Nullable
+        private byte[] binary;
+
+        SharedDelta(IntObjMap<IntLongMap> counts, long sequence) {
+            this.counts = counts;
+            this.sequence = sequence;
+        }
+
+        String json() {
+            if (json == null) {
+                json = CoverageWebSocket.toJson(registry, counts);
+            }
+            return json;
+        }
+
+        /**
+         * @return a buffer of its own over the shared frame
+         */
+        ByteBuffer binary() {
+            if (binary == null) {
+                binary = sharedEncoder.encode(counts, CoverageFrameEncoder.DELTA, sequence);
+            }
+            return ByteBuffer.wrap(binary).asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.wtf.skybar.web;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+
+/**
+ * The sources a client of the coverage websocket wants the counts of. A client starts out with every source, and can
+ * narrow that down to the sources whose names start with one of a few prefixes, as in "com/foo/Bar.java" for a single
+ * source or "com/foo/" for a package. Sources outside the subscription are still announced once, with no counts, so the
+ * client can list them.
+ *
+ * Only used on the thread of the {@link CoverageBroadcaster}.
+ */
+final class CoverageSubscription {
+
+    private final SkybarRegistry registry;
+    /**
+     * Null for every source
+     */
+    @Nullable
+    private String[] prefixes;
+    /**
+     * Ids of the sources the client was sent, with counts or without
+     */
+    private final BitSet announced = new BitSet();
+    /**
+     * Ids of the sources that were matched against the prefixes, and of those that matched
+     */
+    private final BitSet checked = new BitSet();
+    private final BitSet matched = new BitSet();
+
+    CoverageSubscription(SkybarRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param prefixes prefixes of the names of the sources to send the counts of, or null for every source
+     */
+    void subscribe(@Nullable String[] prefixes) {
+        this.prefixes = prefixes;
+        checked.clear();
+        matched.clear();
+    }
+
+    /**
+     * @return true if the client gets the counts of every source
+     */
+    boolean isEverySource() {
+        return prefixes == null;
+    }
+
+    private boolean includes(int sourceId) {
+        if (prefixes == null) {
+            return true;
+        }
+        if (!checked.get(sourceId)) {
+            checked.set(sourceId);
+            matched.set(sourceId, matches(prefixes, registry.getSourceName(sourceId)));
+        }
+        return matched.get(sourceId);
+    }
+
+    /**
+     * @param prefixes prefixes of a subscription, or null for every source
+     */
+    static boolean matches(@Nullable String[] prefixes, String sourceName) {
+        if (prefixes == null) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (sourceName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param data counts keyed by source id
+     * @return the counts of the sources in the subscription, and no counts for the other sources the client wasn't
+     * sent yet. Empty if there is nothing to send.
+     */
+    IntObjMap<IntLongMap> filter(IntObjMap<IntLongMap> data) {
+        if (prefixes == null) {
+            data.keySet().forEach((int sourceId) -> announced.set(sourceId));
+            return data;
+        }
+        IntObjMap<IntLongMap> filtered = HashIntObjMaps.newMutableMap();
+        data.forEach((int sourceId, IntLongMap counts) -> {
+            if (includes(sourceId)) {
+                filtered.put(sourceId, counts);
+            } else if (!announced.get(sourceId)) {
+                filtered.put(sourceId, HashIntLongMaps.newMutableMap());
+            }
+            announced.set(sourceId);
+        });
+        return filtered;
+    }
+}
@@ -1,23 +1,122 @@
 package org.wtf.skybar.web;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
 import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
 import org.eclipse.jetty.util.ajax.JSON;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.wtf.skybar.registry.SkybarRegistry;
-import org.wtf.skybar.registry.SkybarRegistry.DeltaListener;
+
+import javax.annotation.Nullable;
 
 /**
- * Send out Coverage map via JSON on initial connect and every time a delta is published.
+ * Send out Coverage map via JSON on initial connect and every time a delta is published. Clients that ask for the
+ * {@link #BINARY_PROTOCOL} subprotocol get binary frames instead, see {@link CoverageFrameEncoder}. The frames are
+ * sent by the {@link CoverageBroadcaster}, on its own thread.
+ *
+ * A client gets the counts of every source, until it sends {@link #SUBSCRIBE} and a comma separated list of source
+ * name prefixes to only get those, or {@link #EVERY_SOURCE} to go back to all of them. See
+ * {@link CoverageSubscription}. The answer is a snapshot of the subscribed sources, whose counts replace the ones the
+ * client has; as JSON it is an object with the counts under "snapshot", as the first frame already is one.
+ *
+ * A client has at most {@link #MAX_FRAMES_IN_FLIGHT} frames queued at a time. The deltas that come while it is behind
+ * are added up into one pending delta, which goes out once a frame is written, so a slow client costs at most its
+ * counts in memory rather than a frame per delta.
+ *
+ * A client that lost its connection can reconnect with the sequence number of the last binary frame it got in the
+ * {@link #RESUME} parameter, as in "/livecoverage/?resume=1234", to only get the deltas it missed. It gets a snapshot
+ * of every source instead if the broadcaster doesn't have them anymore, which replaces everything the client has, as
+ * the source ids may not even be the same if the agent restarted; as JSON it has the counts under "full".
  */
-public class CoverageWebSocket implements WebSocketListener, DeltaListener {
+public class CoverageWebSocket implements WebSocketListener {
+    /**
+     * Subprotocol of clients that want binary frames
+     */
+    public static final String BINARY_PROTOCOL = "skybar-coverage-binary";
+    static final String SUBSCRIBE = "subscribe ";
+    static final String EVERY_SOURCE = "*";
+    static final String RESUME = "resume";
+    /**
+     * Frames a client can have queued before deltas wait for it, merged into one
+     */
+    static final int MAX_FRAMES_IN_FLIGHT = 4;
     private static final Logger LOG = Log.getLogger(CoverageWebSocket.class);
-    private Session outbound;
+    private final CoverageBroadcaster broadcaster;
+    private volatile Session outbound;
+    /**
+     * Null for clients that get JSON. Only used on the thread of the broadcaster, like the subscription.
+     */
+    @Nullable
+    private CoverageFrameEncoder encoder;
+    private final CoverageSubscription subscription;
+    private boolean sentSnapshot;
+    /**
+     * Sequence number of the last delta the client has all of with the frames it was sent
+     */
+    private long sentSequence;
+    /**
+     * Sequence number of the last delta it was resumed from, or null for a new client
+     */
+    @Nullable
+    private final Long resumeFrom;
+    /**
+     * Frames queued with Jetty and not written yet
+     */
+    private int framesInFlight;
+    /**
+     * The deltas that came while the window was full, added up, or null if there are none
+     */
+    @Nullable
+    private IntObjMap<IntLongMap> pending;
+    private long pendingSequence;
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable cause) {
+            LOG.debug("Failed to send a frame", cause);
+            broadcaster.execute(CoverageWebSocket.this::written);
+        }
+
+        @Override
+        public void writeSuccess() {
+            broadcaster.execute(CoverageWebSocket.this::written);
+        }
+    };
+
+    /**
+     * @param resumeFrom sequence number of the last delta the client got before it reconnected, or null for a new
+     *                   client
+     */
+    CoverageWebSocket(CoverageBroadcaster broadcaster, @Nullable Long resumeFrom) {
+        this.broadcaster = broadcaster;
+        this.subscription = new CoverageSubscription(broadcaster.getRegistry());
+        this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * @param parameters parameters of the upgrade request
+     * @return the sequence number in the {@link #RESUME} parameter, or null if there is none or it isn't a number
+     */
+    @Nullable
+    static Long resumeFrom(@Nullable Map<String, List<String>> parameters) {
+        List<String> values = parameters == null ? null : parameters.get(RESUME);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(values.get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
     @Override
     public void onWebSocketBinary(byte[] payload, int offset, int len) {
@@ -26,75 +125,190 @@ public class CoverageWebSocket implements WebSocketListener, DeltaListener {
 
     @Override
     public void onWebSocketClose(int statusCode, String reason) {
-        SkybarRegistry.registry.unregisterListener(this);
+        broadcaster.disconnect(this);
         this.outbound = null;
     }
 
     @Override
     public void onWebSocketConnect(Session session) {
         this.outbound = session;
-        Map<String, IntLongMap> snapshot = SkybarRegistry.registry.getCurrentSnapshot(this);
-        sendSnapshot(snapshot);
+        connected(BINARY_PROTOCOL.equals(session.getUpgradeResponse().getAcceptedSubProtocol()));
+    }
+
+    /**
+     * @param binary true if the client gets binary frames, false for JSON
+     */
+    void connected(boolean binary) {
+        if (binary) {
+            this.encoder = new CoverageFrameEncoder(broadcaster.getRegistry());
+        }
+        if (resumeFrom != null) {
+            // The client has its first frame from before, a snapshot replaces what it has
+            sentSnapshot = true;
+            broadcaster.resume(this, resumeFrom);
+        } else {
+            broadcaster.connect(this);
+        }
     }
 
     @Override
     public void onWebSocketError(Throwable cause) {
         cause.printStackTrace(System.err);
-        if (outbound != null) {
-            outbound.close(500, cause.toString());
+        Session session = outbound;
+        if (session != null) {
+            session.close(500, cause.toString());
         }
     }
 
     @Override
     public void onWebSocketText(String message) {
-        LOG.debug("Ignoring webSocketText payload message=" + message);
+        if (message.startsWith(SUBSCRIBE)) {
+            String prefixes = message.substring(SUBSCRIBE.length()).trim();
+            broadcaster.subscribe(this, EVERY_SOURCE.equals(prefixes) ? null : prefixes.split(","));
+        } else {
+            LOG.debug("Ignoring webSocketText payload message=" + message);
+        }
     }
 
     /**
-     * Called by SkybarRegistry once per time period to push new differential snapshot to clients.
-     *
-     * @param diffSnapshot differential snapshot
+     * @param sequence sequence number of the last delta in the snapshot
      */
-    @Override
-    public void accept(Map<String, IntLongMap> diffSnapshot) {
-        sendSnapshot(diffSnapshot);
+    void sendSnapshot(IntObjMap<IntLongMap> snapshot, long sequence) {
+        send(snapshot, CoverageFrameEncoder.FULL_SNAPSHOT, sequence);
     }
 
     /**
-     * Send snapshot to this client.  Will send an empty map {} if nothing new happened.
-     *
-     * @param snapshot snapshot coverage count.
+     * @param prefixes prefixes of source names, or null for every source
+     * @param snapshot counts of the sources the client subscribes to
      */
-    private void sendSnapshot(Map<String, IntLongMap> snapshot) {
-        outbound.getRemote().sendStringByFuture(toJson(snapshot));
+    void subscribe(@Nullable String[] prefixes, IntObjMap<IntLongMap> snapshot, long sequence) {
+        subscription.subscribe(prefixes);
+        send(snapshot, CoverageFrameEncoder.SNAPSHOT, sequence);
     }
 
-    static String toJson(Map<String, IntLongMap> data) {
-        return JSON.toString(data);
+    /**
+     * Sends the deltas the client missed while it was away as one, even if there are none
+     *
+     * @param sequence sequence number of the last delta
+     */
+    void resume(List<CoverageBroadcaster.SharedDelta> missed, long sequence) {
+        IntObjMap<IntLongMap> merged = HashIntObjMaps.newMutableMap();
+        missed.forEach(delta -> addTo(merged, delta.counts));
+        sendFrame(subscription.filter(merged), CoverageFrameEncoder.DELTA, sequence);
     }
 
-    private static Map<String, IntLongMap> filterSnap(Map<String, IntLongMap> orig) {
-        Map<String, IntLongMap> res = new HashMap<>();
-        IntLongMap counts;
-        for (Map.Entry<String, IntLongMap> ent : orig.entrySet()) {
-            counts = filterCounts(ent.getValue());
-            if (counts != null && counts.size() > 0) {
-                res.put(ent.getKey(), counts);
+    /**
+     * Sends a delta, as the frame shared by the clients that get every source if this is one of them. If the window
+     * is full the delta is merged into the pending one instead.
+     */
+    void sendDelta(CoverageBroadcaster.SharedDelta delta) {
+        IntObjMap<IntLongMap> filtered = subscription.filter(delta.counts);
+        if (filtered.isEmpty()) {
+            return;
+        }
+        if (pending != null || framesInFlight >= MAX_FRAMES_IN_FLIGHT) {
+            if (pending == null) {
+                pending = HashIntObjMaps.newMutableMap();
+            }
+            addTo(pending, filtered);
+            pendingSequence = delta.sequence;
+        } else if (filtered != delta.counts) {
+            sendFrame(filtered, CoverageFrameEncoder.DELTA, delta.sequence);
+        } else {
+            framesInFlight++;
+            sentSequence = delta.sequence;
+            if (encoder != null) {
+                sendBinary(delta.binary());
+            } else {
+                sendText(delta.json());
             }
         }
-        return res;
     }
 
-    private static IntLongMap filterCounts(IntLongMap orig) {
-        if (orig == null || orig.isEmpty()) {
-            return null;
+    /**
+     * Send the counts of the subscribed sources to this client, even if it is an empty map {}. A snapshot doesn't wait
+     * for the window, it is only sent when the client asks for one. It already has what is pending for its sources.
+     *
+     * @param data     coverage counts
+     * @param kind     whether the counts replace everything the client has, the counts of their sources, or add to
+     *                 them, see {@link CoverageFrameEncoder}
+     * @param sequence sequence number of the last delta in the counts
+     */
+    private void send(IntObjMap<IntLongMap> data, int kind, long sequence) {
+        IntObjMap<IntLongMap> filtered = subscription.filter(data);
+        if (pending != null) {
+            filtered.keySet().forEach((int sourceId) -> pending.remove(sourceId));
+            if (pending.isEmpty()) {
+                pending = null;
+            }
         }
-        IntLongMap res = HashIntLongMaps.newMutableMap();
-        orig.forEach((int line, long count) -> {
-            if (count > 0) {
-                res.put(line, count);
+        sendFrame(filtered, kind, sequence);
+    }
+
+    private void sendFrame(IntObjMap<IntLongMap> filtered, int kind, long sequence) {
+        framesInFlight++;
+        // A snapshot can overtake what is pending for other sources, whose deltas are older
+        sentSequence = Math.max(sentSequence, sequence);
+        if (encoder != null) {
+            sendBinary(ByteBuffer.wrap(encoder.encode(filtered, kind, sentSequence)));
+        } else {
+            String json = toJson(broadcaster.getRegistry(), filtered);
+            if (kind != CoverageFrameEncoder.DELTA && sentSnapshot) {
+                json = (kind == CoverageFrameEncoder.FULL_SNAPSHOT ? "{\"full\":" : "{\"snapshot\":") + json + "}";
             }
+            sendText(json);
+        }
+        sentSnapshot |= kind != CoverageFrameEncoder.DELTA;
+    }
+
+    /**
+     * Adds a delta to another. Copies the counts, the delta is shared with the other clients.
+     */
+    private static void addTo(IntObjMap<IntLongMap> sum, IntObjMap<IntLongMap> delta) {
+        delta.forEach((int sourceId, IntLongMap counts) -> {
+            IntLongMap merged = sum.computeIfAbsent(sourceId, id -> HashIntLongMaps.newMutableMap());
+            counts.forEach((int key, long count) -> merged.addValue(key, count));
         });
-        return res;
+    }
+
+    /**
+     * Called once a frame is written, or failed to be; sends the pending delta if there is one
+     */
+    void written() {
+        framesInFlight--;
+        if (pending != null && framesInFlight < MAX_FRAMES_IN_FLIGHT) {
+            IntObjMap<IntLongMap> merged = pending;
+            pending = null;
+            sendFrame(merged, CoverageFrameEncoder.DELTA, pendingSequence);
+        }
+    }
+
+    /**
+     * Queues a frame, unless the client is gone. Frames go out in the order they are queued, and {@link #written()}
+     * is called on the thread of the broadcaster once each is written.
+     */
+    void sendText(String frame) {
+        Session session = outbound;
+        if (session != null && session.isOpen()) {
+            session.getRemote().sendString(frame, writeCallback);
+        }
+    }
+
+    void sendBinary(ByteBuffer frame) {
+        Session session = outbound;
+        if (session != null && session.isOpen()) {
+            session.getRemote().sendBytes(frame, writeCallback);
+        }
+    }
+
+    /**
+     * @param registry registry to resolve source ids with
+     * @param data     counts keyed by source id
+     * @return JSON object keyed by source name
+     */
+    static String toJson(SkybarRegistry registry, IntObjMap<IntLongMap> data) {
+        Map<String, IntLongMap> bySourceName = new HashMap<>();
+        data.forEach((int sourceId, IntLongMap lines) -> bySourceName.put(registry.getSourceName(sourceId), lines));
+        return JSON.toString(bySourceName);
     }
 }
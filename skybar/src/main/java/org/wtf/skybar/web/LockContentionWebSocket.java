@@ -0,0 +1,98 @@
+package org.wtf.skybar.web;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.wtf.skybar.registry.MethodLatency;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.registry.SkybarRegistry.TimingListener;
+
+/**
+ * Send out the monitor waits of lines via JSON on initial connect and for the lines that entered monitors every time a
+ * delta is published.
+ */
+public class LockContentionWebSocket implements WebSocketListener, TimingListener {
+    private static final Logger LOG = Log.getLogger(LockContentionWebSocket.class);
+    private volatile Session outbound;
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable cause) {
+            LOG.debug("Failed to send monitor waits", cause);
+        }
+
+        @Override
+        public void writeSuccess() {
+        }
+    };
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        LOG.debug("Ignoring webSocketBinary payload len=" + len);
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        SkybarRegistry.registry.unregisterContentionListener(this);
+        this.outbound = null;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        this.outbound = session;
+        sendContention(SkybarRegistry.registry.getCurrentContention(this));
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        cause.printStackTrace(System.err);
+        Session session = outbound;
+        if (session != null) {
+            session.close(500, cause.toString());
+        }
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        LOG.debug("Ignoring webSocketText payload message=" + message);
+    }
+
+    /**
+     * Called by SkybarRegistry once per time period with the lines that entered monitors since the last one.
+     *
+     * @param waits monitor waits of each line
+     */
+    @Override
+    public void accept(List<MethodLatency> waits) {
+        sendContention(waits);
+    }
+
+    private void sendContention(List<MethodLatency> waits) {
+        // Read once, the registry calls this on its timer thread while the client may be closing
+        Session session = outbound;
+        if (session != null && session.isOpen()) {
+            session.getRemote().sendString(toJson(SkybarRegistry.registry, waits), writeCallback);
+        }
+    }
+
+    /**
+     * @param registry registry to resolve source ids with
+     * @param waits    monitor waits of each line
+     * @return JSON object keyed by source and line, as in "com/foo/Bar.java:12", with the method the line is in and
+     * its waits in nanoseconds
+     */
+    static String toJson(SkybarRegistry registry, List<MethodLatency> waits) {
+        Map<String, Map<String, Object>> byLine = new HashMap<>();
+        for (MethodLatency latency : waits) {
+            Map<String, Object> line = MethodTimingWebSocket.toMap(registry, latency);
+            line.put("method", latency.getMethodName());
+            byLine.put(line.get("source") + ":" + latency.getLineNumber(), line);
+        }
+        return JSON.toString(byLine);
+    }
+}
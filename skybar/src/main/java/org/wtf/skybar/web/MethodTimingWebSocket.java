@@ -0,0 +1,113 @@
+package org.wtf.skybar.web;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.wtf.skybar.registry.MethodLatency;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.registry.SkybarRegistry.TimingListener;
+
+/**
+ * Send out method latencies via JSON on initial connect and for the methods that ran every time a delta is published.
+ */
+public class MethodTimingWebSocket implements WebSocketListener, TimingListener {
+    private static final Logger LOG = Log.getLogger(MethodTimingWebSocket.class);
+    private volatile Session outbound;
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable cause) {
+            LOG.debug("Failed to send method timings", cause);
+        }
+
+        @Override
+        public void writeSuccess() {
+        }
+    };
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        LOG.debug("Ignoring webSocketBinary payload len=" + len);
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        SkybarRegistry.registry.unregisterTimingListener(this);
+        this.outbound = null;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        this.outbound = session;
+        sendTimings(SkybarRegistry.registry.getCurrentTimings(this));
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        cause.printStackTrace(System.err);
+        Session session = outbound;
+        if (session != null) {
+            session.close(500, cause.toString());
+        }
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        LOG.debug("Ignoring webSocketText payload message=" + message);
+    }
+
+    /**
+     * Called by SkybarRegistry once per time period with the methods that ran since the last one.
+     *
+     * @param timings latency of each method that ran
+     */
+    @Override
+    public void accept(List<MethodLatency> timings) {
+        sendTimings(timings);
+    }
+
+    private void sendTimings(List<MethodLatency> timings) {
+        // Read once, the registry calls this on its timer thread while the client may be closing
+        Session session = outbound;
+        if (session != null && session.isOpen()) {
+            session.getRemote().sendString(toJson(SkybarRegistry.registry, timings), writeCallback);
+        }
+    }
+
+    /**
+     * @param registry registry to resolve source ids with
+     * @param timings  latency of each method
+     * @return JSON object keyed by method name, with the source and first line of each method and its latency in
+     * nanoseconds
+     */
+    static String toJson(SkybarRegistry registry, List<MethodLatency> timings) {
+        Map<String, Map<String, Object>> byMethodName = new HashMap<>();
+        for (MethodLatency latency : timings) {
+            byMethodName.put(latency.getMethodName(), toMap(registry, latency));
+        }
+        return JSON.toString(byMethodName);
+    }
+
+    /**
+     * @return the source, line, count and latency in nanoseconds, as JSON properties
+     */
+    static Map<String, Object> toMap(SkybarRegistry registry, MethodLatency latency) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("source", registry.getSourceName(latency.getSourceId()));
+        map.put("line", latency.getLineNumber());
+        map.put("count", latency.getCount());
+        map.put("min", latency.getMin());
+        map.put("mean", latency.getMean());
+        map.put("p50", latency.getP50());
+        map.put("p90", latency.getP90());
+        map.put("p99", latency.getP99());
+        map.put("p999", latency.getP999());
+        map.put("max", latency.getMax());
+        return map;
+    }
+}
@@ -0,0 +1,49 @@
+package org.wtf.skybar.web;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Switches probes on and off. GET answers {"enabled":true} or {"enabled":false}; POST with an "enabled" parameter of
+ * true or false switches the probes, then answers the same way.
+ */
+public class ProbeSwitchHandler extends AbstractHandler {
+    private static final Logger LOG = Log.getLogger(ProbeSwitchHandler.class);
+    private final SkybarRegistry registry;
+
+    public ProbeSwitchHandler(SkybarRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+        if ("POST".equals(request.getMethod())) {
+            String enabled = request.getParameter("enabled");
+            if (!"true".equals(enabled) && !"false".equals(enabled)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "enabled must be true or false");
+                return;
+            }
+            registry.setEnabled(Boolean.parseBoolean(enabled));
+            LOG.info("Probes switched " + (registry.isEnabled() ? "on" : "off"));
+        } else if (!"GET".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.getWriter().write(JSON.toString(Collections.singletonMap("enabled", registry.isEnabled())));
+    }
+}
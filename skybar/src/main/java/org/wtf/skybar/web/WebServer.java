@@ -76,18 +76,67 @@ public class WebServer {
             sourceContext.setHandler(sourceLister);
             handlers.addHandler(sourceContext);
 
-            // Add a WebSocketServlet for pushing touched classes live
+            // Switch probes on and off
+            ContextHandler probeSwitchContext = new ContextHandler();
+            probeSwitchContext.setContextPath("/probes");
+            probeSwitchContext.setAllowNullPathInfo(true);
+            probeSwitchContext.setHandler(new ProbeSwitchHandler(registry));
+            handlers.addHandler(probeSwitchContext);
+
+            // Serve the call graph
+            ContextHandler callGraphContext = new ContextHandler();
+            callGraphContext.setContextPath("/callgraph");
+            callGraphContext.setAllowNullPathInfo(true);
+            callGraphContext.setHandler(new CallGraphHandler(registry));
+            handlers.addHandler(callGraphContext);
+
+            // Add a WebSocketServlet for pushing touched classes live, with one broadcaster for all the clients
+            CoverageBroadcaster broadcaster = new CoverageBroadcaster(registry);
+            server.addLifeCycleListener(broadcaster);
+            broadcaster.start();
             ContextHandler wsCoverageContext = new ContextHandler();
             wsCoverageContext.setContextPath("/livecoverage");
             WebSocketHandler wsCoverageHandler = new WebSocketHandler() {
                 @Override
                 public void configure(WebSocketServletFactory wssf) {
                     wssf.register(CoverageWebSocket.class);
+                    // Accept binary frames for the clients that ask for them, JSON stays the default
+                    wssf.setCreator((request, response) -> {
+                        if (request.hasSubProtocol(CoverageWebSocket.BINARY_PROTOCOL)) {
+                            response.setAcceptedSubProtocol(CoverageWebSocket.BINARY_PROTOCOL);
+                        }
+                        return new CoverageWebSocket(broadcaster,
+                                CoverageWebSocket.resumeFrom(request.getParameterMap()));
+                    });
                 }
             };
             wsCoverageContext.setHandler(wsCoverageHandler);
             handlers.addHandler(wsCoverageContext);
 
+            // And another for pushing method latencies, next to the coverage
+            ContextHandler wsTimingContext = new ContextHandler();
+            wsTimingContext.setContextPath("/methodtiming");
+            WebSocketHandler wsTimingHandler = new WebSocketHandler() {
+                @Override
+                public void configure(WebSocketServletFactory wssf) {
+                    wssf.register(MethodTimingWebSocket.class);
+                }
+            };
+            wsTimingContext.setHandler(wsTimingHandler);
+            handlers.addHandler(wsTimingContext);
+
+            // And the monitor waits of the lines
+            ContextHandler wsContentionContext = new ContextHandler();
+            wsContentionContext.setContextPath("/contention");
+            WebSocketHandler wsContentionHandler = new WebSocketHandler() {
+                @Override
+                public void configure(WebSocketServletFactory wssf) {
+                    wssf.register(LockContentionWebSocket.class);
+                }
+            };
+            wsContentionContext.setHandler(wsContentionHandler);
+            handlers.addHandler(wsContentionContext);
+
             // Make sure the Registry calls all its DeltaListeners every period (200ms?)
             RegistryUpdateListeners timer = new RegistryUpdateListeners(registry);
             server.addLifeCycleListener(timer);
@@ -2,9 +2,22 @@ angular.module('skybar', [])
     .controller('SkybarController', ['$scope', '$interval', '$http', '$timeout',
         function ($scope, $interval, $http, $timeout) {
 
-            openWebSocket()
+            // Sequence number of the last binary coverage frame, to only get what was missed after a reconnect
+            var lastSequence;
+            // Source names by id; the binary frames clients share only name a source the first time it is in one, so
+            // the names are kept across a resumed connection, until a full snapshot replaces them
+            var sourceNames = [];
+            var coverageSocket = openWebSocket()
+            openTimingWebSocket()
+            openContentionWebSocket()
 
             $scope.sourceFiles = [];
+            $scope.timings = {};
+            $scope.slowestMethods = [];
+            $scope.contention = {};
+
+            // Lowest branch key, that of outcome 255 on line 65535; allocation keys are below it
+            var MIN_BRANCH_KEY = -(65535 * 256 + 255) - 1;
 
             $scope.loadSource = function (sourceFile) {
                 console.log("sourceFile = " + sourceFile)
@@ -21,7 +34,13 @@ angular.module('skybar', [])
                             )
                         }
                         $scope.currentSourceFile = sourceFile;
+                        // Only the counts of the source on screen are needed, the others just have to be listed
+                        if (coverageSocket.readyState === WebSocket.OPEN) {
+                            coverageSocket.send("subscribe " + sourceFile)
+                        }
                         onCoverageUpdate($scope, $timeout);
+                        onTimingUpdate();
+                        onContentionUpdate();
 
                         console.log($scope.currentSourceLines)
                     }).error(function (data, status) {
@@ -44,10 +63,60 @@ angular.module('skybar', [])
                     }, 50);
                 }
 
+                // Branch outcomes come under negative keys, -(line * 256 + outcome) - 1
+                function branchesByLine(fileCoverage) {
+                    var branches = {};
+                    for (var key in fileCoverage) {
+                        var k = parseInt(key);
+                        if (k < 0 && k >= MIN_BRANCH_KEY) {
+                            var line = Math.floor((-k - 1) / 256);
+                            var lineBranches = branches[line] || (branches[line] = {taken: 0, total: 0});
+                            lineBranches.total++;
+                            if (fileCoverage[key] > 0) {
+                                lineBranches.taken++;
+                            }
+                        }
+                    }
+                    return branches;
+                }
+
+                // Allocations come below the branches, the count of a line under MIN_BRANCH_KEY - 1 - 2 * line and
+                // the bytes of its arrays right below that
+                function allocationsByLine(fileCoverage) {
+                    var allocations = {max: 0};
+                    for (var key in fileCoverage) {
+                        var k = parseInt(key);
+                        if (k < MIN_BRANCH_KEY) {
+                            var offset = MIN_BRANCH_KEY - 1 - k;
+                            var line = Math.floor(offset / 2);
+                            var lineAllocations = allocations[line] || (allocations[line] = {count: 0, bytes: 0});
+                            if (offset % 2 == 0) {
+                                lineAllocations.count = fileCoverage[key];
+                                allocations.max = Math.max(allocations.max, lineAllocations.count);
+                            } else {
+                                lineAllocations.bytes = fileCoverage[key];
+                            }
+                        }
+                    }
+                    return allocations;
+                }
+
                 if (typeof $scope.currentSourceFile === "string") {
                     var currentSourceFileCoverage = $scope.coverage[$scope.currentSourceFile];
+                    var currentBranches = branchesByLine(currentSourceFileCoverage);
+                    var currentAllocations = allocationsByLine(currentSourceFileCoverage);
                     for (var i = 0; i < $scope.currentSourceLines.length; i++) {
                         var sourceLine = $scope.currentSourceLines[i];
+                        var lineBranches = currentBranches[sourceLine.number];
+                        sourceLine.branches = lineBranches ? lineBranches.taken + "/" + lineBranches.total : "";
+                        var lineAllocations = currentAllocations[sourceLine.number];
+                        sourceLine.allocations = lineAllocations ? lineAllocations.count : "";
+                        sourceLine.allocationsTitle = lineAllocations && lineAllocations.bytes > 0
+                            ? "about " + formatBytes(lineAllocations.bytes) + " of arrays" : "";
+                        // Heatmap relative to the line that allocates the most
+                        sourceLine.allocationHeat = lineAllocations && currentAllocations.max > 0
+                            ? {"background-color": "rgba(255, 80, 0, "
+                                + (lineAllocations.count / currentAllocations.max).toFixed(2) + ")"} : {};
                         var execCount = currentSourceFileCoverage[sourceLine.number];
                         if (typeof execCount === "number") {
                             console.log("updating coverage for line " + sourceLine.number);
@@ -70,28 +139,242 @@ angular.module('skybar', [])
                 $scope.sourceFiles = sourceFiles;
             }
 
+            function formatBytes(bytes) {
+                if (bytes < 1024) {
+                    return bytes + "B";
+                } else if (bytes < 1024 * 1024) {
+                    return (bytes / 1024).toFixed(1) + "KB";
+                } else if (bytes < 1024 * 1024 * 1024) {
+                    return (bytes / (1024 * 1024)).toFixed(1) + "MB";
+                }
+                return (bytes / (1024 * 1024 * 1024)).toFixed(2) + "GB";
+            }
+
+            // Latencies come in nanoseconds
+            function formatNanos(nanos) {
+                if (nanos < 1000) {
+                    return nanos + "ns";
+                } else if (nanos < 1000000) {
+                    return (nanos / 1000).toFixed(1) + "\u00b5s";
+                } else if (nanos < 1000000000) {
+                    return (nanos / 1000000).toFixed(1) + "ms";
+                }
+                return (nanos / 1000000000).toFixed(2) + "s";
+            }
+
+            function onTimingUpdate() {
+                var methods = [];
+                for (var methodName in $scope.timings) {
+                    var timing = $scope.timings[methodName];
+                    var simpleName = methodName.substring(0, methodName.indexOf('('));
+                    simpleName = simpleName.substring(simpleName.lastIndexOf('.', simpleName.lastIndexOf('.') - 1) + 1);
+                    methods.push({name: methodName, simpleName: simpleName, source: timing.source, p99: timing.p99,
+                        p99Text: formatNanos(timing.p99)});
+                }
+                methods.sort(function (a, b) {
+                    return b.p99 - a.p99;
+                });
+                $scope.slowestMethods = methods.slice(0, 10);
+
+                if (typeof $scope.currentSourceFile === "string") {
+                    // Methods are timed under their first line
+                    var latencyByLine = {};
+                    for (var name in $scope.timings) {
+                        var t = $scope.timings[name];
+                        if (t.source === $scope.currentSourceFile) {
+                            latencyByLine[t.line] = t;
+                        }
+                    }
+                    for (var i = 0; i < $scope.currentSourceLines.length; i++) {
+                        var sourceLine = $scope.currentSourceLines[i];
+                        var latency = latencyByLine[sourceLine.number];
+                        sourceLine.latency = latency ? formatNanos(latency.p50) + " / " + formatNanos(latency.p99) : "";
+                        sourceLine.latencyTitle = latency ? "p50 / p99 of " + latency.count + " calls, max "
+                            + formatNanos(latency.max) : "";
+                    }
+                }
+            }
+
+            // Lines that wait longer than this at p99 are highlighted as contended
+            var CONTENDED_NANOS = 10000;
+
+            function onContentionUpdate() {
+                if (typeof $scope.currentSourceFile === "string") {
+                    for (var i = 0; i < $scope.currentSourceLines.length; i++) {
+                        var sourceLine = $scope.currentSourceLines[i];
+                        var wait = $scope.contention[$scope.currentSourceFile + ":" + sourceLine.number];
+                        sourceLine.contention = wait ? formatNanos(wait.p50) + " / " + formatNanos(wait.p99) : "";
+                        sourceLine.contentionTitle = wait ? "p50 / p99 wait for the lock of " + wait.count
+                            + " monitor enters, max " + formatNanos(wait.max) : "";
+                        sourceLine.contended = wait ? wait.p99 > CONTENDED_NANOS : false;
+                    }
+                }
+            }
+
+            function openContentionWebSocket() {
+                var wsUri = "ws://" + location.host + "/contention/";
+                var websocket = new WebSocket(wsUri);
+
+                websocket.onopen = function (evt) {
+                    $interval(function() {
+                        websocket.send("ping")
+                    }, 30000)
+                };
+                websocket.onmessage = function (evt) {
+                    // Every message has the latest totals of the lines in it, keyed by source and line
+                    var parsed = JSON.parse(evt.data);
+                    for (var line in parsed) {
+                        $scope.contention[line] = parsed[line];
+                    }
+                    $scope.$apply(function () {
+                        onContentionUpdate();
+                    });
+                };
+                websocket.onerror = function (evt) {
+                    console.log("onError Event on lock contention")
+                };
+            }
+
+            function openTimingWebSocket() {
+                var wsUri = "ws://" + location.host + "/methodtiming/";
+                var websocket = new WebSocket(wsUri);
+
+                websocket.onopen = function (evt) {
+                    $interval(function() {
+                        websocket.send("ping")
+                    }, 30000)
+                };
+                websocket.onmessage = function (evt) {
+                    // Every message has the latest totals of the methods in it
+                    var parsed = JSON.parse(evt.data);
+                    for (var methodName in parsed) {
+                        $scope.timings[methodName] = parsed[methodName];
+                    }
+                    $scope.$apply(function () {
+                        onTimingUpdate();
+                    });
+                };
+                websocket.onerror = function (evt) {
+                    console.log("onError Event on method timing")
+                };
+            }
+
             function openWebSocket() {
                 var host = location.host;
-                var wsUri = "ws://" + host + "/livecoverage/";
-                var websocket = new WebSocket(wsUri);
+                var resuming = typeof lastSequence === "number";
+                var wsUri = "ws://" + host + "/livecoverage/" + (resuming ? "?resume=" + lastSequence : "");
+                var firstFrame = true;
+                // Ask for binary frames; a server that doesn't know them answers in JSON
+                var websocket = new WebSocket(wsUri, ["skybar-coverage-binary"]);
+                websocket.binaryType = "arraybuffer";
+                var utf8 = new TextDecoder("utf-8");
 
+                // Decodes a binary frame into the counts by source, whether they replace all the ones we have or the
+                // ones of their sources, and the sequence number of the last delta in them, see CoverageFrameEncoder
+                function decodeCoverageFrame(bytes) {
+                    var full = bytes[0] == 2;
+                    var snapshot = full || bytes[0] == 1;
+                    if (full) {
+                        // The names come again, and the ids may have changed if the agent restarted
+                        sourceNames = [];
+                    }
+                    var pos = 1;
+                    var sequence = readVarint();
+
+                    // Counts can be wider than the 32 bits bitwise operators work on, so add the groups up instead
+                    function readVarint() {
+                        var value = 0, scale = 1, b;
+                        do {
+                            b = bytes[pos++];
+                            value += (b & 0x7F) * scale;
+                            scale *= 128;
+                        } while (b & 0x80);
+                        return value;
+                    }
+
+                    function readZigzag() {
+                        var value = readVarint();
+                        return value % 2 == 0 ? value / 2 : -(value + 1) / 2;
+                    }
+
+                    var frame = {};
+                    var sourceId = 0;
+                    for (var sourceCount = readVarint(); sourceCount > 0; sourceCount--) {
+                        // The lowest bit of the id gap flags a name after it
+                        var idGap = readVarint();
+                        sourceId += Math.floor(idGap / 2);
+                        if (idGap % 2 == 1) {
+                            var nameLength = readVarint();
+                            sourceNames[sourceId] = utf8.decode(bytes.subarray(pos, pos + nameLength));
+                            pos += nameLength;
+                        }
+                        var keys = [];
+                        var keyCount = readVarint();
+                        for (var i = 0; i < keyCount; i++) {
+                            keys.push(i == 0 ? readZigzag() : keys[i - 1] + readVarint());
+                        }
+                        var counts = frame[sourceNames[sourceId]] = {};
+                        for (var j = 0; j < keyCount; j++) {
+                            counts[keys[j]] = readZigzag();
+                        }
+                    }
+                    return {full: full, snapshot: snapshot, sequence: sequence, coverage: frame};
+                }
+
+                // The first JSON frame of a new connection is a full snapshot as it is, later ones have theirs under
+                // "full", or under "snapshot" for the subscribed sources
+                function parseCoverageFrame(text) {
+                    var parsed = JSON.parse(text);
+                    if (firstFrame && !resuming) {
+                        return {full: true, snapshot: true, coverage: parsed};
+                    }
+                    if (parsed.full) {
+                        return {full: true, snapshot: true, coverage: parsed.full};
+                    }
+                    return parsed.snapshot
+                        ? {full: false, snapshot: true, coverage: parsed.snapshot}
+                        : {full: false, snapshot: false, coverage: parsed};
+                }
+
+                var ping;
                 websocket.onopen = function (evt) {
                     console.log("onOpen Event")
-                    $interval(function() {
+                    ping = $interval(function() {
                         websocket.send("ping")
                     }, 30000)
+                    if (typeof $scope.currentSourceFile === "string") {
+                        websocket.send("subscribe " + $scope.currentSourceFile)
+                    }
                 };
                 websocket.onclose = function (evt) {
                     console.log("onClose Event")
+                    $interval.cancel(ping)
+                    // Reconnect, resuming from the last frame if the server still has what came after it
+                    $timeout(function () {
+                        coverageSocket = openWebSocket()
+                    }, 2000)
                 };
                 websocket.onmessage = function (evt) {
-                    var parsed = JSON.parse(evt.data);
-                    if (typeof $scope.coverage === "undefined") {
-                        console.log("got initial coverage: " + evt.data)
+                    var binary = typeof evt.data !== "string";
+                    var frame = binary ? decodeCoverageFrame(new Uint8Array(evt.data)) : parseCoverageFrame(evt.data);
+                    var parsed = frame.coverage;
+                    var description = binary ? evt.data.byteLength + " bytes" : evt.data;
+                    if (binary) {
+                        lastSequence = frame.sequence;
+                    }
+                    firstFrame = false;
+                    if (frame.full) {
+                        console.log("got all coverage: " + description)
                         $scope.coverage = parsed
                     }
+                    else if (frame.snapshot) {
+                        console.log("got snapshot of subscribed sources: " + description)
+                        for (var snapshotFile in parsed) {
+                            $scope.coverage[snapshotFile] = parsed[snapshotFile]
+                        }
+                    }
                     else {
-                        console.log("got incremental update: " + evt.data)
+                        console.log("got incremental update: " + description)
                         for (var sourceFile in parsed) {
                             var newFileLines = parsed[sourceFile]
                             var oldFileLines = $scope.coverage[sourceFile] || {sourceFile: {}}
@@ -114,7 +397,7 @@ angular.module('skybar', [])
                 websocket.onerror = function (evt) {
                     console.log("onError Event")
                 };
-
+                return websocket;
             }
 
         }]);
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.wtf.skybar.agent;
 
 import org.junit.Test;
+import org.wtf.skybar.transform.ProbeStrategy;
 
 import java.util.HashMap;
 
@@ -36,4 +37,56 @@ public class SkybarConfigTest {
 
         assertEquals(3, config.getWebUiPort());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testProbeStrategyDefaultsToIndy() {
+        SkybarConfig config = new SkybarConfig(new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+        assertEquals(ProbeStrategy.INVOKE_DYNAMIC, config.getProbeStrategy());
+    }
+
+    @Test
+    public void testProbeStrategyArray() {
+        HashMap<String, String> systemProps = new HashMap<>();
+        systemProps.put("skybar.probes", "array");
+        SkybarConfig config = new SkybarConfig(new HashMap<>(), systemProps, new HashMap<>());
+
+        assertEquals(ProbeStrategy.ARRAY, config.getProbeStrategy());
+    }
+
+    @Test
+    public void testProbeStrategyBlocks() {
+        HashMap<String, String> env = new HashMap<>();
+        env.put("SKYBAR_PROBES", "blocks");
+        SkybarConfig config = new SkybarConfig(new HashMap<>(), new HashMap<>(), env);
+
+        assertEquals(ProbeStrategy.BASIC_BLOCK, config.getProbeStrategy());
+    }
+
+    @Test
+    public void testProbeStrategyEdges() {
+        HashMap<String, String> fileProps = new HashMap<>();
+        fileProps.put("probes", "edges");
+        SkybarConfig config = new SkybarConfig(fileProps, new HashMap<>(), new HashMap<>());
+
+        assertEquals(ProbeStrategy.EDGE, config.getProbeStrategy());
+    }
+
+    @Test
+    public void testProbesCanStartSwitchedOff() {
+        HashMap<String, String> systemProps = new HashMap<>();
+        systemProps.put("skybar.enabled", "false");
+
+        assertEquals(true, new SkybarConfig(new HashMap<>(), new HashMap<>(), new HashMap<>()).isEnabled());
+        assertEquals(false, new SkybarConfig(new HashMap<>(), systemProps, new HashMap<>()).isEnabled());
+    }
+
+    @Test
+    public void testSamplingIsOffByDefault() {
+        HashMap<String, String> fileProps = new HashMap<>();
+        fileProps.put("sampleInterval", "10");
+
+        assertEquals(0, new SkybarConfig(new HashMap<>(), new HashMap<>(), new HashMap<>()).getSampleInterval());
+        assertEquals(10, new SkybarConfig(fileProps, new HashMap<>(), new HashMap<>()).getSampleInterval());
+    }
+}
@@ -0,0 +1,94 @@
+package org.wtf.skybar.registry;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the heap used by the timers of methods run on a thread pool with the recorder per method and thread they
+ * replaced.
+ */
+public class MethodTimerFootprintTest {
+
+    private static final int NUM_METHODS = 20;
+    private static final int NUM_THREADS = 50;
+    /**
+     * A few milliseconds, where the histograms have grown to most of their size
+     */
+    private static final long LATENCY_NANOS = 5_000_000;
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testTimersDontGrowWithThePool() throws Exception {
+        // what each timer kept for every thread that ran its method
+        long before = usedHeap();
+        List<SingleWriterRecorder> recorders = new ArrayList<>();
+        List<Histogram> intervals = new ArrayList<>();
+        for (int i = 0; i < NUM_METHODS * NUM_THREADS; i++) {
+            SingleWriterRecorder recorder = new SingleWriterRecorder(2);
+            recorder.recordValue(LATENCY_NANOS);
+            recorders.add(recorder);
+            intervals.add(recorder.getIntervalHistogram());
+        }
+        long perThreadBytes = usedHeap() - before;
+        assertEquals(recorders.size(), intervals.size());
+        recorders = null;
+        intervals = null;
+
+        before = usedHeap();
+        MethodTimer[] timers = new MethodTimer[NUM_METHODS];
+        for (int i = 0; i < NUM_METHODS; i++) {
+            timers[i] = new MethodTimer(0, "Method" + i, 1);
+        }
+        // every thread of the pool runs every method
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            tasks.add(() -> {
+                for (MethodTimer timer : timers) {
+                    timer.record(System.nanoTime() - LATENCY_NANOS);
+                }
+                return null;
+            });
+        }
+        for (Future<Void> done : pool.invokeAll(tasks)) {
+            done.get();
+        }
+        for (MethodTimer timer : timers) {
+            assertTrue(timer.harvest());
+        }
+        long timerBytes = usedHeap() - before;
+        assertEquals(NUM_THREADS, timers[0].getLatency().getCount());
+
+        System.out.println("Heap for " + NUM_METHODS + " methods on " + NUM_THREADS + " threads: recorders per thread "
+                + perThreadBytes + " bytes, timers " + timerBytes + " bytes");
+        assertTrue("timers should take well under a tenth of the heap: " + timerBytes + " vs " + perThreadBytes,
+                timerBytes * 10 < perThreadBytes);
+    }
+
+    private static long usedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
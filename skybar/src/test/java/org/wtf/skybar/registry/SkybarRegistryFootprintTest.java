@@ -0,0 +1,108 @@
+package org.wtf.skybar.registry;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the heap used by the registry's counter storage with the layout it replaced.
+ */
+public class SkybarRegistryFootprintTest {
+
+    private static final int NUM_SOURCES = 2000;
+    private static final int LINES_PER_SOURCE = 200;
+
+    private final String[] sourceNames = new String[NUM_SOURCES];
+    private final int[] lineNumbers = new int[LINES_PER_SOURCE];
+
+    public SkybarRegistryFootprintTest() {
+        for (int i = 0; i < NUM_SOURCES; i++) {
+            sourceNames[i] = "com/example/pkg" + (i % 50) + "/Source" + i + ".java";
+        }
+        // roughly every other line of a source file is executable
+        for (int i = 0; i < LINES_PER_SOURCE; i++) {
+            lineNumbers[i] = 10 + 2 * i;
+        }
+    }
+
+    @Test
+    public void testDenseTablesUseLessHeapThanAdderMaps() {
+        long before = usedHeap();
+        ConcurrentMap<String, Map<Integer, LongAdder>> adderMaps = new ConcurrentHashMap<>();
+        for (String sourceName : sourceNames) {
+            Map<Integer, LongAdder> lines = new ConcurrentHashMap<>();
+            for (int line : lineNumbers) {
+                lines.putIfAbsent(line, new LongAdder());
+            }
+            adderMaps.put(sourceName, lines);
+        }
+        long adderMapBytes = usedHeap() - before;
+        assertEquals(NUM_SOURCES, adderMaps.size());
+        adderMaps = null;
+
+        before = usedHeap();
+        SkybarRegistry registry = new SkybarRegistry();
+        for (String sourceName : sourceNames) {
+            registry.registerLines(registry.internSource(sourceName), lineNumbers);
+        }
+        long denseBytes = usedHeap() - before;
+        registry.visitLine(0, lineNumbers[0]);
+
+        System.out.println("Heap for " + NUM_SOURCES * LINES_PER_SOURCE + " lines: LongAdder maps " + adderMapBytes
+                + " bytes, dense tables " + denseBytes + " bytes");
+        assertTrue("dense tables should take well under a third of the heap: " + denseBytes + " vs " + adderMapBytes,
+                denseBytes * 3 < adderMapBytes);
+    }
+
+    @Test
+    public void testPublishedCountsUseLessHeapThanPrevMap() {
+        SkybarRegistry registry = new SkybarRegistry();
+        for (String sourceName : sourceNames) {
+            registry.registerLines(registry.internSource(sourceName), lineNumbers);
+        }
+
+        // what RegistryUpdateListeners used to keep to compute deltas
+        long before = usedHeap();
+        Map<String, IntLongMap> prev = new HashMap<>();
+        for (String sourceName : sourceNames) {
+            IntLongMap lines = HashIntLongMaps.newMutableMap();
+            for (int line : lineNumbers) {
+                lines.put(line, 0L);
+            }
+            prev.put(sourceName, lines);
+        }
+        long prevMapBytes = usedHeap() - before;
+        assertEquals(NUM_SOURCES, prev.size());
+        prev = null;
+
+        // the first pass allocates the published counts next to the live ones
+        before = usedHeap();
+        registry.updateListeners();
+        long publishedBytes = usedHeap() - before;
+        registry.visitLine(0, lineNumbers[0]);
+
+        System.out.println("Heap for " + NUM_SOURCES * LINES_PER_SOURCE + " lines: prev map " + prevMapBytes
+                + " bytes, published counts " + publishedBytes + " bytes");
+        assertTrue("published counts should take under half the heap: " + publishedBytes + " vs " + prevMapBytes,
+                publishedBytes * 2 < prevMapBytes);
+    }
+
+    private static long usedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -1,20 +1,35 @@
 package org.wtf.skybar.registry;
 
 import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class SkybarRegistryTest {
 
     private SkybarRegistry r;
+    private int foo;
+    private int bar;
 
     private ExecutorService ex = Executors.newCachedThreadPool();
     CompletionService<?> completionService = new ExecutorCompletionService<>(ex);
@@ -22,6 +37,8 @@ public class SkybarRegistryTest {
     @Before
     public void setUp() throws Exception {
         r = new SkybarRegistry();
+        foo = r.internSource("foo");
+        bar = r.internSource("bar");
     }
 
     @After
@@ -31,123 +48,581 @@ public class SkybarRegistryTest {
 
     @Test
     public void testRegisterInitializesEmptyMap() {
-        r.registerLine("foo", 33);
-        r.updateListeners(new HashMap<>());
+        r.registerLine(foo, 33);
+        r.updateListeners();
 
-        Map<String, IntLongMap> data = r.getCurrentSnapshot((delta) -> { });
-        assertSnapshotCount(data, "foo", 1, 33, 0);
+        IntObjMap<IntLongMap> data = r.getCurrentSnapshot((delta) -> { });
+        assertSnapshotCount(data, foo, 1, 33, 0);
     }
 
     @Test
     public void testVisitLineIncrementsCount() {
-        r.registerLine("foo", 33);
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.registerLine(foo, 33);
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
-        assertSnapshotCount("foo", 1, 33, 1);
+        assertSnapshotCount(foo, 1, 33, 1);
     }
 
     @Test
     public void testVisitLineIncrementsCountForOnlyTheCorrectLine() {
-        r.registerLine("foo", 33);
-        r.registerLine("foo", 44);
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.registerLine(foo, 33);
+        r.registerLine(foo, 44);
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
-        assertSnapshotCount("foo", 2, 33, 1);
-        assertSnapshotCount("foo", 2, 44, 0);
+        assertSnapshotCount(foo, 2, 33, 1);
+        assertSnapshotCount(foo, 2, 44, 0);
     }
 
     @Test
     public void testVisitAgainAfterFirstUpdateUpdatesSnapshot() {
-        r.registerLine("foo", 33);
-        r.registerLine("foo", 44);
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.registerLine(foo, 33);
+        r.registerLine(foo, 44);
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
         // update existing line
-        r.getAdderForLine("foo", 33).add(1);
+        r.visitLine(foo, 33);
 
         // update a never before visited line
-        r.getAdderForLine("foo", 44).add(1);
-        r.getAdderForLine("foo", 44).add(1);
-        r.updateListeners(new HashMap<>());
+        r.visitLine(foo, 44);
+        r.visitLine(foo, 44);
+        r.updateListeners();
 
-        assertSnapshotCount("foo", 2, 33, 2);
-        assertSnapshotCount("foo", 2, 44, 2);
+        assertSnapshotCount(foo, 2, 33, 2);
+        assertSnapshotCount(foo, 2, 44, 2);
     }
 
     @Test
     public void testUpdateListenersCallsListenerWithDelta() {
-        r.registerLine("foo", 33);
-        r.registerLine("foo", 44);
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.registerLine(foo, 33);
+        r.registerLine(foo, 44);
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
-        HashMap<String, IntLongMap> data = new HashMap<>();
+        IntObjMap<IntLongMap> data = HashIntObjMaps.newMutableMap();
 
         r.getCurrentSnapshot(data::putAll);
 
         // update existing line
-        r.getAdderForLine("foo", 33).add(1);
+        r.visitLine(foo, 33);
 
         // update a never before visited line
-        r.getAdderForLine("foo", 44).add(1);
-        r.getAdderForLine("foo", 44).add(1);
+        r.visitLine(foo, 44);
+        r.visitLine(foo, 44);
 
-        r.updateListeners(new HashMap<>());
+        r.updateListeners();
 
-        assertSnapshotCount(data, "foo", 2, 33, 2);
-        assertSnapshotCount(data, "foo", 2, 44, 2);
+        // only the visits since the snapshot
+        assertSnapshotCount(data, foo, 2, 33, 1);
+        assertSnapshotCount(data, foo, 2, 44, 2);
+    }
+
+    @Test
+    public void testEveryDeltaHasTheNextSequenceNumber() {
+        r.registerLine(foo, 33);
+        List<Long> sequences = new ArrayList<>();
+        long first = r.registerListener(delta -> sequences.add(r.getDeltaSequence()));
+
+        r.updateListeners();
+        r.updateListeners();
+        r.visitLine(foo, 33);
+        r.updateListeners();
+
+        // The second pass had nothing to hand out
+        assertEquals(Arrays.asList(first + 1, first + 2), sequences);
+        assertEquals(first + 2, r.getDeltaSequence());
+    }
+
+    @Test
+    public void testListenersMayKeepTheDeltasTheyGet() {
+        r.registerLine(foo, 33);
+        List<IntObjMap<IntLongMap>> deltas = new ArrayList<>();
+        r.registerListener(deltas::add);
+
+        r.visitLine(foo, 33);
+        r.updateListeners();
+        r.visitLine(foo, 33);
+        r.visitLine(foo, 33);
+        r.updateListeners();
+
+        assertEquals(2, deltas.size());
+        assertSnapshotCount(deltas.get(0), foo, 1, 33, 1);
+        assertSnapshotCount(deltas.get(1), foo, 1, 33, 2);
     }
 
     @Test
     public void testUnregisteredListenerDoesntGetUpdates() {
-        r.registerLine("foo", 33);
+        r.registerLine(foo, 33);
 
-        HashMap<String, IntLongMap> data = new HashMap<>();
+        IntObjMap<IntLongMap> data = HashIntObjMaps.newMutableMap();
         SkybarRegistry.DeltaListener listener = data::putAll;
         r.getCurrentSnapshot(listener);
 
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
-        assertSnapshotCount(data, "foo", 1, 33, 1);
+        assertSnapshotCount(data, foo, 1, 33, 1);
 
         r.unregisterListener(listener);
 
         data.clear();
         // data should not be updated
 
-        r.getAdderForLine("foo", 33).add(1);
-        r.updateListeners(new HashMap<>());
+        r.visitLine(foo, 33);
+        r.updateListeners();
 
         assertTrue(data.isEmpty());
     }
 
     @Test
-    public void testReUseBufferForMultipleUpdates() {
-        r.registerLine("foo", 33);
-        r.registerLine("foo", 44);
+    public void testSecondUpdateOnlyPublishesChanges() {
+        r.registerLine(foo, 33);
+        r.registerLine(foo, 44);
 
-        HashMap<String, IntLongMap> data = new HashMap<>();
+        IntObjMap<IntLongMap> data = HashIntObjMaps.newMutableMap();
         // ignore return value; will be all zeroes
         r.getCurrentSnapshot(data::putAll);
 
-        r.getAdderForLine("foo", 33).add(1);
+        r.visitLine(foo, 33);
 
-        HashMap<String, IntLongMap> buffer = new HashMap<>();
-        r.updateListeners(buffer);
-        assertSnapshotCount(data, "foo", 2, 33, 1);
+        r.updateListeners();
+        assertSnapshotCount(data, foo, 2, 33, 1);
 
         // update a never before visited line
-        r.getAdderForLine("foo", 44).add(1);
-        r.getAdderForLine("foo", 44).add(1);
+        r.visitLine(foo, 44);
+        r.visitLine(foo, 44);
 
         data.clear();
-        r.updateListeners(buffer);
+        r.updateListeners();
+
+        assertSnapshotCount(data, foo, 1, 44, 2);
+    }
+
+    @Test
+    public void testUpdateOnlyPublishesChangedSources() {
+        r.registerLines(foo, new int[]{33, 44});
+        r.registerLines(bar, new int[]{1, 2});
+
+        IntObjMap<IntLongMap> data = HashIntObjMaps.newMutableMap();
+        r.getCurrentSnapshot(data::putAll);
+
+        r.updateListeners();
+        assertEquals(2, data.size());
+
+        data.clear();
+        r.updateListeners();
+        assertTrue(data.isEmpty());
+
+        r.visitLine(bar, 2);
+        r.updateListeners();
+        assertSnapshotCount(data, bar, 1, 2, 1);
+    }
+
+    @Test
+    public void testCoverageOnlyVisitLineMarksOnce() {
+        r.setCoverageOnly(true);
+        r.registerLine(foo, 33);
+        r.visitLine(foo, 33);
+        r.visitLine(foo, 33);
+        r.visitLine(foo, 33, 5);
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 1, 33, 1);
+    }
+
+    @Test
+    public void testCoverageOnlyCallSiteDisablesItselfAfterFirstHit() throws Throwable {
+        SkybarRegistry.registry.setCoverageOnly(true);
+        try {
+            int single = SkybarRegistry.registry.internSource("hitOnce/Single.java");
+            SkybarRegistry.registry.registerLine(single, 7);
+            CallSite callSite = SkybarRegistry.bootstrap(MethodHandles.lookup(), "visitLine",
+                    MethodType.methodType(void.class), "hitOnce/Single.java", 7);
+            MethodHandle probe = callSite.getTarget();
+
+            callSite.dynamicInvoker().invokeExact();
+            assertNotSame(probe, callSite.getTarget());
+            callSite.dynamicInvoker().invokeExact();
+
+            assertEquals(1, staticSnapshot().get(single).get(7));
+        } finally {
+            SkybarRegistry.registry.setCoverageOnly(false);
+        }
+    }
+
+    @Test
+    public void testCoverageOnlyMultiCallSiteWaitsForAVisit() throws Throwable {
+        SkybarRegistry.registry.setCoverageOnly(true);
+        try {
+            int multi = SkybarRegistry.registry.internSource("hitOnce/Multi.java");
+            SkybarRegistry.registry.registerLine(multi, 7);
+            CallSite callSite = SkybarRegistry.bootstrapMulti(MethodHandles.lookup(), "visitLine_methodExit",
+                    MethodType.methodType(void.class, long.class), "hitOnce/Multi.java", 7);
+            MethodHandle probe = callSite.getTarget();
+
+            callSite.dynamicInvoker().invokeExact(0L);
+            assertEquals(probe, callSite.getTarget());
+            assertEquals(0, staticSnapshot().get(multi).get(7));
+
+            callSite.dynamicInvoker().invokeExact(3L);
+            assertNotSame(probe, callSite.getTarget());
+            assertEquals(1, staticSnapshot().get(multi).get(7));
+        } finally {
+            SkybarRegistry.registry.setCoverageOnly(false);
+        }
+    }
+
+    @Test
+    public void testSwitchedOffCallSiteDoesNothing() throws Throwable {
+        int switched = SkybarRegistry.registry.internSource("switch/Single.java");
+        SkybarRegistry.registry.registerLine(switched, 7);
+        CallSite callSite = SkybarRegistry.bootstrap(MethodHandles.lookup(), "visitLine",
+                MethodType.methodType(void.class), "switch/Single.java", 7);
+        try {
+            callSite.dynamicInvoker().invokeExact();
+            SkybarRegistry.registry.setEnabled(false);
+            callSite.dynamicInvoker().invokeExact();
+            callSite.dynamicInvoker().invokeExact();
+            assertEquals(1, staticSnapshot().get(switched).get(7));
+
+            SkybarRegistry.registry.setEnabled(true);
+            callSite.dynamicInvoker().invokeExact();
+            assertEquals(2, staticSnapshot().get(switched).get(7));
+        } finally {
+            SkybarRegistry.registry.setEnabled(true);
+        }
+    }
+
+    @Test
+    public void testSwitchedOffMultiCallSiteDoesNothing() throws Throwable {
+        int switched = SkybarRegistry.registry.internSource("switch/Multi.java");
+        SkybarRegistry.registry.registerLine(switched, 7);
+        SkybarRegistry.registry.setEnabled(false);
+        try {
+            // linked while switched off
+            CallSite callSite = SkybarRegistry.bootstrapMulti(MethodHandles.lookup(), "visitLine_methodExit",
+                    MethodType.methodType(void.class, long.class), "switch/Multi.java", 7);
+            callSite.dynamicInvoker().invokeExact(3L);
+            assertEquals(0, staticSnapshot().get(switched).get(7));
+
+            SkybarRegistry.registry.setEnabled(true);
+            callSite.dynamicInvoker().invokeExact(4L);
+            assertEquals(4, staticSnapshot().get(switched).get(7));
+        } finally {
+            SkybarRegistry.registry.setEnabled(true);
+        }
+    }
+
+    @Test
+    public void testProbeArrayVisitsWhileSwitchedOffAreDiscarded() {
+        r.registerLines(foo, new int[]{33});
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, new int[]{33}));
+        probes[0] += 2;
+        r.setEnabled(false);
+        probes[0] += 5;
+        r.updateListeners();
+        probes[0] += 5;
+        r.setEnabled(true);
+        probes[0]++;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 1, 33, 3);
+    }
+
+    @Test
+    public void testProbeArrayIsHarvestedOnUpdate() {
+        r.registerLines(foo, new int[]{33, 44});
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, new int[]{44, 33}));
+        probes[0] += 2;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 2, 44, 2);
+        assertSnapshotCount(foo, 2, 33, 0);
+
+        IntObjMap<IntLongMap> data = HashIntObjMaps.newMutableMap();
+        r.getCurrentSnapshot(data::putAll);
+        probes[0]++;
+        probes[1]++;
+        r.updateListeners();
+
+        // only the visits since the last harvest
+        assertSnapshotCount(data, foo, 2, 44, 1);
+        assertSnapshotCount(data, foo, 2, 33, 1);
+        assertSnapshotCount(foo, 2, 44, 3);
+    }
+
+    @Test
+    public void testBlockProbeArrayCountsEachLineOfTheBlock() {
+        r.registerLines(foo, new int[]{33, 34, 44});
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        // 33 and 34 form one block, 44 and 33 another
+        layout.addBlock(new int[]{33, 34}, layout.addSlot());
+        layout.addBlock(new int[]{44, 33}, layout.addSlot());
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, layout));
+        probes[0] += 2;
+        probes[1]++;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 3, 33, 3);
+        assertSnapshotCount(foo, 3, 34, 2);
+        assertSnapshotCount(foo, 3, 44, 1);
+    }
+
+    @Test
+    public void testEdgeProbeArrayDerivesBlockCountsFromSlots() {
+        r.registerLines(foo, new int[]{33, 44});
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        int invocations = layout.addSlot();
+        int elseBranch = layout.addSlot();
+        // the then branch runs whenever the else branch doesn't
+        layout.addBlock(new int[]{33}, new int[]{invocations, elseBranch}, new int[]{1, -1});
+        layout.addBlock(new int[]{44}, new int[]{elseBranch}, new int[]{1});
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, layout));
+        probes[invocations] += 5;
+        probes[elseBranch] += 2;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 2, 33, 3);
+        assertSnapshotCount(foo, 2, 44, 2);
+    }
+
+    @Test
+    public void testProbeArrayDerivesBranchCountsFromSlots() {
+        r.registerLines(foo, new int[]{33, 44});
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        int invocations = layout.addSlot();
+        int elseBranch = layout.addSlot();
+        layout.addBlock(new int[]{33}, invocations);
+        layout.addBlock(new int[]{44}, elseBranch);
+        layout.addBranch(SkybarRegistry.branchKey(33, 0), new int[]{invocations, elseBranch}, new int[]{1, -1});
+        layout.addBranch(SkybarRegistry.branchKey(33, 1), elseBranch);
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, layout));
+        probes[invocations] += 5;
+        probes[elseBranch] += 2;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 4, 33, 5);
+        assertSnapshotCount(foo, 4, SkybarRegistry.branchKey(33, 0), 3);
+        assertSnapshotCount(foo, 4, SkybarRegistry.branchKey(33, 1), 2);
+    }
+
+    @Test
+    public void testProbeArrayCarriesCountsOfMethodsCaughtHalfWay() {
+        r.registerLines(foo, new int[]{33, 44, 55});
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        int returns = layout.addSlot();
+        int elseToExit = layout.addSlot();
+        // a diamond where the then side follows from the returns that didn't come from the else side
+        layout.addBlock(new int[]{33}, new int[]{returns, elseToExit}, new int[]{1, -1});
+        layout.addBlock(new int[]{44}, elseToExit);
+        layout.addBlock(new int[]{55}, returns);
+        layout.addBranch(SkybarRegistry.branchKey(22, 0), new int[]{returns, elseToExit}, new int[]{1, -1});
+        long[] probes = r.getProbeArray(r.registerProbeArray(foo, layout));
+        // a call ran the else side, but hasn't returned when the registry harvests
+        probes[elseToExit]++;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 4, 33, 0);
+        assertSnapshotCount(foo, 4, 44, 1);
+        assertSnapshotCount(foo, 4, SkybarRegistry.branchKey(22, 0), 0);
+
+        probes[returns]++;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 4, 33, 0);
+        assertSnapshotCount(foo, 4, 55, 1);
+        assertSnapshotCount(foo, 4, SkybarRegistry.branchKey(22, 0), 0);
+
+        // the next call that takes the then side counts as usual
+        probes[returns]++;
+        r.updateListeners();
+
+        assertSnapshotCount(foo, 4, 33, 1);
+        assertSnapshotCount(foo, 4, SkybarRegistry.branchKey(22, 0), 1);
+    }
+
+    @Test
+    public void testBranchCallSiteCountsItsOutcome() throws Throwable {
+        int branchy = SkybarRegistry.registry.internSource("branch/Single.java");
+        SkybarRegistry.registry.registerLine(branchy, 7);
+        SkybarRegistry.registry.registerBranches("branch/Single", branchy,
+                new int[]{SkybarRegistry.branchKey(7, 0), SkybarRegistry.branchKey(7, 1)});
+        CallSite callSite = SkybarRegistry.bootstrapBranch(MethodHandles.lookup(), "visitBranch",
+                MethodType.methodType(void.class), "branch/Single", 1);
+
+        callSite.dynamicInvoker().invokeExact();
+        callSite.dynamicInvoker().invokeExact();
+
+        IntLongMap counts = staticSnapshot().get(branchy);
+        assertEquals(0, counts.get(SkybarRegistry.branchKey(7, 0)));
+        assertEquals(2, counts.get(SkybarRegistry.branchKey(7, 1)));
+    }
+
+    @Test
+    public void testBranchKeysAreNegativeAndDecode() {
+        int key = SkybarRegistry.branchKey(1234, 3);
+
+        assertTrue(SkybarRegistry.isBranchKey(key));
+        assertTrue(SkybarRegistry.isBranchKey(SkybarRegistry.branchKey(0, 0)));
+        assertEquals(1234, SkybarRegistry.branchLine(key));
+        assertEquals(3, SkybarRegistry.branchOutcome(key));
+    }
+
+    @Test
+    public void testAllocationCallSitesCountObjectsAndArrayBytes() throws Throwable {
+        int allocating = SkybarRegistry.registry.internSource("alloc/Allocating.java");
+        SkybarRegistry.registry.registerLine(allocating, 9);
+        SkybarRegistry.registry.registerAllocations("alloc/Allocating", allocating,
+                new int[]{SkybarRegistry.allocationKey(9), SkybarRegistry.arrayBytesKey(9)});
+        CallSite object = SkybarRegistry.bootstrapAllocation(MethodHandles.lookup(), "visitAllocation",
+                MethodType.methodType(void.class), "alloc/Allocating", 0);
+        CallSite array = SkybarRegistry.bootstrapArrayAllocation(MethodHandles.lookup(), "visitArrayAllocation",
+                MethodType.methodType(void.class, int.class), "alloc/Allocating", 0, 8);
+
+        object.dynamicInvoker().invokeExact();
+        array.dynamicInvoker().invokeExact(10);
+        array.dynamicInvoker().invokeExact(-1);
+
+        IntLongMap counts = staticSnapshot().get(allocating);
+        assertEquals(3, counts.get(SkybarRegistry.allocationKey(9)));
+        assertEquals(16 + 80 + 16, counts.get(SkybarRegistry.arrayBytesKey(9)));
+    }
+
+    @Test
+    public void testAllocationKeysAreBelowBranchKeysAndDecode() {
+        int lowestBranchKey = SkybarRegistry.branchKey(SkybarRegistry.MAX_LINE_NUMBER,
+                SkybarRegistry.MAX_BRANCH_OUTCOMES_PER_LINE - 1);
+        int key = SkybarRegistry.allocationKey(1234);
+        int bytesKey = SkybarRegistry.arrayBytesKey(1234);
+
+        assertTrue(SkybarRegistry.isBranchKey(lowestBranchKey));
+        assertFalse(SkybarRegistry.isAllocationKey(lowestBranchKey));
+        assertTrue(SkybarRegistry.allocationKey(0) < lowestBranchKey);
+        assertTrue(SkybarRegistry.arrayBytesKey(SkybarRegistry.MAX_LINE_NUMBER) < 0);
+        for (int k : new int[]{key, bytesKey}) {
+            assertTrue(SkybarRegistry.isAllocationKey(k));
+            assertFalse(SkybarRegistry.isBranchKey(k));
+            assertEquals(1234, SkybarRegistry.allocationLine(k));
+        }
+        assertFalse(SkybarRegistry.isArrayBytesKey(key));
+        assertTrue(SkybarRegistry.isArrayBytesKey(bytesKey));
+        assertNotEquals(SkybarRegistry.arrayBytesKey(1233), SkybarRegistry.allocationKey(1234));
+    }
+
+    @Test
+    public void testTimerMergesTheHistogramsOfItsThreads() throws Throwable {
+        CallSite callSite = SkybarRegistry.bootstrapTimer(MethodHandles.lookup(), "recordTime",
+                MethodType.methodType(void.class, long.class), "timed/Slow.java", "timed.Slow.run()V", 12);
+        MethodHandle recordTime = callSite.dynamicInvoker();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            futures.add(ex.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        recordTime.invokeExact(System.nanoTime() - 1_000_000);
+                    } catch (Throwable t) {
+                        throw new RuntimeException(t);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
 
-        assertSnapshotCount(data, "foo", 1, 44, 2);
+        List<MethodLatency> published = new ArrayList<>();
+        SkybarRegistry.TimingListener listener = published::addAll;
+        SkybarRegistry.registry.updateListeners();
+        MethodLatency latency = timingOf(SkybarRegistry.registry.getCurrentTimings(listener), "timed.Slow.run()V");
+        try {
+            assertEquals(400, latency.getCount());
+            assertEquals("timed/Slow.java", SkybarRegistry.registry.getSourceName(latency.getSourceId()));
+            assertEquals(12, latency.getLineNumber());
+            // Percentiles are within 1%
+            assertTrue(latency.getP50() >= 990_000);
+            assertTrue(latency.getP50() <= latency.getP99() && latency.getP99() <= latency.getMax());
+
+            recordTime.invokeExact(System.nanoTime());
+            SkybarRegistry.registry.updateListeners();
+
+            assertEquals(401, timingOf(published, "timed.Slow.run()V").getCount());
+
+            published.clear();
+            SkybarRegistry.registry.updateListeners();
+
+            assertNull("only methods that ran are published", timingOf(published, "timed.Slow.run()V"));
+        } finally {
+            SkybarRegistry.registry.unregisterTimingListener(listener);
+        }
+    }
+
+    @Test
+    public void testMonitorCallSitesOfALineShareItsHistogram() throws Throwable {
+        MethodType type = MethodType.methodType(void.class, long.class);
+        MethodHandle first = SkybarRegistry.bootstrapMonitor(MethodHandles.lookup(), "enterMonitor", type,
+                "locks/Locking.java", "locks.Locking.run()V", 31).dynamicInvoker();
+        MethodHandle second = SkybarRegistry.bootstrapMonitor(MethodHandles.lookup(), "enterMonitor", type,
+                "locks/Locking.java", "locks.Locking.run()V", 31).dynamicInvoker();
+        MethodHandle otherLine = SkybarRegistry.bootstrapMonitor(MethodHandles.lookup(), "enterMonitor", type,
+                "locks/Locking.java", "locks.Locking.run()V", 32).dynamicInvoker();
+
+        first.invokeExact(System.nanoTime() - 1_000_000);
+        second.invokeExact(System.nanoTime());
+        otherLine.invokeExact(System.nanoTime());
+
+        List<MethodLatency> published = new ArrayList<>();
+        SkybarRegistry.TimingListener listener = published::addAll;
+        SkybarRegistry.registry.updateListeners();
+        List<MethodLatency> current = SkybarRegistry.registry.getCurrentContention(listener);
+        try {
+            int locking = SkybarRegistry.registry.internSource("locks/Locking.java");
+            Map<Integer, MethodLatency> byLine = new HashMap<>();
+            for (MethodLatency latency : current) {
+                if (latency.getSourceId() == locking) {
+                    byLine.put(latency.getLineNumber(), latency);
+                }
+            }
+            assertEquals(2, byLine.get(31).getCount());
+            assertTrue(byLine.get(31).getMax() >= 990_000);
+            assertEquals("locks.Locking.run()V", byLine.get(31).getMethodName());
+            assertEquals(1, byLine.get(32).getCount());
+            assertNull("monitor waits aren't method timings",
+                    timingOf(SkybarRegistry.registry.getCurrentTimings(listener), "locks.Locking.run()V"));
+        } finally {
+            SkybarRegistry.registry.unregisterContentionListener(listener);
+            SkybarRegistry.registry.unregisterTimingListener(listener);
+        }
+    }
+
+    @Test
+    public void testCallSitesOfAnEdgeShareItsCount() throws Throwable {
+        MethodType type = MethodType.methodType(void.class);
+        CallSite first = SkybarRegistry.bootstrapCall(MethodHandles.lookup(), "visitCall", type, "calls/Caller.java",
+                21, "calls.Callee.run()V");
+        CallSite second = SkybarRegistry.bootstrapCall(MethodHandles.lookup(), "visitCall", type, "calls/Caller.java",
+                21, "calls.Callee.run()V");
+        CallSite otherCallee = SkybarRegistry.bootstrapCall(MethodHandles.lookup(), "visitCall", type,
+                "calls/Caller.java", 21, "calls.Callee.stop()V");
+        SkybarRegistry.bootstrapCall(MethodHandles.lookup(), "visitCall", type, "calls/Caller.java", 22,
+                "calls.Callee.run()V");
+
+        first.dynamicInvoker().invokeExact();
+        second.dynamicInvoker().invokeExact();
+        otherCallee.dynamicInvoker().invokeExact();
+
+        int caller = SkybarRegistry.registry.internSource("calls/Caller.java");
+        Map<String, Long> counts = new HashMap<>();
+        for (CallEdge edge : SkybarRegistry.registry.getCallGraph()) {
+            if (edge.getSourceId() == caller) {
+                counts.put(edge.getLineNumber() + " " + edge.getCallee(), edge.getCount());
+            }
+        }
+        assertEquals(2, counts.size());
+        assertEquals(2L, (long) counts.get("21 calls.Callee.run()V"));
+        assertEquals(1L, (long) counts.get("21 calls.Callee.stop()V"));
     }
 
     @Test
@@ -292,20 +767,56 @@ public class SkybarRegistryTest {
         */
     }
 
-    private void assertSnapshotCount(String source, int numLines, int lineNum, int count) {
+    @Test
+    public void testSampledLinesCountOnlyInRegisteredLinesOfSampledClasses() {
+        r.registerSampledClass("com.foo.Foo", foo, new int[]{33, 44});
+        r.registerLine(bar, 33);
+
+        assertTrue(r.visitSampledLine("com.foo.Foo", 33));
+        assertTrue(r.visitSampledLine("com.foo.Foo", 33));
+        // Unknown lines and classes, and frames of native methods, leave the sample to the next frame
+        assertFalse(r.visitSampledLine("com.foo.Foo", 55));
+        assertFalse(r.visitSampledLine("com.foo.Foo", -2));
+        assertFalse(r.visitSampledLine("com.foo.Bar", 33));
+        r.updateListeners();
+
+        IntObjMap<IntLongMap> data = r.getCurrentSnapshot((delta) -> { });
+        assertEquals(2, data.get(foo).get(33));
+        assertEquals(0, data.get(foo).get(44));
+        assertEquals(0, data.get(bar).get(33));
+    }
+
+    private static MethodLatency timingOf(List<MethodLatency> timings, String methodName) {
+        for (MethodLatency latency : timings) {
+            if (latency.getMethodName().equals(methodName)) {
+                return latency;
+            }
+        }
+        return null;
+    }
+
+    private static IntObjMap<IntLongMap> staticSnapshot() {
+        SkybarRegistry.DeltaListener listener = (delta) -> { };
+        SkybarRegistry.registry.updateListeners();
+        IntObjMap<IntLongMap> snapshot = SkybarRegistry.registry.getCurrentSnapshot(listener);
+        SkybarRegistry.registry.unregisterListener(listener);
+        return snapshot;
+    }
+
+    private void assertSnapshotCount(int source, int numLines, int lineNum, int count) {
         assertSnapshotCount(r.getCurrentSnapshot((delta) -> { }), source, numLines, lineNum, count);
     }
 
     /**
      * @param data     count data
-     * @param source   source file
+     * @param source   source file id
      * @param numLines number of lines for the source
      * @param lineNum  line number to check
      * @param count    expected count
      */
-    private void assertSnapshotCount(Map<String, IntLongMap> data, String source, int numLines, int lineNum,
+    private void assertSnapshotCount(IntObjMap<IntLongMap> data, int source, int numLines, int lineNum,
             int count) {
-        assertEquals(source, data.keySet().iterator().next());
+        assertEquals(source, data.keySet().toIntArray()[0]);
 
         Map<Integer, Long> counts = data.get(source);
         assertEquals("num lines", numLines, counts.size());
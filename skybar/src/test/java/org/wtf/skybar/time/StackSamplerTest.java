@@ -0,0 +1,57 @@
+package org.wtf.skybar.time;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import org.junit.Test;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackSamplerTest {
+
+    private volatile boolean spinning = true;
+    private volatile int spinLine;
+    private int sampleLine;
+
+    @Test
+    public void testSamplesGoToTheInnermostLineOfASampledClass() throws Exception {
+        SkybarRegistry registry = new SkybarRegistry();
+        int source = registry.internSource("org/wtf/skybar/time/StackSamplerTest.java");
+        registry.registerSampledClass(StackSamplerTest.class.getName(), source,
+                IntStream.rangeClosed(1, SkybarRegistry.MAX_LINE_NUMBER).toArray());
+
+        Thread spinner = new Thread(this::spin);
+        spinner.start();
+        try {
+            while (spinLine == 0) {
+                Thread.yield();
+            }
+            StackSampler sampler = new StackSampler(registry, 1, 8);
+            for (int i = 0; i < 20; i++) {
+                sampleLine = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+                sampler.sample();
+            }
+        } finally {
+            spinning = false;
+            spinner.join();
+        }
+        registry.updateListeners();
+
+        IntLongMap counts = registry.getCurrentSnapshot((delta) -> { }).get(source);
+        long total = counts.values().stream().mapToLong(Long::longValue).sum();
+        long spun = counts.get(spinLine) + counts.get(spinLine + 1);
+        // This thread is running too, and is seen calling the sampler, not on the lines that called this test
+        assertEquals(20, counts.get(sampleLine));
+        assertTrue("samples of the spinner " + spun, spun > 0);
+        assertEquals(total, spun + 20);
+    }
+
+    private void spin() {
+        spinLine = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+        while (spinning) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.wtf.skybar.transform;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wtf.skybar.registry.ProbeArrayLayout;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClassCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] CLASS_BYTES = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 1, 2, 3};
+
+    @Test
+    public void testEntryRoundTrip() throws IOException {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+        ProbeArrayLayout layout = new ProbeArrayLayout();
+        int invocations = layout.addSlot();
+        int elseBranch = layout.addSlot();
+        layout.addBlock(new int[]{33, 34}, new int[]{invocations, elseBranch}, new int[]{1, -1});
+        layout.addBlock(new int[]{44}, new int[]{elseBranch}, new int[]{1});
+        layout.addBranch(SkybarRegistry.branchKey(33, 0), new int[]{invocations, elseBranch}, new int[]{1, -1});
+        layout.addBranch(SkybarRegistry.branchKey(33, 1), elseBranch);
+        String key = ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.EDGE, false, false, false, false, false, false, false);
+
+        cache.put(key, new ClassCache.CachedClass(
+                new ClassMetadata("foo/Foo", key, "foo/Foo.java", new int[]{33, 34, 44}, new int[0],
+                        new int[0], layout), CLASS_BYTES));
+        ClassCache.CachedClass cached = cache.get(key);
+
+        assertEquals("foo/Foo", cached.metadata.className);
+        assertEquals(key, cached.metadata.key);
+        assertEquals("foo/Foo.java", cached.metadata.sourceFile);
+        assertArrayEquals(new int[]{33, 34, 44}, cached.metadata.lines);
+        assertArrayEquals(bytesOf(layout), bytesOf(cached.metadata.probeLayout));
+        assertArrayEquals(CLASS_BYTES, cached.classBytes);
+    }
+
+    @Test
+    public void testEntryWithBranchesRoundTrip() {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+        String key = ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, true, false, false, false, false, false);
+        int[] branches = {SkybarRegistry.branchKey(33, 0), SkybarRegistry.branchKey(33, 1)};
+
+        cache.put(key, new ClassCache.CachedClass(
+                new ClassMetadata("foo/Foo", key, "foo/Foo.java", new int[]{33}, branches, new int[0], null),
+                CLASS_BYTES));
+        ClassCache.CachedClass cached = cache.get(key);
+
+        assertArrayEquals(new int[]{33}, cached.metadata.lines);
+        assertArrayEquals(branches, cached.metadata.branches);
+        assertArrayEquals(CLASS_BYTES, cached.classBytes);
+    }
+
+    @Test
+    public void testEntryWithoutSourceRoundTrip() {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+        String key = ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false);
+
+        cache.put(key, new ClassCache.CachedClass(
+                new ClassMetadata("foo/Foo", key, null, new int[0], new int[0], new int[0], null), CLASS_BYTES));
+        ClassCache.CachedClass cached = cache.get(key);
+
+        assertNull(cached.metadata.sourceFile);
+        assertNull(cached.metadata.probeLayout);
+        assertArrayEquals(CLASS_BYTES, cached.classBytes);
+    }
+
+    @Test
+    public void testMissingEntryIsAMiss() {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+
+        assertNull(cache.get(ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false)));
+    }
+
+    @Test
+    public void testTruncatedEntryIsAMiss() throws IOException {
+        Path root = folder.getRoot().toPath();
+        ClassCache cache = new ClassCache(root);
+        String key = ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false);
+        ClassMetadata metadata = new ClassMetadata("foo/Foo", key, "foo/Foo.java", new int[]{33}, new int[0],
+                new int[0], null);
+        cache.put(key, new ClassCache.CachedClass(metadata, CLASS_BYTES));
+
+        List<Path> entries = Files.walk(root).filter(Files::isRegularFile).collect(Collectors.toList());
+        assertEquals(1, entries.size());
+        byte[] entry = Files.readAllBytes(entries.get(0));
+        Files.write(entries.get(0), Arrays.copyOf(entry, entry.length - 3));
+
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testKeyDependsOnClassAndInstrumentation() {
+        String key = ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false);
+
+        assertEquals(key, ClassCache.keyOf(CLASS_BYTES.clone(), ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(new byte[]{1, 2, 3}, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.EDGE,
+                false, false, false, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                true, false, false, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, true, false, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, true, false, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, true, false, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, true, false, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, true, false));
+        assertNotEquals(key, ClassCache.keyOf(CLASS_BYTES, ProbeStrategy.INVOKE_DYNAMIC,
+                false, false, false, false, false, false, true));
+    }
+
+    private static byte[] bytesOf(ProbeArrayLayout layout) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        layout.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
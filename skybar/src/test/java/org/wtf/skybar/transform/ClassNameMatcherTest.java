@@ -0,0 +1,126 @@
+package org.wtf.skybar.transform;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNameMatcherTest {
+
+    @Test
+    public void testIncludedPrefix() {
+        ClassNameMatcher matcher = new ClassNameMatcher(new String[]{"com/foo/"}, null, null, null);
+
+        assertTrue(matcher.matches("com/foo/Bar"));
+        assertTrue(matcher.matches("com/foo/bar/Baz"));
+        assertFalse(matcher.matches("com/foobar/Baz"));
+        assertFalse(matcher.matches("com/fo"));
+        assertFalse(matcher.matches("java/lang/String"));
+    }
+
+    @Test
+    public void testExcludedPrefixWins() {
+        ClassNameMatcher matcher = new ClassNameMatcher(new String[]{"com/foo/"}, new String[]{"com/foo/gen/"},
+                null, null);
+
+        assertTrue(matcher.matches("com/foo/Bar"));
+        assertFalse(matcher.matches("com/foo/gen/Bar"));
+    }
+
+    @Test
+    public void testRegexIncludesWhatPrefixesExclude() {
+        ClassNameMatcher matcher = new ClassNameMatcher(new String[]{"com/foo/"}, new String[]{"com/foo/gen/"},
+                Pattern.compile("com/foo/gen/Keep.*"), Pattern.compile(".*Test"));
+
+        assertTrue(matcher.matches("com/foo/gen/Keep"));
+        assertFalse(matcher.matches("com/foo/gen/KeepTest"));
+        assertFalse(matcher.matches("com/foo/gen/Other"));
+    }
+
+    @Test
+    public void testSkybarAndGeneratedClassesAreNeverMatched() {
+        ClassNameMatcher matcher = new ClassNameMatcher(new String[]{"", "org/wtf/"}, null,
+                Pattern.compile(".*"), null);
+
+        assertTrue(matcher.matches("org/wtf/Other"));
+        assertFalse(matcher.matches("org/wtf/skybar/registry/SkybarRegistry"));
+        assertFalse(matcher.matches("com/foo/Bar$$EnhancerByCGLIB"));
+    }
+
+    @Test
+    public void testAgreesWithCheckingEachPrefix() {
+        Random random = new Random(42);
+        String[] segments = {"com", "org", "foo", "fo", "bar", "gen", "a", ""};
+        Pattern[] includeRegexes = {null, Pattern.compile(".*/ba.*"), Pattern.compile("com/fo.*"),
+                Pattern.compile("comfoo?/.*"), Pattern.compile("org/a|com/bar"),
+                Pattern.compile("COM/.*", Pattern.CASE_INSENSITIVE)};
+        for (int round = 0; round < 200; round++) {
+            String[] includes = randomNames(random, segments, random.nextInt(6));
+            String[] excludes = random.nextBoolean() ? null : randomNames(random, segments, random.nextInt(4));
+            Pattern includeRegex = includeRegexes[random.nextInt(includeRegexes.length)];
+            Pattern excludeRegex = random.nextBoolean() ? null : Pattern.compile(".*gen.*");
+            ClassNameMatcher matcher = new ClassNameMatcher(includes, excludes, includeRegex, excludeRegex);
+
+            for (String className : randomNames(random, segments, 200)) {
+                assertEquals(className, matchesEachPrefix(className, includes, excludes, includeRegex, excludeRegex),
+                        matcher.matches(className));
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("com/foo/", ClassNameMatcher.literalPrefix(Pattern.compile("com/foo/.*")));
+        assertEquals("com/fo", ClassNameMatcher.literalPrefix(Pattern.compile("com/foo?/.*")));
+        assertEquals("com/foo", ClassNameMatcher.literalPrefix(Pattern.compile("com/foo+/.*")));
+        assertEquals("", ClassNameMatcher.literalPrefix(Pattern.compile(".*Test")));
+        assertEquals("", ClassNameMatcher.literalPrefix(Pattern.compile("com/foo|org/bar")));
+        assertEquals("", ClassNameMatcher.literalPrefix(Pattern.compile("com/.*", Pattern.CASE_INSENSITIVE)));
+    }
+
+    private static String[] randomNames(Random random, String[] segments, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                name.append(segments[random.nextInt(segments.length)]);
+                if (random.nextBoolean()) {
+                    name.append('/');
+                }
+            }
+            names[i] = name.toString();
+        }
+        return names;
+    }
+
+    /**
+     * What the transformer did before the prefixes were compiled
+     */
+    private static boolean matchesEachPrefix(String className, String[] includes, String[] excludes,
+                                             Pattern includeRegex, Pattern excludeRegex) {
+        if (className.startsWith(ClassNameMatcher.SKYBAR_PREFIX) || className.contains("$$")) {
+            return false;
+        }
+        if (startsWithAny(className, includes) && !startsWithAny(className, excludes)) {
+            return true;
+        }
+        return includeRegex != null && includeRegex.matcher(className).matches()
+                && !(excludeRegex != null && excludeRegex.matcher(className).matches());
+    }
+
+    private static boolean startsWithAny(String className, String[] prefixes) {
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                if (className.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
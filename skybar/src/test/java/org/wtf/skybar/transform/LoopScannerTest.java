@@ -0,0 +1,101 @@
+package org.wtf.skybar.transform;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.transform.testcases.ArrayProbedLoop;
+import org.wtf.skybar.transform.testcases.ConstructorOneLiner;
+import org.wtf.skybar.transform.testcases.ExceptionCatch;
+import org.wtf.skybar.transform.testcases.ForLoop;
+import org.wtf.skybar.transform.testcases.ForLoopWithException;
+import org.wtf.skybar.transform.testcases.OneLiner;
+import org.wtf.skybar.transform.testcases.TryWithResources;
+import org.wtf.skybar.transform.testcases.WhileLoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoopScannerTest {
+
+    /**
+     * Test cases, plus classes of our own with switches, nested loops and long methods
+     */
+    private static final Class<?>[] CLASSES = {OneLiner.class, ConstructorOneLiner.class, ForLoop.class,
+            WhileLoop.class, ForLoopWithException.class, ExceptionCatch.class, TryWithResources.class,
+            ArrayProbedLoop.class, LoopScanner.class, ClassNameMatcher.class, EdgeProbeInserter.class,
+            ControlFlowGraph.class, SkybarRegistry.class};
+
+    @Test
+    public void testFindsTheSameLoopsAsTheTree() throws IOException {
+        for (Class<?> clazz : CLASSES) {
+            ClassReader reader = readerFor(clazz);
+            assertEquals(clazz.getName(), methodsWithLoopsInTree(reader), LoopScanner.methodsWithLoops(reader));
+        }
+    }
+
+    @Test
+    public void testFindsLoops() throws IOException {
+        Set<String> methodsWithLoops = LoopScanner.methodsWithLoops(readerFor(ForLoop.class));
+
+        assertEquals(1, methodsWithLoops.size());
+        assertTrue(methodsWithLoops.contains("foo()I"));
+        assertTrue(LoopScanner.methodsWithLoops(readerFor(OneLiner.class)).isEmpty());
+    }
+
+    @Test
+    public void testStreamedMethodsAreInstrumentedLikeBufferedOnes() throws IOException {
+        for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+            for (Class<?> clazz : CLASSES) {
+                ClassReader reader = readerFor(clazz);
+                assertArrayEquals(clazz.getName() + " with " + probeStrategy,
+                        instrument(reader, probeStrategy, null),
+                        instrument(reader, probeStrategy, LoopScanner.methodsWithLoops(reader)));
+            }
+        }
+    }
+
+    private static byte[] instrument(ClassReader reader, ProbeStrategy probeStrategy, Set<String> methodsWithLoops) {
+        ClassWriter writer = new ClassWriter(reader, 0);
+        String key = "LoopScannerTest#" + reader.getClassName() + "#" + probeStrategy;
+        reader.accept(new SkybarClassVisitor(writer, probeStrategy, key, methodsWithLoops), ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static ClassReader readerFor(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            return new ClassReader(in);
+        }
+    }
+
+    /**
+     * Jumps to a label seen before the jump, as {@link SkybarClassVisitor} looks for them
+     */
+    private static Set<String> methodsWithLoopsInTree(ClassReader reader) {
+        ClassNode classNode = new ClassNode();
+        reader.accept(classNode, 0);
+        Set<String> methodsWithLoops = new HashSet<>();
+        for (MethodNode method : classNode.methods) {
+            Set<LabelNode> seen = new HashSet<>();
+            for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LabelNode) {
+                    seen.add((LabelNode) insn);
+                } else if (insn instanceof JumpInsnNode && seen.contains(((JumpInsnNode) insn).label)) {
+                    methodsWithLoops.add(method.name + method.desc);
+                }
+            }
+        }
+        return methodsWithLoops;
+    }
+}
@@ -0,0 +1,146 @@
+package org.wtf.skybar.transform;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.RemappingClassAdapter;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.transform.testcases.ForLoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class OfflineInstrumentationTest {
+
+    /**
+     * Skybar never instruments its own packages, so the test case moves to another
+     */
+    private static final String CLASS_NAME = "com/example/offline/ForLoop";
+    private static final String JAVA6_CLASS_NAME = "com/example/offline/java6/ForLoop";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRegistersMetadataInAnotherRegistry() throws IOException {
+        OfflineInstrumentation instrumentation =
+                new OfflineInstrumentation(ProbeStrategy.EDGE, new String[]{"com/example/"}, null);
+        assertNotNull(instrumentation.instrument(forLoopBytes()));
+        Path metadata = folder.getRoot().toPath().resolve("classes" + OfflineInstrumentation.METADATA_SUFFIX);
+        instrumentation.writeMetadata(metadata);
+
+        SkybarRegistry registry = new SkybarRegistry();
+        assertEquals(1, OfflineInstrumentation.registerMetadata(metadata, registry));
+        registry.updateListeners();
+
+        IntObjMap<IntLongMap> snapshot = registry.getCurrentSnapshot(delta -> {
+        });
+        assertEquals(1, snapshot.size());
+        int sourceId = snapshot.keySet().toIntArray()[0];
+        assertEquals("com/example/offline/ForLoop.java", registry.getSourceName(sourceId));
+        assertEquals(5, snapshot.get(sourceId).size());
+        assertNotNull(registry.getClassLoader("com/example/offline/ForLoop.java"));
+    }
+
+    @Test
+    public void testLeavesOtherClassesAlone() throws IOException {
+        OfflineInstrumentation instrumentation =
+                new OfflineInstrumentation(ProbeStrategy.INVOKE_DYNAMIC, new String[]{"com/example/"},
+                        new String[]{"com/example/offline/"});
+
+        assertNull(instrumentation.instrument(forLoopBytes()));
+        assertEquals(0, instrumentation.getInstrumentedCount());
+    }
+
+    @Test
+    public void testLeavesInstrumentedClassesAlone() throws IOException {
+        OfflineInstrumentation instrumentation =
+                new OfflineInstrumentation(ProbeStrategy.INVOKE_DYNAMIC, new String[]{"com/example/"}, null);
+
+        byte[] instrumented = instrumentation.instrument(forLoopBytes());
+        assertNull(instrumentation.instrument(instrumented));
+        assertEquals(1, instrumentation.getInstrumentedCount());
+    }
+
+    @Test
+    public void testLeavesClassesWithProbesPerLineForTheAgent() throws Exception {
+        OfflineInstrumentation instrumentation =
+                new OfflineInstrumentation(ProbeStrategy.INVOKE_DYNAMIC, new String[]{"com/example/"}, null);
+        byte[] java6 = java6ForLoopBytes();
+
+        assertNull(instrumentation.instrument(java6));
+        assertEquals(0, instrumentation.getInstrumentedCount());
+
+        SkybarTransformer transformer =
+                new SkybarTransformer(new String[]{"com/example/"}, new String[0], null, null);
+        byte[] transformed = transformer.transform(getClass().getClassLoader(), JAVA6_CLASS_NAME, null, null, java6);
+        Class<?> forLoop = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(JAVA6_CLASS_NAME.replace('/', '.'), transformed, 0, transformed.length);
+            }
+        }.define();
+        assertEquals(3, forLoop.getMethod("foo").invoke(null));
+
+        SkybarRegistry registry = SkybarRegistry.registry;
+        registry.updateListeners();
+        int sourceId = registry.internSource(JAVA6_CLASS_NAME + ".java");
+        AtomicReference<IntObjMap<IntLongMap>> snapshot = new AtomicReference<>();
+        registry.getCurrentSnapshotOf(id -> id == sourceId, snapshot::set);
+        // The loop body, counted under the source the agent interned
+        assertEquals(3, snapshot.get().get(sourceId).get(9));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRefusesMetadataForAnotherMode() throws IOException {
+        OfflineInstrumentation instrumentation =
+                new OfflineInstrumentation(ProbeStrategy.INVOKE_DYNAMIC, new String[]{"com/example/"}, null);
+        instrumentation.instrument(forLoopBytes());
+        Path metadata = folder.getRoot().toPath().resolve("classes" + OfflineInstrumentation.METADATA_SUFFIX);
+        instrumentation.writeMetadata(metadata);
+
+        SkybarRegistry registry = new SkybarRegistry();
+        registry.setCoverageOnly(true);
+        OfflineInstrumentation.registerMetadata(metadata, registry);
+    }
+
+    /**
+     * The test case as a Java 6 class, which has no invokedynamic, under a name of its own
+     */
+    private static byte[] java6ForLoopBytes() throws IOException {
+        ClassReader reader = new ClassReader(forLoopBytes());
+        ClassWriter writer = new ClassWriter(0);
+        SimpleRemapper remapper = new SimpleRemapper(CLASS_NAME, JAVA6_CLASS_NAME);
+        reader.accept(new ClassVisitor(Opcodes.ASM5, new RemappingClassAdapter(writer, remapper)) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName,
+                              String[] interfaces) {
+                super.visit(Opcodes.V1_6, access, name, signature, superName, interfaces);
+            }
+        }, ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static byte[] forLoopBytes() throws IOException {
+        try (InputStream in = ForLoop.class.getResourceAsStream(ForLoop.class.getSimpleName() + ".class")) {
+            ClassReader reader = new ClassReader(in);
+            ClassWriter writer = new ClassWriter(0);
+            SimpleRemapper remapper = new SimpleRemapper(Type.getInternalName(ForLoop.class), CLASS_NAME);
+            reader.accept(new RemappingClassAdapter(writer, remapper), ClassReader.EXPAND_FRAMES);
+            return writer.toByteArray();
+        }
+    }
+}
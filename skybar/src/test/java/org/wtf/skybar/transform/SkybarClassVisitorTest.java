@@ -5,30 +5,54 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
 import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
 import org.junit.Test;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.util.TraceClassVisitor;
+import org.wtf.skybar.registry.CallEdge;
+import org.wtf.skybar.registry.MethodLatency;
 import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.transform.testcases.Allocating;
+import org.wtf.skybar.transform.testcases.ArrayProbedLoop;
+import org.wtf.skybar.transform.testcases.ArrayProbedStaticInitializer;
+import org.wtf.skybar.transform.testcases.BasicBlockProbed;
+import org.wtf.skybar.transform.testcases.BasicBlockStraightLine;
+import org.wtf.skybar.transform.testcases.BranchCounted;
+import org.wtf.skybar.transform.testcases.Caller;
 import org.wtf.skybar.transform.testcases.Conditional;
 import org.wtf.skybar.transform.testcases.ConstructorOneLiner;
+import org.wtf.skybar.transform.testcases.EdgeProbedLoop;
+import org.wtf.skybar.transform.testcases.EdgeProbedRunLoop;
 import org.wtf.skybar.transform.testcases.ExceptionCatch;
 import org.wtf.skybar.transform.testcases.ForLoop;
 import org.wtf.skybar.transform.testcases.ForLoopWithException;
 import org.wtf.skybar.transform.testcases.InstanceInitializerOneLiner;
+import org.wtf.skybar.transform.testcases.Locking;
 import org.wtf.skybar.transform.testcases.MultStatementsOnSameLine;
 import org.wtf.skybar.transform.testcases.OneLiner;
 import org.wtf.skybar.transform.testcases.StaticInitializerOneLiner;
 import org.wtf.skybar.transform.testcases.StaticOneLiner;
+import org.wtf.skybar.transform.testcases.Timed;
 import org.wtf.skybar.transform.testcases.TryWithResources;
 import org.wtf.skybar.transform.testcases.WhileLoop;
 
@@ -38,6 +62,11 @@ import static org.junit.Assert.assertThat;
 
 public class SkybarClassVisitorTest {
 
+    /**
+     * Counts of each testcase class as of the last time it was instrumented, or null if it hadn't been registered yet
+     */
+    private static final Map<String, IntLongMap> countsBefore = new HashMap<>();
+
     @Test
     public void shouldCountOneliner() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException,
         InstantiationException {
@@ -160,6 +189,332 @@ public class SkybarClassVisitorTest {
         assertCorrectSourceCount(clazz);
     }
 
+    @Test
+    public void shouldCountWithArrayProbes() throws NoSuchMethodException, InvocationTargetException,
+        IllegalAccessException {
+        Class<?> clazz = instrumentClass(ArrayProbedLoop.class, ProbeStrategy.ARRAY);
+
+        invokeStaticMethod(clazz, "foo");
+
+        assertCorrectSourceCount(clazz);
+    }
+
+    @Test
+    public void shouldCountStaticInitializerWithArrayProbes() throws NoSuchMethodException,
+        InvocationTargetException, IllegalAccessException {
+        Class<?> clazz = instrumentClass(ArrayProbedStaticInitializer.class, ProbeStrategy.ARRAY);
+
+        invokeStaticMethod(clazz, "foo");
+
+        assertCorrectSourceCount(clazz);
+    }
+
+    @Test
+    public void shouldCountWithBasicBlockProbes() throws NoSuchMethodException, InvocationTargetException,
+        IllegalAccessException {
+        Class<?> clazz = instrumentClass(BasicBlockProbed.class, ProbeStrategy.BASIC_BLOCK);
+
+        invokeStaticMethod(clazz, "foo");
+
+        assertCorrectSourceCount(clazz);
+    }
+
+    @Test
+    public void shouldUseOneBasicBlockProbeForStraightLineCode() throws NoSuchMethodException,
+        InvocationTargetException, IllegalAccessException {
+        Class<?> clazz = instrumentClass(BasicBlockStraightLine.class, ProbeStrategy.BASIC_BLOCK);
+
+        invokeStaticMethod(clazz, "foo");
+
+        assertCorrectSourceCount(clazz);
+        ClassNode instrumented = new ClassNode();
+        new ClassReader(instrument(BasicBlockStraightLine.class, ProbeStrategy.BASIC_BLOCK)).accept(instrumented, 0);
+        for (MethodNode method : instrumented.methods) {
+            if (method.name.equals("foo")) {
+                int probes = 0;
+                for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                    if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.equals("$skybarProbes")) {
+                        probes++;
+                    }
+                }
+                assertThat(probes, equalTo(1));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCountLikeLineProbesWithEdgeProbes() throws Exception {
+        Exercise foo = clazz -> invokeStaticMethod(clazz, "foo");
+        assertEdgeProbesCountLikeLineProbes(OneLiner.class,
+            clazz -> clazz.getMethod("oneLiner").invoke(clazz.getConstructor().newInstance()));
+        assertEdgeProbesCountLikeLineProbes(StaticOneLiner.class, clazz -> invokeStaticMethod(clazz, "staticOneLiner"));
+        assertEdgeProbesCountLikeLineProbes(StaticInitializerOneLiner.class, clazz -> {
+        });
+        assertEdgeProbesCountLikeLineProbes(InstanceInitializerOneLiner.class,
+            clazz -> clazz.getConstructor().newInstance());
+        assertEdgeProbesCountLikeLineProbes(ConstructorOneLiner.class, clazz -> clazz.getConstructor().newInstance());
+        assertEdgeProbesCountLikeLineProbes(Conditional.class, foo);
+        assertEdgeProbesCountLikeLineProbes(ExceptionCatch.class, foo);
+        assertEdgeProbesCountLikeLineProbes(TryWithResources.class, foo);
+        assertEdgeProbesCountLikeLineProbes(ForLoop.class, foo);
+        assertEdgeProbesCountLikeLineProbes(WhileLoop.class, foo);
+        assertEdgeProbesCountLikeLineProbes(MultStatementsOnSameLine.class, foo);
+        assertEdgeProbesCountLikeLineProbes(ForLoopWithException.class, foo);
+        assertEdgeProbesCountLikeLineProbes(ArrayProbedLoop.class, foo);
+        assertEdgeProbesCountLikeLineProbes(ArrayProbedStaticInitializer.class, foo);
+        assertEdgeProbesCountLikeLineProbes(BasicBlockProbed.class, foo);
+        assertEdgeProbesCountLikeLineProbes(BasicBlockStraightLine.class, foo);
+        assertEdgeProbesCountLikeLineProbes(EdgeProbedLoop.class, foo);
+    }
+
+    @Test
+    public void shouldIncrementFewerSlotsWithEdgeProbesThanWithBlockProbes() throws Exception {
+        long blockIncrements = probeIncrements(EdgeProbedLoop.class, ProbeStrategy.BASIC_BLOCK);
+        long edgeIncrements = probeIncrements(EdgeProbedLoop.class, ProbeStrategy.EDGE);
+
+        assertThat(edgeIncrements < blockIncrements, equalTo(true));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldCountEntryOfMethodThatNeverReturnsWithEdgeProbes() throws Exception {
+        Class<?> instrumented = instrumentClass(EdgeProbedRunLoop.class, ProbeStrategy.EDGE);
+        BlockingQueue<Integer> tasks = new LinkedBlockingQueue<>(Arrays.asList(3, 2));
+        Thread thread = new Thread(() -> {
+            try {
+                instrumented.getMethod("run", BlockingQueue.class).invoke(null, tasks);
+            } catch (ReflectiveOperationException e) {
+                // interrupted
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            // Waiting for the third task
+            while (!tasks.isEmpty() || thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+
+            assertCorrectSourceCount(EdgeProbedRunLoop.class);
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void shouldCountBranchesWithEveryProbeStrategy() throws Exception {
+        SkybarRegistry.registry.setBranchCoverage(true);
+        try {
+            for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+                invokeStaticMethod(instrumentClass(BranchCounted.class, probeStrategy), "foo");
+
+                assertCorrectSourceCount(BranchCounted.class);
+            }
+        } finally {
+            SkybarRegistry.registry.setBranchCoverage(false);
+        }
+    }
+
+    @Test
+    public void shouldDeriveBranchesFromEdgeProbes() throws Exception {
+        SkybarRegistry.registry.setBranchCoverage(true);
+        try {
+            long edgeIncrements = probeIncrements(BranchCounted.class, ProbeStrategy.EDGE);
+            SkybarRegistry.registry.setBranchCoverage(false);
+            long edgeIncrementsWithoutBranches = probeIncrements(BranchCounted.class, ProbeStrategy.EDGE);
+
+            assertThat(edgeIncrements, equalTo(edgeIncrementsWithoutBranches));
+        } finally {
+            SkybarRegistry.registry.setBranchCoverage(false);
+        }
+    }
+
+    @Test
+    public void shouldTimeEveryExitWithEveryProbeStrategy() throws Exception {
+        String[] methods = {"<init>(I)V", "foo()I", "sum(I)I", "fail()V"};
+        SkybarRegistry.registry.setMethodTiming(true);
+        try {
+            for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+                Map<String, Long> callsBefore = callsOf(Timed.class);
+                Class<?> clazz = instrumentClass(Timed.class, probeStrategy);
+
+                invokeStaticMethod(clazz, "foo");
+
+                assertCorrectSourceCount(Timed.class);
+                Map<String, Long> calls = callsOf(Timed.class);
+                for (String method : methods) {
+                    assertThat(probeStrategy + " " + method,
+                            calls.getOrDefault(method, 0L) - callsBefore.getOrDefault(method, 0L), equalTo(1L));
+                }
+            }
+        } finally {
+            SkybarRegistry.registry.setMethodTiming(false);
+        }
+    }
+
+    @Test
+    public void shouldCountCallsByLineAndCalleeWithEveryProbeStrategy() throws Exception {
+        String twice = Caller.class.getName() + ".twice(I)I";
+        SkybarRegistry.registry.setCallGraph(true);
+        try {
+            for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+                Map<String, Long> callsBefore = callEdgesOf(Caller.class);
+                Class<?> clazz = instrumentClass(Caller.class, probeStrategy);
+
+                invokeStaticMethod(clazz, "foo");
+
+                assertCorrectSourceCount(Caller.class);
+                Map<String, Long> calls = callEdgesOf(Caller.class);
+                calls.replaceAll((edge, count) -> count - callsBefore.getOrDefault(edge, 0L));
+                Map<String, Long> expected = new HashMap<>();
+                expected.put("7 " + twice, 3L);
+                expected.put("9 " + twice, 1L);
+                expected.put("9 java.lang.Math.abs(I)I", 1L);
+                assertThat(probeStrategy.toString(), calls, equalTo(expected));
+            }
+        } finally {
+            SkybarRegistry.registry.setCallGraph(false);
+        }
+    }
+
+    @Test
+    public void shouldCountAllocationsWithEveryProbeStrategy() throws Exception {
+        SkybarRegistry.registry.setAllocationCounting(true);
+        try {
+            for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+                invokeStaticMethod(instrumentClass(Allocating.class, probeStrategy), "foo");
+
+                assertCorrectSourceCount(Allocating.class);
+            }
+        } finally {
+            SkybarRegistry.registry.setAllocationCounting(false);
+        }
+    }
+
+    @Test
+    public void shouldRecordMonitorWaitsByLineWithEveryProbeStrategy() throws Exception {
+        SkybarRegistry.registry.setLockContention(true);
+        try {
+            for (ProbeStrategy probeStrategy : ProbeStrategy.values()) {
+                Map<Integer, Long> waitsBefore = monitorWaitsOf(Locking.class);
+                Class<?> clazz = instrumentClass(Locking.class, probeStrategy);
+
+                invokeStaticMethod(clazz, "foo");
+
+                assertCorrectSourceCount(Locking.class);
+                Map<Integer, Long> waits = monitorWaitsOf(Locking.class);
+                waits.replaceAll((line, count) -> count - waitsBefore.getOrDefault(line, 0L));
+                Map<Integer, Long> expected = new HashMap<>();
+                expected.put(15, 1L);
+                expected.put(29, 3L);
+                expected.put(33, 1L);
+                assertThat(probeStrategy.toString(), waits, equalTo(expected));
+                assertThat(Modifier.isSynchronized(clazz.getDeclaredMethod("increment").getModifiers()),
+                        equalTo(false));
+            }
+        } finally {
+            SkybarRegistry.registry.setLockContention(false);
+        }
+    }
+
+    @Test
+    public void shouldKeepSynchronizedMethodsOfRetransformableClasses() throws Exception {
+        SkybarRegistry.registry.setLockContention(true);
+        try {
+            ClassReader reader = new ClassReader(Locking.class.getName());
+            ClassWriter writer = new ClassWriter(reader, 0);
+            reader.accept(new SkybarClassVisitor(writer, ProbeStrategy.INVOKE_DYNAMIC, null, null, true),
+                    ClassReader.EXPAND_FRAMES);
+            ClassNode instrumented = new ClassNode();
+            new ClassReader(writer.toByteArray()).accept(instrumented, 0);
+            for (MethodNode method : instrumented.methods) {
+                if (method.name.equals("increment") || method.name.equals("fail")) {
+                    assertThat(method.name, (method.access & Opcodes.ACC_SYNCHRONIZED) != 0, equalTo(true));
+                }
+            }
+        } finally {
+            SkybarRegistry.registry.setLockContention(false);
+        }
+    }
+
+    /**
+     * @return how many monitor waits each line of the source of the class recorded, as of the last delta pass
+     */
+    private static Map<Integer, Long> monitorWaitsOf(Class<?> clazz) {
+        SkybarRegistry.TimingListener listener = waits -> {
+        };
+        SkybarRegistry.registry.updateListeners();
+        List<MethodLatency> current = SkybarRegistry.registry.getCurrentContention(listener);
+        SkybarRegistry.registry.unregisterContentionListener(listener);
+        String source = sourceName(clazz);
+        Map<Integer, Long> waits = new HashMap<>();
+        for (MethodLatency latency : current) {
+            if (SkybarRegistry.registry.getSourceName(latency.getSourceId()).equals(source)) {
+                waits.put(latency.getLineNumber(), latency.getCount());
+            }
+        }
+        return waits;
+    }
+
+    /**
+     * @return how often each line of the source of the class called each method, keyed by line and callee
+     */
+    private static Map<String, Long> callEdgesOf(Class<?> clazz) {
+        String source = sourceName(clazz);
+        Map<String, Long> calls = new HashMap<>();
+        for (CallEdge edge : SkybarRegistry.registry.getCallGraph()) {
+            if (SkybarRegistry.registry.getSourceName(edge.getSourceId()).equals(source)) {
+                calls.put(edge.getLineNumber() + " " + edge.getCallee(), edge.getCount());
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @return how often each timed method of the class has been called, by name and descriptor
+     */
+    private static Map<String, Long> callsOf(Class<?> clazz) {
+        SkybarRegistry.TimingListener timingListener = (x) -> {
+        };
+        SkybarRegistry.registry.updateListeners();
+        List<MethodLatency> timings = SkybarRegistry.registry.getCurrentTimings(timingListener);
+        SkybarRegistry.registry.unregisterTimingListener(timingListener);
+
+        Map<String, Long> calls = new HashMap<>();
+        String prefix = clazz.getName() + ".";
+        for (MethodLatency latency : timings) {
+            if (latency.getMethodName().startsWith(prefix)) {
+                calls.put(latency.getMethodName().substring(prefix.length()), latency.getCount());
+            }
+        }
+        return calls;
+    }
+
+    private interface Exercise {
+        void run(Class<?> clazz) throws Exception;
+    }
+
+    private void assertEdgeProbesCountLikeLineProbes(Class<?> clazz, Exercise exercise) throws Exception {
+        exercise.run(instrumentClass(clazz, ProbeStrategy.EDGE));
+
+        assertCorrectSourceCount(clazz);
+    }
+
+    /**
+     * @return the sum of the probe array slots after one call of foo
+     */
+    private static long probeIncrements(Class<?> clazz, ProbeStrategy probeStrategy) throws Exception {
+        Class<?> instrumented = instrumentClass(clazz, probeStrategy);
+        invokeStaticMethod(instrumented, "foo");
+        Method accessor = instrumented.getDeclaredMethod("$skybarProbes");
+        accessor.setAccessible(true);
+        long sum = 0;
+        for (long slot : (long[]) accessor.invoke(null)) {
+            sum += slot;
+        }
+        return sum;
+    }
+
     private static void invokeStaticMethod(Class<?> clazz, String methodName) throws IllegalAccessException,
         InvocationTargetException,
         NoSuchMethodException {
@@ -171,22 +526,30 @@ public class SkybarClassVisitorTest {
         SkybarRegistry.DeltaListener deltaListener = (x) -> {
         };
         SkybarRegistry registry = SkybarRegistry.registry;
-        registry.updateListeners(new HashMap<>());
-        Map<String, IntLongMap> snapshot = registry.getCurrentSnapshot(deltaListener);
+        registry.updateListeners();
+        IntObjMap<IntLongMap> snapshot = registry.getCurrentSnapshot(deltaListener);
 
         registry.unregisterListener(deltaListener);
 
-        return snapshot.get(sourceName(clazz));
+        return snapshot.get(registry.internSource(sourceName(clazz)));
     }
 
     private static String sourceName(Class<?> clazz) {
         return clazz.getPackage().getName().replace('.', '/') + "/" + clazz.getSimpleName() + ".java";
     }
 
+    /**
+     * Compares the counts added since the class was last instrumented to the counts in the comments of its source, so
+     * tests can run a testcase class more than once.
+     */
     private void assertCorrectSourceCount(Class<?> clazz) {
         IntLongMap expected = HashIntLongMaps.newMutableMap();
         parseExpectedLines(clazz, expected);
-        assertThat(linesOf(clazz), equalTo(expected));
+        IntLongMap before = countsBefore.get(clazz.getName());
+        IntLongMap counted = HashIntLongMaps.newMutableMap();
+        linesOf(clazz).forEach((int line, long count) ->
+            counted.put(line, count - (before == null ? 0 : before.getOrDefault(line, 0))));
+        assertThat(clazz.getSimpleName(), counted, equalTo(expected));
     }
 
     private void parseExpectedLines(Class<?> clazz, IntLongMap expected) {
@@ -198,9 +561,19 @@ public class SkybarClassVisitorTest {
                 int commentStart = l.lastIndexOf("//");
                 if(commentStart != -1) {
 
-                    String comment = l.substring(commentStart+2).trim();
+                    // The line count, optionally followed by "branches" and the count of each outcome on the line, or
+                    // by "allocations", the number of allocations and the bytes of the arrays
+                    String[] comment = l.substring(commentStart+2).trim().split("\\s+");
                     try {
-                        expected.put(i, Long.parseLong(comment));
+                        expected.put(i, Long.parseLong(comment[0]));
+                        if(comment.length > 1 && comment[1].equals("branches")) {
+                            for (int outcome = 0; outcome < comment.length - 2; outcome++) {
+                                expected.put(SkybarRegistry.branchKey(i, outcome), Long.parseLong(comment[outcome + 2]));
+                            }
+                        } else if(comment.length == 4 && comment[1].equals("allocations")) {
+                            expected.put(SkybarRegistry.allocationKey(i), Long.parseLong(comment[2]));
+                            expected.put(SkybarRegistry.arrayBytesKey(i), Long.parseLong(comment[3]));
+                        }
                     } catch(NumberFormatException e) {
                         System.err.print("Error parsing expected line number on line " + (i) + " of " + source.getAbsolutePath());
                     }
@@ -231,6 +604,11 @@ public class SkybarClassVisitorTest {
     }
 
     private static Class<?> instrumentClass(Class<?> clazz) {
+        return instrumentClass(clazz, ProbeStrategy.INVOKE_DYNAMIC);
+    }
+
+    private static Class<?> instrumentClass(Class<?> clazz, ProbeStrategy probeStrategy) {
+        countsBefore.put(clazz.getName(), linesOf(clazz));
         try {
 
             return Class.forName(clazz.getName(), true, new ClassLoader() {
@@ -247,21 +625,8 @@ public class SkybarClassVisitorTest {
                 @Override
                 protected Class<?> findClass(String name) throws ClassNotFoundException {
                     if (name.equals(clazz.getName())) {
-                        try {
-                            ClassReader reader =
-                                new ClassReader(clazz.getResourceAsStream(clazz.getSimpleName() + ".class"));
-                            System.out.println("Unchanged bytecode: ");
-                            reader
-                                .accept(new TraceClassVisitor(new PrintWriter(System.out)), ClassReader.EXPAND_FRAMES);
-                            ClassWriter writer = new ClassWriter(reader, 0);
-                            ClassVisitor visitor = new TraceClassVisitor(writer, new PrintWriter(System.out));
-                            reader.accept(new SkybarClassVisitor(visitor), ClassReader.EXPAND_FRAMES);
-
-                            byte[] bytes = writer.toByteArray();
-                            return defineClass(name, bytes, 0, bytes.length);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+                        byte[] bytes = instrument(clazz, probeStrategy);
+                        return defineClass(name, bytes, 0, bytes.length);
                     }
                     throw new ClassNotFoundException(name);
                 }
@@ -271,4 +636,20 @@ public class SkybarClassVisitorTest {
         }
     }
 
+    private static byte[] instrument(Class<?> clazz, ProbeStrategy probeStrategy) {
+        try {
+            ClassReader reader =
+                new ClassReader(clazz.getResourceAsStream(clazz.getSimpleName() + ".class"));
+            System.out.println("Unchanged bytecode: ");
+            reader
+                .accept(new TraceClassVisitor(new PrintWriter(System.out)), ClassReader.EXPAND_FRAMES);
+            ClassWriter writer = new ClassWriter(reader, 0);
+            ClassVisitor visitor = new TraceClassVisitor(writer, new PrintWriter(System.out));
+            reader.accept(new SkybarClassVisitor(visitor, probeStrategy), ClassReader.EXPAND_FRAMES);
+
+            return writer.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package org.wtf.skybar.transform.testcases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class Allocating { // 0
+    public static int foo() {
+        List<Object> objects = new ArrayList<>(); // 1 allocations 1 0
+        for (int i = 0; i < 3; i++) { // 4
+            objects.add(new int[i]); // 3 allocations 3 60
+        }
+        objects.add(new Object[4]); // 1 allocations 1 32
+        objects.add(new String[2][3]); // 1 allocations 1 0
+        objects.add(new StringBuilder().append(new long[]{1, 2}.length)); // 1 allocations 2 32
+        return objects.size(); // 1
+    }
+}
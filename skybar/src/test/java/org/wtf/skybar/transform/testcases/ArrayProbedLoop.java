@@ -0,0 +1,15 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class ArrayProbedLoop { // 0
+    public static int foo() {
+        int x = 0; // 1
+        for (int i = 0; i < 3; i++) { // 4
+            if (i > 5) { // 3
+                return -1; // 0
+            }
+            x++; // 3
+        }
+
+        return x; // 1
+    }
+}
@@ -0,0 +1,13 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class ArrayProbedStaticInitializer { // 0
+    static int x;
+
+    static {
+        x = 1; // 1
+    } // 1
+
+    public static int foo() {
+        return x + 1; // 1
+    }
+}
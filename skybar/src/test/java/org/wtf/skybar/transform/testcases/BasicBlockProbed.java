@@ -0,0 +1,26 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class BasicBlockProbed { // 0
+    public static int foo() {
+        int x = 0; // 1
+        int y = 1; // 1
+        for (int i = 0; i < 3; i++) { // 4
+            x += y; // 3
+            y++; // 3
+        }
+        try {
+            x += fail(x); // 1
+            y++; // 0
+        } catch (IllegalStateException e) { // 1
+            y--; // 1
+        } // 0
+        return x + y; // 1
+    }
+
+    private static int fail(int x) {
+        if (x > 0) { // 1
+            throw new IllegalStateException(); // 1
+        }
+        return x; // 0
+    }
+}
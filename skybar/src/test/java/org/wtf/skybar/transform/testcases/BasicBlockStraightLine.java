@@ -0,0 +1,10 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class BasicBlockStraightLine { // 0
+    public static int foo() {
+        int x = 1; // 1
+        int y = x * 2; // 1
+        int z = x + y; // 1
+        return z; // 1
+    }
+}
@@ -0,0 +1,26 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class BranchCounted { // 0
+    public static long foo() {
+        long sum = 0; // 1
+        for (int i = 0; i < 10; i++) { // 11 branches 10 1
+            if ((i & 1) == 0) { // 10 branches 5 5
+                sum += i; // 5
+            }
+            if (i > 2 && i < 8) { // 10 branches 7 3 5 2
+                sum--; // 5
+            }
+            switch (i % 3) { // 10 branches 3 4 3
+                case 0:
+                    sum += 2; // 4
+                    break; // 4
+                case 1:
+                    sum += 3; // 3
+                    break; // 3
+                default:
+                    sum += 4; // 3
+            }
+        }
+        return sum; // 1
+    }
+}
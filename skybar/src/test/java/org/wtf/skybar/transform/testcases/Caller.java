@@ -0,0 +1,15 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class Caller { // 0
+    public static int foo() {
+        int sum = 0; // 1
+        for (int i = 0; i < 3; i++) { // 4
+            sum += twice(i); // 3
+        }
+        return sum + Math.abs(twice(-1)); // 1
+    }
+
+    private static int twice(int i) {
+        return 2 * i; // 4
+    }
+}
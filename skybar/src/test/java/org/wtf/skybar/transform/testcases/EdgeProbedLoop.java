@@ -0,0 +1,15 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class EdgeProbedLoop { // 0
+    public static long foo() {
+        long sum = 0; // 1
+        for (int i = 0; i < 100; i++) { // 101
+            if ((i & 1) == 0) { // 100
+                sum += i; // 50
+            } else {
+                sum -= 1; // 50
+            }
+        }
+        return sum; // 1
+    }
+}
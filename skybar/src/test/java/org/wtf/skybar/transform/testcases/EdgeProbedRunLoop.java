@@ -0,0 +1,15 @@
+package org.wtf.skybar.transform.testcases;
+
+import java.util.concurrent.BlockingQueue;
+
+public final class EdgeProbedRunLoop { // 0
+    public static void run(BlockingQueue<Integer> tasks) throws InterruptedException {
+        long sum = 0; // 1
+        while (true) {
+            int task = tasks.take(); // 3
+            for (int i = 0; i < task; i++) { // 7
+                sum += i; // 5
+            }
+        } // 2
+    }
+}
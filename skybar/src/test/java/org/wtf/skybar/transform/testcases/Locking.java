@@ -0,0 +1,35 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class Locking {
+    private static final Object LOCK = new Object(); // 1
+    private int count;
+
+    private Locking() { // 1
+    } // 1
+
+    public static int foo() {
+        Locking locking = new Locking(); // 1
+        for (int i = 0; i < 3; i++) { // 4
+            locking.increment(); // 3
+        }
+        synchronized (LOCK) { // 1
+            locking.count++; // 1
+        } // 1
+        try {
+            fail(); // 1
+        } catch (IllegalStateException e) { // 1
+            if (Thread.holdsLock(Locking.class)) { // 1
+                throw e; // 0
+            }
+        } // 0
+        return locking.count; // 1
+    }
+
+    private synchronized void increment() {
+        count++; // 3
+    } // 3
+
+    private static synchronized void fail() {
+        throw new IllegalStateException(); // 1
+    }
+}
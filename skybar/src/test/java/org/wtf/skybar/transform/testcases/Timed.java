@@ -0,0 +1,31 @@
+package org.wtf.skybar.transform.testcases;
+
+public final class Timed {
+    private final int start;
+
+    private Timed(int start) { // 1
+        this.start = start; // 1
+    } // 1
+
+    public static int foo() {
+        int sum = new Timed(1).sum(3); // 1
+        try {
+            fail(); // 1
+        } catch (IllegalStateException e) { // 1
+            sum++; // 1
+        } // 0
+        return sum; // 1
+    }
+
+    private int sum(int n) {
+        int sum = start; // 1
+        for (int i = 0; i < n; i++) { // 4
+            sum += i; // 3
+        }
+        return sum; // 1
+    }
+
+    private static void fail() {
+        throw new IllegalStateException(); // 1
+    }
+}
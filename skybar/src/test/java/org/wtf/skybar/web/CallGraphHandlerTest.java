@@ -0,0 +1,18 @@
+package org.wtf.skybar.web;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CallGraphHandlerTest {
+
+    @Test
+    public void testLimitMustBeANumberThatIsntNegative() {
+        assertEquals(Integer.MAX_VALUE, CallGraphHandler.limitOf(null));
+        assertEquals(0, CallGraphHandler.limitOf("0"));
+        assertEquals(20, CallGraphHandler.limitOf("20"));
+        assertEquals(-1, CallGraphHandler.limitOf("-1"));
+        assertEquals(-1, CallGraphHandler.limitOf(String.valueOf(Integer.MIN_VALUE)));
+        assertEquals(-1, CallGraphHandler.limitOf("x"));
+    }
+}
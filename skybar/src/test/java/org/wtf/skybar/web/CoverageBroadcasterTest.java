@@ -0,0 +1,317 @@
+package org.wtf.skybar.web;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageBroadcasterTest {
+
+    private final SkybarRegistry registry = new SkybarRegistry();
+    private final int foo = registry.internSource("com/foo/Foo.java");
+    private final int bar = registry.internSource("com/bar/Bar.java");
+    private final CoverageBroadcaster broadcaster = new CoverageBroadcaster(registry);
+
+    {
+        registry.registerLine(foo, 33);
+        registry.registerLine(bar, 44);
+        registry.updateListeners();
+        broadcaster.start();
+    }
+
+    @After
+    public void tearDown() {
+        broadcaster.lifeCycleStopping(null);
+    }
+
+    @Test
+    public void testClientsOfEverySourceShareTheEncodedDelta() throws Exception {
+        RecordingClient first = connect(false);
+        RecordingClient second = connect(false);
+        RecordingClient firstBinary = connect(true);
+        RecordingClient secondBinary = connect(true);
+        for (RecordingClient client : new RecordingClient[]{first, second, firstBinary, secondBinary}) {
+            client.next();
+        }
+
+        registry.visitLine(foo, 33);
+        registry.updateListeners();
+
+        Object delta = first.next();
+        assertEquals("{\"com/foo/Foo.java\":{\"33\":1}}", delta);
+        assertSame(delta, second.next());
+        assertEquals(firstBinary.next(), secondBinary.next());
+    }
+
+    @Test
+    public void testSubscriptionSnapshotComesBeforeLaterDeltas() throws Exception {
+        RecordingClient client = connect(false);
+        assertTrue(((String) client.next()).contains("com/bar/Bar.java"));
+
+        broadcaster.subscribe(client, new String[]{"com/foo/"});
+        registry.visitLine(foo, 33);
+        registry.visitLine(bar, 44);
+        registry.updateListeners();
+
+        assertEquals("{\"snapshot\":{\"com/foo/Foo.java\":{\"33\":0}}}", client.next());
+        assertEquals("{\"com/foo/Foo.java\":{\"33\":1}}", client.next());
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowClientDoesNotHoldUpTheDeltaPass() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        RecordingClient slow = new RecordingClient() {
+            @Override
+            void sendText(String frame) {
+                super.sendText(frame);
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        slow.connected(false);
+        slow.next();
+
+        for (int i = 0; i < 3; i++) {
+            registry.visitLine(foo, 33);
+            registry.updateListeners();
+        }
+        released.countDown();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("{\"com/foo/Foo.java\":{\"33\":1}}", slow.next());
+        }
+    }
+
+    @Test
+    public void testClosedClientsAreNotSentTo() throws Exception {
+        RecordingClient client = connect(false);
+        client.next();
+        broadcaster.disconnect(client);
+
+        registry.visitLine(foo, 33);
+        registry.updateListeners();
+
+        assertFalse(client.hasNext());
+    }
+
+    @Test
+    public void testDeltasAreMergedWhileTheWindowIsFull() throws Exception {
+        RecordingClient client = new RecordingClient();
+        client.writing = false;
+        client.connected(false);
+        client.next();
+
+        for (int i = 0; i < 10; i++) {
+            registry.visitLine(foo, 33);
+            if (i % 2 == 0) {
+                registry.visitLine(bar, 44);
+            }
+            registry.updateListeners();
+        }
+        for (int i = 1; i < CoverageWebSocket.MAX_FRAMES_IN_FLIGHT; i++) {
+            client.next();
+        }
+        assertFalse(client.hasNext());
+
+        broadcaster.execute(client::written);
+
+        int merged = 10 - (CoverageWebSocket.MAX_FRAMES_IN_FLIGHT - 1);
+        String delta = (String) client.next();
+        assertTrue(delta, delta.contains("\"com/foo/Foo.java\":{\"33\":" + merged + "}"));
+        assertTrue(delta, delta.contains("\"com/bar/Bar.java\":{\"44\":" + merged / 2 + "}"));
+        assertFalse(client.hasNext());
+    }
+
+    @Test
+    public void testSnapshotReplacesWhatIsPendingForItsSources() throws Exception {
+        RecordingClient client = new RecordingClient();
+        client.writing = false;
+        client.connected(false);
+        client.next();
+
+        for (int i = 0; i < CoverageWebSocket.MAX_FRAMES_IN_FLIGHT; i++) {
+            registry.visitLine(foo, 33);
+            registry.visitLine(bar, 44);
+            registry.updateListeners();
+        }
+        broadcaster.subscribe(client, new String[]{"com/foo/"});
+        for (int i = 1; i < CoverageWebSocket.MAX_FRAMES_IN_FLIGHT; i++) {
+            client.next();
+        }
+        int total = CoverageWebSocket.MAX_FRAMES_IN_FLIGHT;
+        assertEquals("{\"snapshot\":{\"com/foo/Foo.java\":{\"33\":" + total + "}}}", client.next());
+
+        // The snapshot didn't wait for the window, but is in it
+        broadcaster.execute(client::written);
+        assertFalse(client.hasNext());
+        broadcaster.execute(client::written);
+
+        assertEquals("{\"com/bar/Bar.java\":{\"44\":1}}", client.next());
+    }
+
+    @Test
+    public void testReconnectingClientOnlyGetsTheDeltasItMissed() throws Exception {
+        RecordingClient client = connect(false);
+        client.next();
+        registry.visitLine(foo, 33);
+        registry.updateListeners();
+        client.next();
+        long lastSequence = registry.getDeltaSequence();
+        client.onWebSocketClose(1001, "gone");
+
+        for (int i = 0; i < 3; i++) {
+            registry.visitLine(foo, 33);
+            registry.updateListeners();
+        }
+        RecordingClient resumed = new RecordingClient(lastSequence);
+        resumed.connected(false);
+
+        assertEquals("{\"com/foo/Foo.java\":{\"33\":3}}", resumed.next());
+        registry.visitLine(foo, 33);
+        registry.updateListeners();
+        assertEquals("{\"com/foo/Foo.java\":{\"33\":1}}", resumed.next());
+    }
+
+    @Test
+    public void testResumedBinaryClientKeepsTheSourceNamesItWasSent() throws Exception {
+        CoverageFrameDecoder decoder = new CoverageFrameDecoder();
+        RecordingClient client = connect(true);
+        decoder.decode((ByteBuffer) client.next());
+        registry.visitLine(foo, 33);
+        registry.visitLine(bar, 44);
+        registry.updateListeners();
+        decoder.decode((ByteBuffer) client.next());
+        long lastSequence = registry.getDeltaSequence();
+        client.onWebSocketClose(1001, "gone");
+
+        registry.visitLine(foo, 33);
+        registry.updateListeners();
+        RecordingClient resumed = new RecordingClient(lastSequence);
+        resumed.connected(true);
+        assertEquals(Collections.singletonMap("com/foo/Foo.java", Collections.singletonMap(33, 1L)),
+                decoder.decode((ByteBuffer) resumed.next()));
+
+        // The shared frame doesn't name Bar.java again, the client has its name from before it left
+        registry.visitLine(bar, 44);
+        registry.updateListeners();
+        assertEquals(Collections.singletonMap("com/bar/Bar.java", Collections.singletonMap(44, 1L)),
+                decoder.decode((ByteBuffer) resumed.next()));
+    }
+
+    @Test
+    public void testClientThatMissedDeltasNoLongerKeptGetsASnapshot() throws Exception {
+        long lastSequence = registry.getDeltaSequence();
+        for (int i = 0; i <= CoverageBroadcaster.RESUMABLE_DELTAS; i++) {
+            registry.visitLine(foo, 33);
+            registry.updateListeners();
+        }
+
+        RecordingClient resumed = new RecordingClient(lastSequence);
+        resumed.connected(false);
+
+        String snapshot = (String) resumed.next();
+        assertTrue(snapshot, snapshot.startsWith("{\"full\":"));
+        assertTrue(snapshot, snapshot.contains("\"33\":" + (CoverageBroadcaster.RESUMABLE_DELTAS + 1)));
+    }
+
+    @Test
+    public void testBinaryClientThatMissedDeltasNoLongerKeptGetsAFullSnapshot() throws Exception {
+        CoverageFrameDecoder decoder = new CoverageFrameDecoder();
+        RecordingClient client = connect(true);
+        decoder.decode((ByteBuffer) client.next());
+        assertEquals(CoverageFrameEncoder.FULL_SNAPSHOT, decoder.getKind());
+        broadcaster.subscribe(client, new String[]{"com/foo/"});
+        decoder.decode((ByteBuffer) client.next());
+        assertEquals(CoverageFrameEncoder.SNAPSHOT, decoder.getKind());
+        long lastSequence = registry.getDeltaSequence();
+        client.onWebSocketClose(1001, "gone");
+        for (int i = 0; i <= CoverageBroadcaster.RESUMABLE_DELTAS; i++) {
+            registry.visitLine(foo, 33);
+            registry.updateListeners();
+        }
+
+        RecordingClient resumed = new RecordingClient(lastSequence);
+        resumed.connected(true);
+
+        // Names the sources again, for a client that drops what it has
+        Map<String, Map<Integer, Long>> snapshot = decoder.decode((ByteBuffer) resumed.next());
+        assertEquals(CoverageFrameEncoder.FULL_SNAPSHOT, decoder.getKind());
+        assertEquals(Long.valueOf(CoverageBroadcaster.RESUMABLE_DELTAS + 1), snapshot.get("com/foo/Foo.java").get(33));
+        assertEquals(Collections.singletonMap(44, 0L), snapshot.get("com/bar/Bar.java"));
+    }
+
+    @Test
+    public void testResumeSequenceComesFromTheUpgradeRequest() {
+        assertEquals(Long.valueOf(42), CoverageWebSocket.resumeFrom(
+                Collections.singletonMap(CoverageWebSocket.RESUME, Collections.singletonList("42"))));
+        assertNull(CoverageWebSocket.resumeFrom(
+                Collections.singletonMap(CoverageWebSocket.RESUME, Collections.singletonList("x"))));
+        assertNull(CoverageWebSocket.resumeFrom(Collections.emptyMap()));
+    }
+
+    private RecordingClient connect(boolean binary) {
+        RecordingClient client = new RecordingClient();
+        client.connected(binary);
+        return client;
+    }
+
+    private class RecordingClient extends CoverageWebSocket {
+        private final BlockingQueue<Object> frames = new LinkedBlockingQueue<>();
+        /**
+         * False to leave every frame unwritten, as if the client stopped reading
+         */
+        volatile boolean writing = true;
+
+        RecordingClient() {
+            this(null);
+        }
+
+        RecordingClient(Long resumeFrom) {
+            super(broadcaster, resumeFrom);
+        }
+
+        @Override
+        void sendText(String frame) {
+            add(frame);
+        }
+
+        @Override
+        void sendBinary(ByteBuffer frame) {
+            add(frame);
+        }
+
+        private void add(Object frame) {
+            frames.add(frame);
+            if (writing) {
+                broadcaster.execute(this::written);
+            }
+        }
+
+        Object next() throws InterruptedException {
+            Object frame = frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no frame", frame);
+            return frame;
+        }
+
+        boolean hasNext() throws InterruptedException {
+            return frames.poll(200, TimeUnit.MILLISECONDS) != null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.wtf.skybar.web;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Decodes binary coverage frames the way skybar.js does, keeping the source names it was sent across frames until a
+ * full snapshot replaces them
+ */
+class CoverageFrameDecoder {
+    /**
+     * Source names the decoder was sent, by id
+     */
+    private final Map<Integer, String> names = new HashMap<>();
+    /**
+     * Kind and sequence number of the last frame decoded
+     */
+    private int kind;
+    private long sequence;
+
+    int getKind() {
+        return kind;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    Map<String, Map<Integer, Long>> decode(byte[] frame) {
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * @return the counts by source name, under null for a source whose name the decoder was never sent
+     */
+    Map<String, Map<Integer, Long>> decode(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        kind = in.get();
+        if (kind == CoverageFrameEncoder.FULL_SNAPSHOT) {
+            names.clear();
+        }
+        sequence = readVarint(in);
+        Map<String, Map<Integer, Long>> bySourceName = new HashMap<>();
+        int sourceId = 0;
+        for (long sourceCount = readVarint(in); sourceCount > 0; sourceCount--) {
+            long idGap = readVarint(in);
+            sourceId += (int) (idGap >>> 1);
+            if ((idGap & 1) != 0) {
+                byte[] name = new byte[(int) readVarint(in)];
+                in.get(name);
+                names.put(sourceId, new String(name, StandardCharsets.UTF_8));
+            }
+            int[] keys = new int[(int) readVarint(in)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = i == 0 ? (int) readZigzag(in) : keys[i - 1] + (int) readVarint(in);
+            }
+            Map<Integer, Long> counts = new HashMap<>();
+            for (int key : keys) {
+                counts.put(key, readZigzag(in));
+            }
+            bySourceName.put(names.get(sourceId), counts);
+        }
+        assertFalse("trailing bytes", in.hasRemaining());
+        return bySourceName;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long readZigzag(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
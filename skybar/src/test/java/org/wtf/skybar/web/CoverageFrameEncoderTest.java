@@ -0,0 +1,85 @@
+package org.wtf.skybar.web;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+import org.junit.Test;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageFrameEncoderTest {
+
+    private final SkybarRegistry registry = new SkybarRegistry();
+    private final int foo = registry.internSource("com/foo/Foo.java");
+    private final int bar = registry.internSource("com/foo/Bär.java");
+    private final CoverageFrameEncoder encoder = new CoverageFrameEncoder(registry);
+    private final CoverageFrameDecoder decoder = new CoverageFrameDecoder();
+
+    @Test
+    public void testFramesDecodeToTheCountsOfEachSource() {
+        IntObjMap<IntLongMap> snapshot = HashIntObjMaps.newMutableMap();
+        snapshot.put(bar, counts(7, 0, SkybarRegistry.branchKey(7, 1), 3, 300, Long.MAX_VALUE));
+        snapshot.put(foo, counts(1, 1, SkybarRegistry.allocationKey(65535), 2, 12, -5));
+
+        byte[] frame = encoder.encode(snapshot, CoverageFrameEncoder.SNAPSHOT, 1234567890123456L);
+
+        assertEquals(CoverageFrameEncoder.SNAPSHOT, frame[0]);
+        assertEquals(toMap(snapshot), decoder.decode(frame));
+        assertEquals(1234567890123456L, decoder.getSequence());
+    }
+
+    @Test
+    public void testNamesAreOnlySentInTheFirstFrameOfTheirSource() {
+        IntObjMap<IntLongMap> delta = HashIntObjMaps.newMutableMap();
+        delta.put(foo, counts(33, 1));
+
+        byte[] first = encoder.encode(delta, CoverageFrameEncoder.DELTA, 1);
+        byte[] second = encoder.encode(delta, CoverageFrameEncoder.DELTA, 1);
+
+        assertTrue(new String(first, StandardCharsets.UTF_8).contains("com/foo/Foo.java"));
+        assertFalse(new String(second, StandardCharsets.UTF_8).contains("com/foo/Foo.java"));
+        assertEquals(decoder.decode(first), decoder.decode(second));
+    }
+
+    @Test
+    public void testClientCanBeSentFramesOfAnotherEncoder() {
+        IntObjMap<IntLongMap> delta = HashIntObjMaps.newMutableMap();
+        delta.put(foo, counts(33, 1));
+        byte[] own = encoder.encode(delta, CoverageFrameEncoder.SNAPSHOT, 1);
+
+        CoverageFrameEncoder shared = new CoverageFrameEncoder(registry);
+        byte[] named = shared.encode(delta, CoverageFrameEncoder.DELTA, 1);
+        byte[] unnamed = shared.encode(delta, CoverageFrameEncoder.DELTA, 1);
+
+        assertEquals(decoder.decode(own), decoder.decode(named));
+        assertEquals(decoder.decode(own), decoder.decode(unnamed));
+    }
+
+    @Test
+    public void testEmptyDeltaIsThreeBytes() {
+        assertEquals(3, encoder.encode(HashIntObjMaps.newMutableMap(), CoverageFrameEncoder.DELTA, 5).length);
+    }
+
+    private static IntLongMap counts(long... keysAndCounts) {
+        IntLongMap counts = HashIntLongMaps.newMutableMap();
+        for (int i = 0; i < keysAndCounts.length; i += 2) {
+            counts.put((int) keysAndCounts[i], keysAndCounts[i + 1]);
+        }
+        return counts;
+    }
+
+    private Map<String, Map<Integer, Long>> toMap(IntObjMap<IntLongMap> data) {
+        Map<String, Map<Integer, Long>> bySourceName = new HashMap<>();
+        data.forEach((int sourceId, IntLongMap counts) ->
+                bySourceName.put(registry.getSourceName(sourceId), new HashMap<>(counts)));
+        return bySourceName;
+    }
+}
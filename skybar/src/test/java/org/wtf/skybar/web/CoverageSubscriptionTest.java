@@ -0,0 +1,75 @@
+package org.wtf.skybar.web;
+
+import net.openhft.koloboke.collect.map.IntLongMap;
+import net.openhft.koloboke.collect.map.IntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+import org.junit.Test;
+import org.wtf.skybar.registry.SkybarRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageSubscriptionTest {
+
+    private final SkybarRegistry registry = new SkybarRegistry();
+    private final int foo = registry.internSource("com/foo/Foo.java");
+    private final int bar = registry.internSource("com/bar/Bar.java");
+    private final int baz = registry.internSource("com/bar/Baz.java");
+    private final CoverageSubscription subscription = new CoverageSubscription(registry);
+
+    @Test
+    public void testEverySourceGoesThroughUntilSubscribed() {
+        IntObjMap<IntLongMap> delta = delta(foo, bar);
+
+        assertSame(delta, subscription.filter(delta));
+    }
+
+    @Test
+    public void testOtherSourcesAreOnlyAnnouncedOnce() {
+        subscription.subscribe(new String[]{"com/bar/Baz.java", "com/foo/"});
+
+        IntObjMap<IntLongMap> first = subscription.filter(delta(foo, bar, baz));
+        assertEquals(3, first.size());
+        assertEquals(1, first.get(foo).size());
+        assertEquals(1, first.get(baz).size());
+        assertTrue(first.get(bar).isEmpty());
+
+        IntObjMap<IntLongMap> second = subscription.filter(delta(foo, bar));
+        assertEquals(1, second.size());
+        assertTrue(second.containsKey(foo));
+
+        assertTrue(subscription.filter(delta(bar)).isEmpty());
+    }
+
+    @Test
+    public void testSourcesSentBeforeSubscribingAreNotAnnouncedAgain() {
+        subscription.filter(delta(foo, bar));
+        subscription.subscribe(new String[]{"com/foo/"});
+
+        assertTrue(subscription.filter(delta(bar)).isEmpty());
+
+        subscription.subscribe(null);
+        assertEquals(1, subscription.filter(delta(bar)).size());
+    }
+
+    @Test
+    public void testPrefixesMatchTheStartOfSourceNames() {
+        assertTrue(CoverageSubscription.matches(null, "com/foo/Foo.java"));
+        assertTrue(CoverageSubscription.matches(new String[]{"com/"}, "com/foo/Foo.java"));
+        assertFalse(CoverageSubscription.matches(new String[]{"foo/"}, "com/foo/Foo.java"));
+        assertFalse(CoverageSubscription.matches(new String[0], "com/foo/Foo.java"));
+    }
+
+    private static IntObjMap<IntLongMap> delta(int... sourceIds) {
+        IntObjMap<IntLongMap> delta = HashIntObjMaps.newMutableMap();
+        for (int sourceId : sourceIds) {
+            IntLongMap counts = HashIntLongMaps.newMutableMap();
+            counts.put(1, 1L);
+            delta.put(sourceId, counts);
+        }
+        return delta;
+    }
+}
@@ -54,9 +54,14 @@ public final class SkybarStressTool {
 
         int numVisitThreads = 2;
 
-        for (int i = 0; i < numLinesToRegister; i++) {
-            String sourceName = "file " + i % 10;
-            r.registerLine(sourceName, i);
+        int[] sourceIds = new int[10];
+        for (int file = 0; file < sourceIds.length; file++) {
+            int[] lines = new int[numLinesToRegister / sourceIds.length];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = i * sourceIds.length + file;
+            }
+            sourceIds[file] = r.internSource("file " + file);
+            r.registerLines(sourceIds[file], lines);
         }
 
         AtomicInteger numFutures = new AtomicInteger();
@@ -71,8 +76,7 @@ public final class SkybarStressTool {
                     // get a random entry. Increment after get when writing, so need to decrement here
                     int line = visitRand.nextInt(numLinesToRegister);
 
-                    String sourceName = "file " + line % 10;
-                    r.getAdderForLine(sourceName, line);
+                    r.visitLine(sourceIds[line % sourceIds.length], line);
 
                     if (Thread.currentThread().isInterrupted()) {
                         return;
@@ -0,0 +1,273 @@
+package org.wtf.skybar.tools;
+
+import org.wtf.skybar.registry.SkybarRegistry;
+import org.wtf.skybar.transform.OfflineInstrumentation;
+import org.wtf.skybar.transform.ProbeStrategy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Instruments the classes of a jar or a class directory ahead of time, so the application doesn't spend its startup in
+ * ASM:
+ *
+ * <pre>
+ * java -cp tools.jar:skybar-all.jar org.wtf.skybar.tools.OfflineInstrumenter [options] &lt;input&gt; &lt;output&gt;
+ * </pre>
+ *
+ * The input is a jar or a class directory, and the output is written in the same form. Classes are instrumented in
+ * parallel on a fork/join pool. The metadata the agent needs to count lines in them is written next to the output,
+ * with {@link OfflineInstrumentation#METADATA_SUFFIX} appended; point the agent's skybar.offlineMetadata at it.
+ */
+public final class OfflineInstrumenter {
+
+    private static final String USAGE = "Usage: OfflineInstrumenter [--probes indy|array|blocks|edges] "
+            + "[--coverageOnly] [--branches] [--methodTiming] [--callGraph] [--allocations] [--lockContention] "
+            + "[--include prefix]... [--exclude prefix]... [--threads n] <input> <output>\n"
+            + "Prefixes are slash-separated, as in com/foo/. Without --include every class is instrumented.";
+
+    /**
+     * Below this many files a task does the work itself rather than splitting it further
+     */
+    private static final int FILES_PER_TASK = 16;
+
+    private final OfflineInstrumentation instrumentation;
+    private final ForkJoinPool pool;
+
+    private OfflineInstrumenter(OfflineInstrumentation instrumentation, ForkJoinPool pool) {
+        this.instrumentation = instrumentation;
+        this.pool = pool;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ProbeStrategy probeStrategy = ProbeStrategy.INVOKE_DYNAMIC;
+        boolean coverageOnly = false;
+        boolean branchCoverage = false;
+        boolean methodTiming = false;
+        boolean callGraph = false;
+        boolean allocationCounting = false;
+        boolean lockContention = false;
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--probes":
+                        probeStrategy = ProbeStrategy.forName(args[++i]);
+                        break;
+                    case "--coverageOnly":
+                        coverageOnly = true;
+                        break;
+                    case "--branches":
+                        branchCoverage = true;
+                        break;
+                    case "--methodTiming":
+                        methodTiming = true;
+                        break;
+                    case "--callGraph":
+                        callGraph = true;
+                        break;
+                    case "--allocations":
+                        allocationCounting = true;
+                        break;
+                    case "--lockContention":
+                        lockContention = true;
+                        break;
+                    case "--include":
+                        includes.add(args[++i]);
+                        break;
+                    case "--exclude":
+                        excludes.add(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        paths.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            paths.clear();
+        }
+        if (paths.size() != 2) {
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+        if (includes.isEmpty()) {
+            includes.add("");
+        }
+
+        // Instrumenting follows the registry's mode, as it does in the agent
+        SkybarRegistry.registry.setCoverageOnly(coverageOnly);
+        SkybarRegistry.registry.setBranchCoverage(branchCoverage);
+        SkybarRegistry.registry.setMethodTiming(methodTiming);
+        SkybarRegistry.registry.setCallGraph(callGraph);
+        SkybarRegistry.registry.setAllocationCounting(allocationCounting);
+        SkybarRegistry.registry.setLockContention(lockContention);
+        OfflineInstrumentation instrumentation = new OfflineInstrumentation(probeStrategy,
+                includes.toArray(new String[includes.size()]),
+                excludes.isEmpty() ? null : excludes.toArray(new String[excludes.size()]));
+        Path input = Paths.get(paths.get(0));
+        Path output = Paths.get(paths.get(1));
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(instrumentation, pool);
+        try {
+            if (Files.isDirectory(input)) {
+                instrumenter.instrumentDirectory(input, output);
+            } else {
+                instrumenter.instrumentJar(input, output);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Path metadata = Paths.get(output + OfflineInstrumentation.METADATA_SUFFIX);
+        instrumentation.writeMetadata(metadata);
+        System.out.println("Instrumented " + instrumentation.getInstrumentedCount() + " classes into " + output
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms, metadata in " + metadata);
+    }
+
+    private void instrumentDirectory(Path input, Path output) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(input)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        forEach(files.size(), i -> {
+            Path file = files.get(i);
+            Path target = output.resolve(input.relativize(file).toString());
+            try {
+                Files.createDirectories(target.getParent());
+                byte[] bytes = Files.readAllBytes(file);
+                Files.write(target, instrument(file.toString(), bytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Entries are instrumented in parallel and then written in their original order, so the manifest stays first
+     */
+    private void instrumentJar(Path input, Path output) throws IOException {
+        try (ZipFile jar = new ZipFile(input.toFile())) {
+            List<? extends ZipEntry> entries = Collections.list(jar.entries());
+            byte[][] contents = new byte[entries.size()][];
+            forEach(entries.size(), i -> {
+                ZipEntry entry = entries.get(i);
+                if (!entry.isDirectory()) {
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        contents[i] = instrument(entry.getName(), readAll(in));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(output))) {
+                for (int i = 0; i < entries.size(); i++) {
+                    ZipEntry entry = entries.get(i);
+                    if (isSignature(entry.getName())) {
+                        System.err.println("Dropping " + entry.getName() + ", instrumented classes break signatures");
+                        continue;
+                    }
+                    ZipEntry copy = new ZipEntry(entry.getName());
+                    copy.setTime(entry.getTime());
+                    out.putNextEntry(copy);
+                    if (contents[i] != null) {
+                        out.write(contents[i]);
+                    }
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the instrumented class, or the file as it is if it isn't a class that gets instrumented
+     */
+    private byte[] instrument(String name, byte[] bytes) {
+        if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+            return bytes;
+        }
+        try {
+            byte[] instrumented = instrumentation.instrument(bytes);
+            return instrumented != null ? instrumented : bytes;
+        } catch (RuntimeException e) {
+            // Most likely a class file too new for ASM; it still works, it just won't count lines
+            System.err.println("Leaving " + name + " as it is: " + e);
+            return bytes;
+        }
+    }
+
+    /**
+     * Runs the work for every index on the pool, splitting the range in halves until the pieces are small
+     */
+    private void forEach(int count, IntConsumer work) throws IOException {
+        try {
+            pool.invoke(new RangeAction(0, count, work));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final IntConsumer work;
+
+        RangeAction(int from, int to, IntConsumer work) {
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    work.accept(i);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeAction(from, middle, work), new RangeAction(middle, to, work));
+            }
+        }
+    }
+
+    private static boolean isSignature(String name) {
+        String upper = name.toUpperCase(Locale.US);
+        return upper.startsWith("META-INF/") && upper.indexOf('/', "META-INF/".length()) < 0
+                && (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}